@@ -37,7 +37,6 @@ public class Application {
         config.showJavalinBanner = false;
         config.maxRequestSize = Long.MAX_VALUE;
         config.addStaticFiles("/logos", Path.of("logos").toAbsolutePath().toString(), Location.EXTERNAL);
-        config.addStaticFiles("/tiles", Path.of("tiles").toAbsolutePath().toString(), Location.EXTERNAL);
         config.addStaticFiles("/uploads", Path.of("uploads").toAbsolutePath().toString(), Location.EXTERNAL);
         config.enableCorsForAllOrigins();
 
@@ -84,10 +83,12 @@ public class Application {
     private final SlideController          SlideController        = new SlideController();
     private final UserController           UserController         = new UserController();
     private final FileController           FileController         = new FileController();
+    private final UploadController         UploadController       = new UploadController();
     private final AuthenticationController AuthController         = new AuthenticationController();
 
     public Application() {
         app.get("/", ctx -> ctx.html("QuPath Edu").status(200));
+        app.get("/tiles/*", SlideController::renderTileFile, roles(ANYONE));
 
         app.routes(() -> path("/api/v0/", () -> {
             before(ctx -> {
@@ -144,8 +145,21 @@ public class Application {
 
             /* Slides */
 
+            post("slides/uploads", UploadController::create, roles(ANYONE));
+            get("slides/uploads/:id", UploadController::get, roles(ANYONE));
+            head("slides/uploads/:id", UploadController::head, roles(ANYONE));
+            get("slides/uploads/:id/:chunk/url", UploadController::getChunkUrl, roles(ANYONE));
+            put("slides/uploads/:id/:chunk", UploadController::uploadChunk, roles(ANYONE));
+            post("slides/uploads/:id/finalize", UploadController::finish, roles(ANYONE));
+            delete("slides/uploads/:id", UploadController::delete, roles(ANYONE));
             crud("slides/:id", SlideController, roles(ANYONE));
             get("slides/:id/tile/:tileX/:tileY/:level/:tileWidth/:tileHeight", SlideController::renderTile, roles(ANYONE));
+            get("slides/:id/dzi", SlideController::getDeepZoom, roles(ANYONE));
+            get("slides/:id/dzi_files/:level/:tile", SlideController::renderDeepZoomTile, roles(ANYONE));
+            get("slides/:id/iiif/info.json", SlideController::getIIIFInfo, roles(ANYONE));
+            get("slides/:id/iiif/:region/:size/:rotation/:quality", SlideController::renderIIIFTile, roles(ANYONE));
+            get("tiler", SlideController::getTilerStatus, roles(ANYONE));
+            get("tiles/cache", SlideController::getTileCacheStatistics, roles(ANYONE));
 
             /* Workspaces */
 
@@ -27,6 +27,7 @@ public class Main {
 
     public static void main(String[] args) throws IOException, InterruptedException {
         if (args.length == 1 && args[0].equalsIgnoreCase("--tiler")) {
+            migrateDatabase();
             new Tiler();
         } else if (args.length == 1 && args[0].equalsIgnoreCase("--debug")) {
             new SimpleDebugger();
@@ -78,7 +79,7 @@ public class Main {
      */
     private static void migrateDatabase() {
         Flyway.configure()
-              .dataSource("jdbc:h2:./database;DB_CLOSE_DELAY=-1", "sa", null) // Use the same as in hibernate.cfg.xml
+              .dataSource("jdbc:h2:./database;DB_CLOSE_DELAY=-1;AUTO_SERVER=TRUE", "sa", null) // Use the same as in hibernate.cfg.xml
               .load()
               .migrate();
     }
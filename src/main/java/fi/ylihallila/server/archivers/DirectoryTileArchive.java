@@ -0,0 +1,63 @@
+package fi.ylihallila.server.archivers;
+
+import fi.ylihallila.server.util.Util;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A TileArchive which writes every tile straight to its final location in a directory, for storage
+ * on the local disk. Nothing is left to commit once the tiles have been added, so each tile is
+ * written exactly once instead of being written to an archive and extracted from it.
+ *
+ * The directory may be served while tiles are being written, so each tile is written to a temporary
+ * file and moved in place, and a partially written tile is never read.
+ */
+public class DirectoryTileArchive implements TileArchive {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final Path directory;
+
+    public DirectoryTileArchive(Path directory) {
+        this.directory = directory;
+
+        create();
+    }
+
+    @Override
+    public boolean create() {
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            logger.error("Error while creating tile directory {}", directory, e);
+            return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    public boolean addTile(String tileName, byte[] data) {
+        try {
+            Util.writeAtomically(directory.resolve(tileName), data);
+        } catch (IOException e) {
+            logger.error("Error while writing {} to {}", tileName, directory, e);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @return null, as the tiles are already in place.
+     */
+    @Override
+    public File save() {
+        return null;
+    }
+}
@@ -0,0 +1,84 @@
+package fi.ylihallila.server.archivers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+
+/**
+ * A TileArchive which can be saved while tiles are still being added to it, e.g. by a worker which
+ * was cancelled while it was adding a tile. Saving waits for the tiles being added and rejects any
+ * tiles added after it, so the archive is never saved with a tile half written.
+ */
+public class GuardedTileArchive implements TileArchive {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final TileArchive archive;
+
+    /**
+     * Number of tiles being added and whether the archive has been saved. Guarded by this.
+     */
+    private int adding = 0;
+    private boolean saved = false;
+
+    public GuardedTileArchive(TileArchive archive) {
+        this.archive = archive;
+    }
+
+    @Override
+    public boolean create() {
+        return archive.create();
+    }
+
+    /**
+     * @return false if adding the tile failed or the archive has already been saved.
+     */
+    @Override
+    public boolean addTile(String tileName, byte[] data) {
+        synchronized (this) {
+            if (saved) {
+                logger.debug("Archive already saved, discarding {}", tileName);
+                return false;
+            }
+
+            adding++;
+        }
+
+        try {
+            return archive.addTile(tileName, data);
+        } finally {
+            synchronized (this) {
+                adding--;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits until the tiles being added have been added and saves the archive. Tiles are written to
+     * local disk or handed to an upload queue, so the wait isn't interrupted; the interrupt is kept.
+     */
+    @Override
+    public File save() {
+        boolean interrupted = false;
+
+        synchronized (this) {
+            saved = true;
+
+            while (adding > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        return archive.save();
+    }
+}
@@ -0,0 +1,210 @@
+package fi.ylihallila.server.archivers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A TileArchive which can be written to by any number of threads at once. Each tile reserves its
+ * range of the file with a single atomic add and is then written to that position, so adding tiles
+ * doesn't require a lock like {@link ZipTileArchive} and {@link TarTileArchive} do.
+ *
+ * The tiles are followed by an index, which is written when the archive is saved:
+ * <pre>
+ * [tile data ...]
+ * [index: count * (name as modified UTF-8, offset as long, length as int)]
+ * [footer: index offset as long, count as int, {@link #MAGIC} as int]
+ * </pre>
+ */
+public class PackedTileArchive implements TileArchive {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    public static final String EXTENSION = ".pack";
+
+    public static final int MAGIC = 0x54494C45; // "TILE"
+
+    private static final int FOOTER_SIZE = Long.BYTES + Integer.BYTES + Integer.BYTES;
+
+    private final File file;
+
+    private FileChannel channel;
+
+    /**
+     * Position where the next tile is written.
+     */
+    private final AtomicLong offset = new AtomicLong();
+
+    private final Queue<Entry> entries = new ConcurrentLinkedQueue<>();
+
+    public PackedTileArchive(String slideName, int level) {
+        this.file = new File(slideName + "-level-" + level + "-tiles" + EXTENSION);
+
+        create();
+    }
+
+    @Override
+    public boolean create() {
+        try {
+            channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            logger.error("Error while creating packed archive", e);
+            return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    public boolean addTile(String tileName, byte[] data) {
+        long position = offset.getAndAdd(data.length);
+
+        try {
+            write(ByteBuffer.wrap(data), position);
+        } catch (IOException e) {
+            logger.error("Error while adding {} to archive", tileName, e);
+            return false;
+        }
+
+        entries.add(new Entry(tileName, position, data.length));
+
+        return true;
+    }
+
+    /**
+     * Writes the index after the tiles. Every tile must have been added before saving.
+     */
+    @Override
+    public File save() {
+        try {
+            long indexOffset = offset.get();
+            List<Entry> index = new ArrayList<>(entries);
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(index.size() * 64 + FOOTER_SIZE);
+
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                for (Entry entry : index) {
+                    out.writeUTF(entry.name);
+                    out.writeLong(entry.offset);
+                    out.writeInt(entry.length);
+                }
+
+                out.writeLong(indexOffset);
+                out.writeInt(index.size());
+                out.writeInt(MAGIC);
+            }
+
+            write(ByteBuffer.wrap(bytes.toByteArray()), indexOffset);
+            channel.close();
+        } catch (IOException e) {
+            logger.error("Error while saving packed archive", e);
+            return null;
+        }
+
+        return file;
+    }
+
+    private void write(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Reads the index of a saved archive.
+     *
+     * @param path packed archive.
+     * @return tiles in the archive.
+     * @throws IOException if the file isn't a packed archive or can't be read.
+     */
+    public static List<Entry> readIndex(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+
+            if (size < FOOTER_SIZE) {
+                throw new IOException(path + " is not a packed tile archive");
+            }
+
+            ByteBuffer footer = read(channel, size - FOOTER_SIZE, FOOTER_SIZE);
+            long indexOffset = footer.getLong();
+            int count = footer.getInt();
+
+            if (footer.getInt() != MAGIC) {
+                throw new IOException(path + " is not a packed tile archive");
+            }
+
+            ByteBuffer index = read(channel, indexOffset, (int) (size - FOOTER_SIZE - indexOffset));
+            List<Entry> entries = new ArrayList<>(count);
+
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(index.array()))) {
+                for (int i = 0; i < count; i++) {
+                    entries.add(new Entry(in.readUTF(), in.readLong(), in.readInt()));
+                }
+            }
+
+            return entries;
+        }
+    }
+
+    /**
+     * Reads a tile from a saved archive.
+     *
+     * @param channel channel of the packed archive.
+     * @param entry tile to read.
+     * @return tile data.
+     */
+    public static byte[] readTile(FileChannel channel, Entry entry) throws IOException {
+        return read(channel, entry.offset, entry.length).array();
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+
+        return buffer.flip();
+    }
+
+    /**
+     * A tile in a packed archive.
+     */
+    public static class Entry {
+
+        private final String name;
+        private final long offset;
+        private final int length;
+
+        public Entry(String name, long offset, int length) {
+            this.name = name;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public int getLength() {
+            return length;
+        }
+    }
+}
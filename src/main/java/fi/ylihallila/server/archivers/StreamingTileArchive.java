@@ -0,0 +1,93 @@
+package fi.ylihallila.server.archivers;
+
+import fi.ylihallila.server.storage.TileUploadQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+
+/**
+ * A TileArchive which doesn't write anything to disk. Tiles are handed to a {@link TileUploadQueue}
+ * as they are added and committed to storage while generation continues. Saving the archive waits
+ * until every tile added to it has been committed.
+ */
+public class StreamingTileArchive implements TileArchive {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final TileUploadQueue queue;
+    private final int level;
+
+    /**
+     * Number of tiles added which are yet to be committed and which failed to commit. Guarded by this.
+     */
+    private int pending = 0;
+    private int failed  = 0;
+
+    public StreamingTileArchive(TileUploadQueue queue, int level) {
+        this.queue = queue;
+        this.level = level;
+
+        create();
+    }
+
+    @Override
+    public boolean create() {
+        return true;
+    }
+
+    @Override
+    public boolean addTile(String tileName, byte[] data) {
+        synchronized (this) {
+            pending++;
+        }
+
+        try {
+            queue.put(level, tileName, data, this::committed);
+        } catch (InterruptedException e) {
+            logger.error("Interrupted while adding {} to upload queue", tileName);
+            committed(false);
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Tiles are committed as they are added, so there is no archive file to save. Waits until
+     * every tile added to this archive has been committed.
+     *
+     * @return null
+     */
+    @Override
+    public File save() {
+        synchronized (this) {
+            try {
+                while (pending > 0) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return true if every tile added to this archive has been committed successfully.
+     */
+    public synchronized boolean isCommitted() {
+        return pending == 0 && failed == 0;
+    }
+
+    private synchronized void committed(boolean success) {
+        if (!success) {
+            failed++;
+        }
+
+        pending--;
+        notifyAll();
+    }
+}
@@ -26,7 +26,7 @@ public interface TileArchive {
     /**
      * Saves the archive to disk.
      *
-     * @return File archive file.
+     * @return File archive file or null if the tiles were committed to storage directly.
      */
     File save();
 
@@ -1,36 +1,124 @@
 package fi.ylihallila.server.controllers;
 
+import com.fasterxml.jackson.core.type.TypeReference;
 import fi.ylihallila.server.authentication.Authenticator;
 import fi.ylihallila.server.commons.Roles;
 import fi.ylihallila.server.exceptions.UnprocessableEntityResponse;
 import fi.ylihallila.server.models.Slide;
+import fi.ylihallila.server.models.TilerStatus;
 import fi.ylihallila.server.models.User;
+import fi.ylihallila.server.generators.TileEncoders;
+import fi.ylihallila.server.generators.TileFormat;
+import fi.ylihallila.server.generators.TileLayout;
+import fi.ylihallila.server.generators.TileRenderer;
+import fi.ylihallila.server.archivers.PackedTileArchive;
+import fi.ylihallila.server.storage.PackedPyramid;
+import fi.ylihallila.server.storage.StorageProvider;
 import fi.ylihallila.server.util.Constants;
 import fi.ylihallila.server.util.OpenSlideCache;
+import fi.ylihallila.server.util.TileCache;
 import fi.ylihallila.server.util.Util;
 import io.javalin.apibuilder.CrudHandler;
 import io.javalin.http.*;
 import io.javalin.plugin.openapi.annotations.*;
 import org.hibernate.Session;
+import org.eclipse.jetty.server.HttpOutput;
 import org.jetbrains.annotations.NotNull;
 import org.openslide.OpenSlide;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.servlet.ServletOutputStream;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import static fi.ylihallila.server.util.Config.Config;
 
 public class SlideController extends Controller implements CrudHandler {
 
 	private Logger logger = LoggerFactory.getLogger(SlideController.class);
 
+	/**
+	 * Tiles and other files served from the tiles directory. Tiles are keyed by "tiles/{id}/{tile name}"
+	 * and other files by their path, so every key of a slide starts with "tiles/{id}".
+	 */
+	private static final TileCache tileCache = new TileCache(
+		Config.getBytes("cache.tiles.size"),
+		Config.getBoolean("cache.tiles.direct")
+	);
+
+	/**
+	 * Largest tile which is rendered on demand, to prevent a single request from reading a whole level.
+	 */
+	private static final int MAX_RENDERED_TILE_SIZE = 4096;
+
+	private static final Pattern DZI_TILE_PATTERN = Pattern.compile("(\\d+)_(\\d+)\\.(\\w+)");
+
+	/**
+	 * Tiles of pending slides currently being rendered, so that simultaneous requests for the same
+	 * tile render it only once.
+	 */
+	private static final Map<String, CompletableFuture<TileCache.Tile>> rendering = new ConcurrentHashMap<>();
+
+	/**
+	 * Adds rendered tiles to the tile cache after the response has been sent.
+	 */
+	private static final ExecutorService cacheWriter = Executors.newSingleThreadExecutor();
+
+	/**
+	 * Renders tiles of pending slides. Rendering uses the per-thread {@link fi.ylihallila.server.generators.TileBuffers TileBuffers},
+	 * so tiles are rendered on a few threads of their own instead of every request thread keeping its own buffers.
+	 */
+	private static final ExecutorService renderers = Executors.newFixedThreadPool(Config.getInt("cache.tiles.rendered.threads"));
+
+	/**
+	 * Tiling of slides which have been tiled, read from their properties.
+	 */
+	private static final Map<String, TiledSlide> tiledSlides = new ConcurrentHashMap<>();
+
+	/**
+	 * Storage of tiled slides, which is read from when the tiles of a slide aren't on the local disk.
+	 * The storage of the least recently read slide is dropped once there are storage.readers slides.
+	 */
+	private static final Map<String, StorageProvider> storages = Collections.synchronizedMap(
+		new LinkedHashMap<>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, StorageProvider> eldest) {
+				return size() > Config.getInt("storage.readers");
+			}
+		}
+	);
+
+	private final UploadController uploads = new UploadController();
+
 	@OpenApi(
 		tags = { "slide" },
-		summary = "Upload a chunk of a new slide. Slide will be created when all chunks are uploaded.",
+		summary = "Upload a chunk of a new slide. Slide will be created when all chunks are uploaded. See /slides/uploads for parallel uploads with checksums.",
 		queryParams = {
 			@OpenApiParam(name = "filename", required = true),
 			@OpenApiParam(name = "fileSize", type = Long.class, required = true),
@@ -46,39 +134,7 @@ public class SlideController extends Controller implements CrudHandler {
 		}
 	)
 	@Override public void create(@NotNull Context ctx) {
-		Allow(ctx, Roles.MANAGE_SLIDES);
-
-		String fileName = ctx.queryParam("filename");
-		long totalSize  = ctx.queryParam("fileSize", Long.class).get();
-		long buffer     = ctx.queryParam("chunkSize", Integer.class).get();
-		long index      = ctx.queryParam("chunk", Integer.class).get();
-
-		UploadedFile file = ctx.uploadedFile("file");
-
-		if (file == null) {
-			throw new UnprocessableEntityResponse("Slide not provided");
-		}
-
-		try {
-			logger.trace("Uploading slide chunk: {} [Size: {}, Buffer: {}, Index: {}]", fileName, totalSize, buffer, index);
-
-			byte[] data = file.getContent().readAllBytes();
-
-			RandomAccessFile writer = new RandomAccessFile(String.format(Constants.TEMP_FILE, fileName), "rw");
-			writer.seek(index * buffer);
-			writer.write(data, 0, data.length);
-			writer.close();
-
-			// The slide is fully uploaded we can start processing it.
-			if (Files.size(Path.of(String.format(Constants.TEMP_FILE, fileName))) == totalSize) {
-				processUploadedSlide(ctx, fileName);
-			}
-
-			ctx.status(200);
-		} catch (IOException e) {
-			logger.error("Error while generating tiles for slide", e);
-			throw new InternalServerErrorResponse(e.getMessage());
-		}
+		uploads.uploadFormChunk(ctx);
 	}
 
 	@OpenApi(
@@ -122,6 +178,18 @@ public class SlideController extends Controller implements CrudHandler {
 			logger.warn("Could not delete properties file for {} [{}]", id, e);
 		}
 
+		PackedPyramid.evict(id);
+		tiledSlides.remove(id);
+		storages.remove(id);
+		OpenSlideCache.evict(String.format(Constants.PENDING_SLIDES, id));
+		tileCache.invalidateAll("tiles/" + id);
+
+		try {
+			Files.deleteIfExists(Path.of(String.format(Constants.PACKED_TILES_FILE, id)));
+		} catch (IOException e) {
+			logger.warn("Could not delete tiles for {} [{}]", id, e);
+		}
+
 		ctx.status(200);
 
 		logger.info("Slide {} deleted by {}", id, Authenticator.getUsername(ctx).orElse("Unknown"));
@@ -145,14 +213,10 @@ public class SlideController extends Controller implements CrudHandler {
 			data.put("id", slide.getId());
 			data.put("owner", slide.getOwner());
 
-			File propertiesFile = new File(String.format(Constants.SLIDE_PROPERTIES_FILE, slide.getId()));
-
-			if (propertiesFile.exists()) {
-				try {
-					data.put("properties", Util.getMapper().readValue(propertiesFile, Map.class));
-				} catch (IOException e) {
-					logger.error("Error while trying to get properties for slide {}", slide.getId(), e);
-				}
+			try {
+				readSlideProperties(slide.getId()).ifPresent(properties -> data.put("properties", properties));
+			} catch (IOException e) {
+				logger.error("Error while trying to get properties for slide {}", slide.getId(), e);
 			}
 
 			return data;
@@ -241,33 +305,686 @@ public class SlideController extends Controller implements CrudHandler {
 		int tileWidth  = ctx.pathParam("tileWidth", Integer.class).get();
 		int tileHeight = ctx.pathParam("tileHeight", Integer.class).get();
 
-		String fileName = String.format(Constants.TILE_FILE_FORMAT, slide, tileX, tileY, level, tileWidth, tileHeight);
+		sendTile(ctx, slide, level, tileX, tileY, tileWidth, tileHeight);
+	}
+
+	@OpenApi(
+		tags = { "slide" },
+		summary = "Fetch the Deep Zoom descriptor of a slide tiled with the dzi layout",
+		pathParams = @OpenApiParam(name = "id", required = true),
+		responses = {
+			@OpenApiResponse(status = "200"),
+			@OpenApiResponse(status = "404")
+		},
+		method = HttpMethod.GET,
+		path = "/api/v0/slides/:id/dzi"
+	)
+	public void getDeepZoom(Context ctx) throws IOException {
+		TiledSlide slide = getTiledSlide(ctx.pathParam("id"), TileLayout.DZI);
+
+		ctx.contentType("application/xml").result(String.format(
+			"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+			"<Image xmlns=\"http://schemas.microsoft.com/deepzoom/2008\" Format=\"%s\" Overlap=\"%d\" TileSize=\"%d\">" +
+			"<Size Width=\"%d\" Height=\"%d\"/>" +
+			"</Image>",
+			slide.format.getExtension(), slide.overlap, slide.tileSize, slide.width, slide.height
+		));
+	}
+
+	@OpenApi(
+		tags = { "slide" },
+		summary = "Fetch a Deep Zoom tile of a slide tiled with the dzi layout",
+		pathParams = {
+			@OpenApiParam(name = "id", required = true),
+			@OpenApiParam(name = "level", type = Integer.class, required = true),
+			@OpenApiParam(name = "tile", required = true, description = "{column}_{row}.{format}"),
+		},
+		responses = {
+			@OpenApiResponse(status = "200"),
+			@OpenApiResponse(status = "404")
+		},
+		method = HttpMethod.GET,
+		path = "/api/v0/slides/:id/dzi_files/:level/:tile"
+	)
+	public void renderDeepZoomTile(Context ctx) throws Exception {
+		String id = ctx.pathParam("id");
+		TiledSlide slide = getTiledSlide(id, TileLayout.DZI);
+
+		Matcher matcher = DZI_TILE_PATTERN.matcher(ctx.pathParam("tile"));
+		int levels = TileLayout.getPowerOfTwoLevelCount(slide.width, slide.height);
+		int dziLevel = ctx.pathParam("level", Integer.class).get();
+
+		if (!matcher.matches() || !matcher.group(3).equalsIgnoreCase(slide.format.getExtension()) || dziLevel < 0 || dziLevel >= levels) {
+			throw new NotFoundResponse();
+		}
+
+		// Deep Zoom levels are numbered from the smallest level
+		int level = levels - 1 - dziLevel;
+		int column = Integer.parseInt(matcher.group(1));
+		int row = Integer.parseInt(matcher.group(2));
+
+		long downsample  = 1L << level;
+		long levelWidth  = (slide.width  + downsample - 1) / downsample;
+		long levelHeight = (slide.height + downsample - 1) / downsample;
+
+		if (column >= TileLayout.getTileCount(levelWidth, slide.tileSize) || row >= TileLayout.getTileCount(levelHeight, slide.tileSize)) {
+			throw new NotFoundResponse();
+		}
+
+		long x = TileLayout.getTileStart(column, slide.tileSize, slide.overlap);
+		long y = TileLayout.getTileStart(row,    slide.tileSize, slide.overlap);
+
+		sendTile(ctx, id, level,
+			Math.toIntExact(slide.originX + x * downsample),
+			Math.toIntExact(slide.originY + y * downsample),
+			(int) (TileLayout.getTileEnd(column, levelWidth,  slide.tileSize, slide.overlap) - x),
+			(int) (TileLayout.getTileEnd(row,    levelHeight, slide.tileSize, slide.overlap) - y)
+		);
+	}
+
+	@OpenApi(
+		tags = { "slide" },
+		summary = "Fetch the IIIF Image API information of a slide tiled with the iiif layout",
+		pathParams = @OpenApiParam(name = "id", required = true),
+		responses = {
+			@OpenApiResponse(status = "200"),
+			@OpenApiResponse(status = "404")
+		},
+		method = HttpMethod.GET,
+		path = "/api/v0/slides/:id/iiif/info.json"
+	)
+	public void getIIIFInfo(Context ctx) throws IOException {
+		String id = ctx.pathParam("id");
+		TiledSlide slide = getTiledSlide(id, TileLayout.IIIF);
+
+		List<Long> scaleFactors = new ArrayList<>();
 
-		if (Files.exists(Path.of(fileName), LinkOption.NOFOLLOW_LINKS)) {
-			logger.trace("Retrieving from disk [{}, {},{} / {} / {},{}]", fileName, tileX, tileY, level, tileWidth, tileHeight);
+		for (int level = 0; level < TileLayout.getPowerOfTwoLevelCount(slide.width, slide.height); level++) {
+			scaleFactors.add(1L << level);
+		}
+
+		Map<String, Object> info = new LinkedHashMap<>();
+		info.put("@context", "http://iiif.io/api/image/2/context.json");
+		info.put("@id", Config.getString("server.host") + "/api/v0/slides/" + id + "/iiif");
+		info.put("protocol", "http://iiif.io/api/image");
+		info.put("width", slide.width);
+		info.put("height", slide.height);
+		info.put("tiles", List.of(Map.of("width", slide.tileSize, "height", slide.tileSize, "scaleFactors", scaleFactors)));
+		info.put("profile", List.of(
+			"http://iiif.io/api/image/2/level0.json",
+			Map.of("formats", List.of(slide.format.getExtension()), "qualities", List.of("default"))
+		));
 
-			FileInputStream fis = new FileInputStream(Path.of(fileName).toString());
-			InputStream is = new ByteArrayInputStream(fis.readAllBytes());
+		ctx.contentType("application/json").result(Util.getMapper().writeValueAsString(info));
+	}
+
+	@OpenApi(
+		tags = { "slide" },
+		summary = "Fetch a IIIF Image API tile of a slide tiled with the iiif layout",
+		description = "Only the regions and sizes listed in info.json are supported, as the tiles are not rendered on demand.",
+		pathParams = {
+			@OpenApiParam(name = "id", required = true),
+			@OpenApiParam(name = "region", required = true, description = "full or x,y,w,h"),
+			@OpenApiParam(name = "size", required = true, description = "full, max, w, or w,h"),
+			@OpenApiParam(name = "rotation", required = true, description = "0"),
+			@OpenApiParam(name = "quality", required = true, description = "default.{format}"),
+		},
+		responses = {
+			@OpenApiResponse(status = "200"),
+			@OpenApiResponse(status = "400"),
+			@OpenApiResponse(status = "404")
+		},
+		method = HttpMethod.GET,
+		path = "/api/v0/slides/:id/iiif/:region/:size/:rotation/:quality"
+	)
+	public void renderIIIFTile(Context ctx) throws Exception {
+		String id = ctx.pathParam("id");
+		TiledSlide slide = getTiledSlide(id, TileLayout.IIIF);
 
-			ctx.status(200).contentType("image/jpg").result(is);
+		String quality = ctx.pathParam("quality");
 
-			is.close();
-			fis.close();
+		if (!ctx.pathParam("rotation").equals("0") || !(quality.equals("default." + slide.format.getExtension()) || quality.equals("color." + slide.format.getExtension()))) {
+			throw new BadRequestResponse("Only rotation 0 and default quality in " + slide.format.getExtension() + " are supported");
+		}
+
+		long x, y, width, height;
+		String region = ctx.pathParam("region");
+
+		if (region.equals("full")) {
+			x = 0;
+			y = 0;
+			width = slide.width;
+			height = slide.height;
+		} else {
+			String[] parts = region.split(",");
+
+			try {
+				x      = Long.parseLong(parts[0]);
+				y      = Long.parseLong(parts[1]);
+				width  = Long.parseLong(parts[2]);
+				height = Long.parseLong(parts[3]);
+			} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+				throw new BadRequestResponse("Invalid region: " + region);
+			}
+		}
+
+		String size = ctx.pathParam("size");
+		long scaledWidth;
+
+		if (size.equals("full") || size.equals("max")) {
+			scaledWidth = width;
+		} else {
+			try {
+				scaledWidth = Long.parseLong(size.substring(0, size.indexOf(',') < 0 ? size.length() : size.indexOf(',')));
+			} catch (NumberFormatException e) {
+				throw new BadRequestResponse("Invalid size: " + size);
+			}
+		}
+
+		// Find the level the requested tile belongs to
+		for (int level = 0; level < TileLayout.getPowerOfTwoLevelCount(slide.width, slide.height); level++) {
+			long downsample = 1L << level;
+			long tileSize = slide.tileSize * downsample;
+
+			if ((width + downsample - 1) / downsample != scaledWidth || x % tileSize != 0 || y % tileSize != 0
+					|| width != Math.min(tileSize, slide.width - x) || height != Math.min(tileSize, slide.height - y)) {
+				continue;
+			}
+
+			sendTile(ctx, id, level,
+				Math.toIntExact(slide.originX + x),
+				Math.toIntExact(slide.originY + y),
+				(int) scaledWidth,
+				(int) ((height + downsample - 1) / downsample)
+			);
+
+			return;
+		}
+
+		throw new NotFoundResponse();
+	}
+
+	/**
+	 * Sends a tile from any local storage, or renders it if the slide hasn't been tiled yet.
+	 *
+	 * @param level level of the tile.
+	 * @param tileX level 0 x coordinate of the tile.
+	 * @param tileY level 0 y coordinate of the tile.
+	 * @param tileWidth width of the tile on its level.
+	 * @param tileHeight height of the tile on its level.
+	 */
+	private void sendTile(Context ctx, String slide, int level, int tileX, int tileY, int tileWidth, int tileHeight) throws Exception {
+		TileFormat format = getTileFormat(slide);
+
+		String tileName = String.format(Constants.TILE_NAME_FORMAT, level, tileX, tileY, tileWidth, tileHeight, format.getExtension());
+		String key = "tiles/" + slide + "/" + tileName;
+
+		Optional<TileCache.Tile> cached = tileCache.get(key);
+
+		// Rendered tiles are only valid until the slide has been tiled
+		if (cached.isPresent() && cached.get().isRendered() && !Files.exists(Path.of(String.format(Constants.PENDING_SLIDES, slide)))) {
+			OpenSlideCache.evict(String.format(Constants.PENDING_SLIDES, slide));
+			tileCache.invalidate(key);
+			cached = Optional.empty();
+		}
+
+		if (cached.isPresent()) {
+			sendTile(ctx, cached.get(), format.getContentType());
+			return;
+		}
+
+		Optional<PackedPyramid> pyramid = PackedPyramid.get(slide);
+
+		if (pyramid.isPresent()) {
+			Optional<PackedTileArchive.Entry> entry = pyramid.get().getEntry(tileName);
+
+			if (entry.isEmpty()) {
+				logger.info("Couldn't find tile [{}, {},{} / {} / {},{}]", slide, tileX, tileY, level, tileWidth, tileHeight);
+				throw new NotFoundResponse();
+			}
+
+			String etag = "\"" + Long.toHexString(entry.get().getOffset()) + "-" + Integer.toHexString(entry.get().getLength()) + "\"";
+			String cacheControl = Config.getString("packed.cache.control");
+
+			if (!isModified(ctx, etag, pyramid.get().getLastModified(), cacheControl)) {
+				return;
+			}
+
+			// Packed tiles are served straight from the mapped pyramid, which the page cache already keeps
+			// in memory, so they're not copied to the tile cache
+			sendTile(ctx, pyramid.get().getTile(tileName).orElseThrow(NotFoundResponse::new), format.getContentType());
+			return;
+		}
+
+		String fileName = String.format(Constants.TILE_FILE_FORMAT, slide, level, tileName);
+
+		if (sendFile(ctx, Path.of(fileName), key, format.getContentType())) {
+			return;
+		}
+
+		Optional<ByteBuffer> remote = readRemoteTile(slide, level, tileName);
+
+		if (remote.isPresent()) {
+			// Tiles are never modified once committed, so the tile name and size identify it
+			String etag = "\"" + Integer.toHexString(key.hashCode()) + "-" + Integer.toHexString(remote.get().remaining()) + "\"";
+			TileCache.Tile tile = new TileCache.Tile(remote.get(), etag, 0, Config.getString("storage.mirror.cache.control"), false);
+
+			tileCache.put(key, tile);
+			sendTile(ctx, tile, format.getContentType());
+			return;
+		}
+
+		Optional<TileCache.Tile> rendered = renderPendingTile(slide, key, tileX, tileY, level, tileWidth, tileHeight);
+
+		if (rendered.isPresent()) {
+			sendTile(ctx, rendered.get(), format.getContentType());
 		} else {
 			logger.info("Couldn't find tile [{}, {},{} / {} / {},{}]", fileName, tileX, tileY, level, tileWidth, tileHeight);
 			throw new NotFoundResponse();
 		}
 	}
 
+	/**
+	 * Serves tiles and thumbnails from the tiles directory, such as tiles saved by {@link fi.ylihallila.server.storage.FlatFile FlatFile},
+	 * through the tile cache. Other files in the directory are not served.
+	 */
+	public void renderTileFile(Context ctx) throws IOException {
+		Path tiles = Path.of("tiles").toAbsolutePath().normalize();
+		Path path  = tiles.resolve(ctx.splat(0)).normalize();
+
+		if (!path.startsWith(tiles) || path.equals(tiles)) {
+			throw new NotFoundResponse();
+		}
+
+		// Only tiles and thumbnails are served, not e.g. the packed pyramids which are also in the tiles directory
+		String contentType = TileFormat.fromFileName(path.getFileName().toString())
+			.map(TileFormat::getContentType)
+			.orElseThrow(NotFoundResponse::new);
+
+		String key = "tiles/" + tiles.relativize(path).toString().replace(File.separatorChar, '/');
+
+		Optional<TileCache.Tile> cached = tileCache.get(key);
+
+		if (cached.isPresent()) {
+			sendTile(ctx, cached.get(), contentType);
+		} else if (!sendFile(ctx, path, key, contentType)) {
+			throw new NotFoundResponse();
+		}
+	}
+
+	@OpenApi(
+		tags = { "slide" },
+		summary = "Get hit rate and size of the tile cache",
+		responses = {
+			@OpenApiResponse(status = "200", content = @OpenApiContent(from = TileCache.Statistics.class)),
+			@OpenApiResponse(status = "403")
+		},
+		method = HttpMethod.GET,
+		path = "/api/v0/tiles/cache"
+	)
+	public void getTileCacheStatistics(Context ctx) {
+		Allow(ctx, Roles.ADMIN);
+
+		ctx.status(200).json(tileCache.getStatistics());
+	}
+
+
+	@OpenApi(
+		tags = { "slide" },
+		summary = "Get the tiling queue: slides being tiled and waiting to be tiled, with estimated completion times",
+		responses = {
+			@OpenApiResponse(status = "200", content = @OpenApiContent(from = TilerStatus.class)),
+			@OpenApiResponse(status = "404")
+		},
+		method = HttpMethod.GET,
+		path = "/api/v0/tiler"
+	)
+	public void getTilerStatus(Context ctx) {
+		File statusFile = new File(Constants.TILER_STATUS_FILE);
+
+		if (!statusFile.exists()) {
+			throw new NotFoundResponse("Tiler status not available");
+		}
+
+		try {
+			ctx.status(200).json(Util.getMapper().readValue(statusFile, TilerStatus.class));
+		} catch (IOException e) {
+			logger.error("Error while reading tiler status", e);
+			throw new InternalServerErrorResponse(e.getMessage());
+		}
+	}
+
 
 	/* Private API */
 
+	/**
+	 * Renders a tile of a slide which hasn't been tiled yet, so that slides can be viewed right
+	 * after they're uploaded. The tile is added to the tile cache in the background.
+	 *
+	 * @return encoded tile or empty if the slide isn't waiting to be tiled.
+	 */
+	private Optional<TileCache.Tile> renderPendingTile(String slide, String key, int tileX, int tileY, int level, int tileWidth, int tileHeight) throws Exception {
+		Path pending = Path.of(String.format(Constants.PENDING_SLIDES, slide));
+
+		if (!Files.exists(pending)) {
+			return Optional.empty();
+		}
+
+		if (tileWidth <= 0 || tileHeight <= 0 || tileWidth > MAX_RENDERED_TILE_SIZE || tileHeight > MAX_RENDERED_TILE_SIZE) {
+			throw new BadRequestResponse("Invalid tile size");
+		}
+
+		CompletableFuture<TileCache.Tile> future = new CompletableFuture<>();
+		CompletableFuture<TileCache.Tile> existing = rendering.putIfAbsent(key, future);
+
+		if (existing != null) {
+			return Optional.of(await(existing));
+		}
+
+		try {
+			TileCache.Tile tile = await(renderers.submit(() -> renderTile(pending, slide, tileX, tileY, level, tileWidth, tileHeight)));
+
+			future.complete(tile);
+			cacheWriter.execute(() -> tileCache.put(key, tile));
+
+			return Optional.of(tile);
+		} catch (Exception e) {
+			future.completeExceptionally(e);
+			throw e;
+		} finally {
+			rendering.remove(key, future);
+		}
+	}
+
+	/**
+	 * Renders a tile of a pending slide. Only called on {@link #renderers}.
+	 */
+	private TileCache.Tile renderTile(Path pending, String slide, int tileX, int tileY, int level, int tileWidth, int tileHeight) throws Exception {
+		try (OpenSlideCache.Handle handle = OpenSlideCache.acquire(pending.toString()).orElseThrow(NotFoundResponse::new)) {
+			OpenSlide openSlide = handle.get();
+
+			if (level < 0 || level >= openSlide.getLevelCount()) {
+				throw new NotFoundResponse();
+			}
+
+			logger.trace("Rendering tile [{}, {},{} / {} / {},{}]", slide, tileX, tileY, level, tileWidth, tileHeight);
+
+			byte[] data = TileEncoders.getDefault().forLevel(level).encode(TileRenderer.paint(
+				openSlide, level, tileX, tileY, tileWidth, tileHeight, TileRenderer.getBackgroundColor(openSlide)
+			)).toByteArray();
+
+			CRC32 crc = new CRC32();
+			crc.update(data);
+
+			// Rendered tiles may differ from generated tiles, so they're not cached as immutable
+			return new TileCache.Tile(
+				ByteBuffer.wrap(data), "\"r" + Long.toHexString(crc.getValue()) + "\"",
+				0, Config.getString("cache.tiles.rendered.control"), true
+			);
+		}
+	}
+
+	/**
+	 * Waits for a tile being rendered.
+	 *
+	 * @throws HttpResponseException if rendering failed with one, e.g. the tile doesn't exist.
+	 */
+	private static TileCache.Tile await(Future<TileCache.Tile> rendered) throws Exception {
+		try {
+			return rendered.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads a tile from remote storage, through the tile mirror if enabled. Only slides which have been
+	 * tiled are read, so requests for other slides, e.g. pending slides or unknown ids, never reach the storage.
+	 *
+	 * @return the tile or empty if the slide hasn't been tiled, or the storage provider is local or doesn't have the tile.
+	 */
+	private Optional<ByteBuffer> readRemoteTile(String slide, int level, String tileName) throws IOException {
+		if (getTiledSlide(slide).isEmpty()) {
+			return Optional.empty();
+		}
+
+		StorageProvider storage = storages.computeIfAbsent(slide, StorageProvider::forReading);
+
+		if (!storage.isRemote() || !storage.supportsReading()) {
+			return Optional.empty();
+		}
+
+		try {
+			return storage.readTile(slide, level, tileName);
+		} catch (IOException | RuntimeException e) {
+			logger.error("Error while reading tile {} of {} from {}", tileName, slide, storage, e);
+			return Optional.empty();
+		}
+	}
+
+	/**
+	 * Returns the format of the tiles of a slide. Pending slides are rendered in the default format.
+	 */
+	private TileFormat getTileFormat(String id) throws IOException {
+		return getTiledSlide(id).map(slide -> slide.format).orElse(TileEncoders.getDefault().getFormat());
+	}
+
+	/**
+	 * @return tiling of a slide or empty if it hasn't been tiled yet.
+	 */
+	private Optional<TiledSlide> getTiledSlide(String id) throws IOException {
+		TiledSlide slide = tiledSlides.get(id);
+
+		if (slide != null) {
+			return Optional.of(slide);
+		}
+
+		File propertiesFile = new File(String.format(Constants.SLIDE_PROPERTIES_FILE, id));
+
+		if (!propertiesFile.exists()) {
+			return Optional.empty();
+		}
+
+		slide = new TiledSlide(Util.getMapper().readValue(propertiesFile, new TypeReference<Map<String, String>>() {}));
+		tiledSlides.put(id, slide);
+
+		return Optional.of(slide);
+	}
+
+	/**
+	 * @throws NotFoundResponse if the slide hasn't been tiled with the given layout.
+	 */
+	private TiledSlide getTiledSlide(String id, TileLayout layout) throws IOException {
+		return getTiledSlide(id)
+			.filter(slide -> slide.layout == layout)
+			.orElseThrow(NotFoundResponse::new);
+	}
+
+	/**
+	 * Reads the properties of a slide. Slides which haven't been tiled yet get their properties
+	 * from OpenSlide, with tiles of the configured size rendered on demand by the tile endpoint
+	 * from the levels of the slide, like the OpenSlide layout.
+	 *
+	 * @return properties or empty if the slide has neither a properties file nor a pending slide.
+	 */
+	private Optional<Map<String, String>> readSlideProperties(String id) throws IOException {
+		File propertiesFile = new File(String.format(Constants.SLIDE_PROPERTIES_FILE, id));
+
+		if (propertiesFile.exists()) {
+			return Optional.of(Util.getMapper().readValue(propertiesFile, new TypeReference<Map<String, String>>() {}));
+		}
+
+		Path pending = Path.of(String.format(Constants.PENDING_SLIDES, id));
+
+		if (!Files.exists(pending)) {
+			return Optional.empty();
+		}
+
+		Map<String, String> properties;
+
+		try (OpenSlideCache.Handle handle = OpenSlideCache.acquire(pending.toString()).orElse(null)) {
+			if (handle == null) {
+				return Optional.empty();
+			}
+
+			properties = new HashMap<>(handle.get().getProperties());
+		}
+
+		properties.put("openslide.remoteserver.uri", Config.getString("server.host") + Constants.TILE_ENDPOINT.replace("{id}", id));
+		properties.put(Constants.TILE_FORMAT_PROPERTY, TileEncoders.getDefault().getFormat().getFormatName());
+		properties.put("openslide.level[0].tile-width", String.valueOf(Config.getInt("tiler.tile.size")));
+		properties.put("openslide.level[0].tile-height", String.valueOf(Config.getInt("tiler.tile.size")));
+		properties.put(Constants.TILE_LAYOUT_PROPERTY, TileLayout.OPENSLIDE.name().toLowerCase());
+
+		return Optional.of(properties);
+	}
+
+	/**
+	 * Sends a file from disk and adds it to the tile cache if it is small enough to be cached. Files are
+	 * never modified once written, so the modification time and size of the file are used as its entity tag.
+	 *
+	 * @param key key of the file in the tile cache.
+	 * @return false if the file doesn't exist.
+	 */
+	private boolean sendFile(Context ctx, Path path, String key, String contentType) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, LinkOption.NOFOLLOW_LINKS)) {
+			logger.trace("Retrieving from disk [{}]", path);
+
+			long lastModified = Files.getLastModifiedTime(path).toMillis();
+			long size = channel.size();
+
+			String etag = "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(size) + "\"";
+			String cacheControl = Config.getString("flatfile.cache.control");
+
+			if (!isModified(ctx, etag, lastModified, cacheControl)) {
+				return true;
+			}
+
+			// Files too large to be cached, e.g. packed pyramids, are streamed instead of read to the heap
+			if (tileCache.accepts(key, size)) {
+				ByteBuffer data = ByteBuffer.allocate((int) size);
+
+				while (data.hasRemaining() && channel.read(data) >= 0);
+				data.flip();
+
+				tileCache.put(key, new TileCache.Tile(data, etag, lastModified, cacheControl, false));
+				sendTile(ctx, data, contentType);
+			} else {
+				sendTile(ctx, channel, contentType);
+			}
+		} catch (NoSuchFileException e) {
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Sends a cached tile, or only its headers if the client already has it.
+	 */
+	private void sendTile(Context ctx, TileCache.Tile tile, String contentType) throws IOException {
+		if (isModified(ctx, tile.getEtag(), tile.getLastModified(), tile.getCacheControl())) {
+			sendTile(ctx, tile.getData(), contentType);
+		}
+	}
+
+	/**
+	 * Sets the caching headers of a tile response and checks the conditional headers of the request.
+	 * If-None-Match takes precedence over If-Modified-Since, as required by RFC 7232.
+	 *
+	 * @param etag strong entity tag of the tile.
+	 * @param lastModified modification time in milliseconds, or 0 if unknown.
+	 * @return false if the client has the current version, in which case 304 has been set as the status.
+	 */
+	private boolean isModified(Context ctx, String etag, long lastModified, String cacheControl) {
+		ctx.header("ETag", etag);
+		ctx.header("Cache-Control", cacheControl);
+
+		if (lastModified > 0) {
+			ctx.header("Last-Modified", DateTimeFormatter.RFC_1123_DATE_TIME.format(
+				Instant.ofEpochMilli(lastModified).atZone(ZoneOffset.UTC)
+			));
+		}
+
+		String ifNoneMatch = ctx.header("If-None-Match");
+
+		if (ifNoneMatch != null) {
+			for (String tag : ifNoneMatch.split(",")) {
+				tag = tag.trim();
+
+				if (tag.equals("*") || tag.equals(etag) || tag.equals("W/" + etag)) {
+					ctx.status(304);
+					return false;
+				}
+			}
+
+			return true;
+		}
+
+		String ifModifiedSince = ctx.header("If-Modified-Since");
+
+		if (ifModifiedSince != null && lastModified > 0) {
+			try {
+				long since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+
+				// HTTP dates have a precision of one second
+				if (lastModified / 1000 <= since / 1000) {
+					ctx.status(304);
+					return false;
+				}
+			} catch (DateTimeParseException e) {
+				logger.trace("Invalid If-Modified-Since header: {}", ifModifiedSince);
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Writes a tile straight to the Jetty response, bypassing Javalin's result stream. A mapped
+	 * or direct buffer is written to the socket without being copied to the heap first.
+	 */
+	private void sendTile(Context ctx, ByteBuffer tile, String contentType) throws IOException {
+		ctx.status(200).contentType(contentType);
+		ctx.res.setContentLength(tile.remaining());
+
+		ServletOutputStream out = ctx.res.getOutputStream();
+
+		if (out instanceof HttpOutput) {
+			((HttpOutput) out).sendContent(tile);
+		} else {
+			byte[] data = new byte[tile.remaining()];
+			tile.get(data);
+			out.write(data);
+		}
+	}
+
+	/**
+	 * Writes a tile file straight to the Jetty response, using Jetty's pooled buffers.
+	 */
+	private void sendTile(Context ctx, FileChannel channel, String contentType) throws IOException {
+		ctx.status(200).contentType(contentType);
+		ctx.res.setContentLength((int) channel.size());
+
+		ServletOutputStream out = ctx.res.getOutputStream();
+
+		if (out instanceof HttpOutput) {
+			((HttpOutput) out).sendContent(channel);
+		} else {
+			Channels.newInputStream(channel).transferTo(out);
+		}
+	}
+
 	private void getSlidePropertiesFromFile(Context ctx, String id) {
 		try {
-			File propertiesFile = new File(String.format(Constants.SLIDE_PROPERTIES_FILE, id));
+			Optional<Map<String, String>> properties = readSlideProperties(id);
 
-			if (propertiesFile.exists()) {
-				ctx.status(200).json(Util.getMapper().readValue(propertiesFile, Map.class));
+			if (properties.isPresent()) {
+				ctx.status(200).json(properties.get());
 			} else {
 				throw new NotFoundResponse();
 			}
@@ -278,8 +995,8 @@ public class SlideController extends Controller implements CrudHandler {
 	}
 
 	private void getSlidePropertiesFromOpenslide(Context ctx, String id) {
-		try {
-			Map<String, String> properties = OpenSlideCache.get(id).get().getProperties();
+		try (OpenSlideCache.Handle handle = OpenSlideCache.acquire(id).orElseThrow(NotFoundResponse::new)) {
+			Map<String, String> properties = handle.get().getProperties();
 
 			ctx.status(200).json(properties); // TODO: Test
 		} catch (Exception e) {
@@ -288,35 +1005,37 @@ public class SlideController extends Controller implements CrudHandler {
 		}
 	}
 
-	private void processUploadedSlide(Context ctx, String slideName) throws IOException {
-		Optional<OpenSlide> openSlide = OpenSlideCache.get(String.format(Constants.TEMP_FILE, slideName));
+	/**
+	 * How a slide was tiled, see {@link fi.ylihallila.server.generators.TileGenerator TileGenerator}.
+	 */
+	private static class TiledSlide {
 
-		if (openSlide.isEmpty()) {
-			logger.error("Error when processing uploaded file: Couldn't create OpenSlide instance."
-				+ "\n" + "Possible solutions: file was corrupted during upload or the file isn't supported by OpenSlide");
-			return;
-		} else {
-			logger.info("Processing slide {}, uploaded by {}", slideName, Authenticator.getUsername(ctx).orElse("Unknown"));
-		}
+		private final TileFormat format;
+		private final TileLayout layout;
 
-		String id = UUID.randomUUID().toString();
-		User user = Authenticator.getUser(ctx);
+		private final int tileSize;
+		private final int overlap;
 
-		// Add slide to database
+		/**
+		 * Level 0 coordinates of the top left corner of the tiled area and its size.
+		 */
+		private final long originX;
+		private final long originY;
+		private final long width;
+		private final long height;
 
-		Session session = ctx.use(Session.class);
-
-		Slide slide = new Slide();
-		slide.setName(slideName);
-		slide.setId(id);
-		slide.setOwner(user.getOrganization());
-		session.save(slide);
+		private TiledSlide(Map<String, String> properties) {
+			boolean cropped = Boolean.parseBoolean(properties.get(Constants.TILE_CROPPED_PROPERTY));
 
-		// Mark slide as pending tiling. See Tiler for further processing.
+			this.format   = TileFormat.of(properties.getOrDefault(Constants.TILE_FORMAT_PROPERTY, TileFormat.JPEG.getFormatName()));
+			this.layout   = TileLayout.of(properties.getOrDefault(Constants.TILE_LAYOUT_PROPERTY, TileLayout.OPENSLIDE.name()));
+			this.tileSize = Integer.parseInt(properties.getOrDefault("openslide.level[0].tile-width", "1024"));
+			this.overlap  = Integer.parseInt(properties.getOrDefault(Constants.TILE_OVERLAP_PROPERTY, "0"));
 
-		Files.move(
-			Path.of(String.format(Constants.TEMP_FILE, slideName)),
-			Path.of(String.format(Constants.PENDING_SLIDES, id))
-		);
+			this.originX = cropped ? Long.parseLong(properties.get(OpenSlide.PROPERTY_NAME_BOUNDS_X)) : 0;
+			this.originY = cropped ? Long.parseLong(properties.get(OpenSlide.PROPERTY_NAME_BOUNDS_Y)) : 0;
+			this.width   = cropped ? Long.parseLong(properties.get(OpenSlide.PROPERTY_NAME_BOUNDS_WIDTH))  : Long.parseLong(properties.get("openslide.level[0].width"));
+			this.height  = cropped ? Long.parseLong(properties.get(OpenSlide.PROPERTY_NAME_BOUNDS_HEIGHT)) : Long.parseLong(properties.get("openslide.level[0].height"));
+		}
 	}
 }
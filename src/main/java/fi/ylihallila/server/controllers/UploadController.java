@@ -0,0 +1,747 @@
+package fi.ylihallila.server.controllers;
+
+import fi.ylihallila.server.authentication.Authenticator;
+import fi.ylihallila.server.commons.Roles;
+import fi.ylihallila.server.exceptions.UnprocessableEntityResponse;
+import fi.ylihallila.server.models.Slide;
+import fi.ylihallila.server.models.UploadSession;
+import fi.ylihallila.server.models.User;
+import fi.ylihallila.server.storage.DirectUploads;
+import fi.ylihallila.server.util.Constants;
+import io.javalin.http.*;
+import io.javalin.plugin.openapi.annotations.*;
+import org.hibernate.Session;
+import org.openslide.OpenSlide;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+import static fi.ylihallila.server.util.Config.Config;
+
+/**
+ * Uploads of new slides. A slide is uploaded in chunks which can be sent in any order and in parallel,
+ * each with its own checksum. Chunks are streamed straight to their position in the file. Once every
+ * chunk has been received the upload is finalized, after which the slide is validated and queued for tiling.
+ *
+ * Uploads are persisted, so an interrupted upload is resumed by asking which chunks are missing and
+ * uploading only those. Uploads which haven't received any chunks within the expiry are deleted.
+ *
+ * If the storage provider supports it, a slide can instead be uploaded directly to object storage with
+ * a pre-signed URL for each chunk, so the slide doesn't pass through the server. The Tiler downloads
+ * the slide once the upload has been finalized.
+ */
+public class UploadController extends Controller {
+
+	private final Logger logger = LoggerFactory.getLogger(UploadController.class);
+
+	/**
+	 * CRC32C of a chunk as the base64 encoding of its big-endian bytes, like x-amz-checksum-crc32c.
+	 */
+	public static final String CHECKSUM_HEADER = "X-Checksum-CRC32C";
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final long EXPIRY = Config.getDuration("uploads.session.expiry", TimeUnit.MILLISECONDS);
+
+	private static final Duration URL_EXPIRY = Config.getDuration("uploads.direct.url.expiry");
+
+	private static final ThreadLocal<byte[]> buffers = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+	/**
+	 * Uploads in progress, by id.
+	 */
+	private static final Map<String, UploadSession> sessions = new ConcurrentHashMap<>();
+
+	static {
+		ScheduledExecutorService collector = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "UploadController-collector");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		long interval = Math.max(Duration.ofMinutes(1).toMillis(), Math.min(EXPIRY / 2, Duration.ofHours(1).toMillis()));
+		collector.scheduleWithFixedDelay(UploadController::collectExpired, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	@OpenApi(
+		tags = { "slide" },
+		summary = "Start uploading a new slide",
+		formParams = {
+			@OpenApiFormParam(name = "filename", required = true),
+			@OpenApiFormParam(name = "fileSize", type = Long.class, required = true),
+			@OpenApiFormParam(name = "chunkSize", type = Integer.class, required = true),
+			@OpenApiFormParam(name = "direct", type = Boolean.class),
+		},
+		responses = {
+			@OpenApiResponse(status = "201", content = @OpenApiContent(from = UploadSession.class)),
+			@OpenApiResponse(status = "400", description = "Invalid sizes or direct uploads are not supported by the storage provider"),
+			@OpenApiResponse(status = "401")
+		},
+		method = HttpMethod.POST,
+		path = "/api/v0/slides/uploads"
+	)
+	public void create(Context ctx) {
+		Allow(ctx, Roles.MANAGE_SLIDES);
+
+		String fileName = ctx.formParam("filename", String.class).get();
+		long totalSize  = ctx.formParam("fileSize", Long.class).get();
+		int chunkSize   = ctx.formParam("chunkSize", Integer.class).get();
+		boolean direct  = ctx.formParam("direct", Boolean.class, "false").get();
+
+		UploadSession upload;
+
+		if (direct) {
+			upload = createDirectSession(fileName, Authenticator.getUser(ctx), totalSize, chunkSize);
+		} else {
+			upload = createSession(UUID.randomUUID().toString(), fileName, Authenticator.getUser(ctx), totalSize, chunkSize);
+		}
+
+		logger.info("Upload {} of slide {} started by {} [Size: {}, Chunks: {}, Direct: {}]", upload.getId(), fileName,
+			Authenticator.getUsername(ctx).orElse("Unknown"), totalSize, upload.getChunkCount(), direct);
+
+		ctx.status(201).json(upload);
+	}
+
+	@OpenApi(
+		tags = { "slide" },
+		summary = "Get the chunks received for an upload",
+		pathParams = @OpenApiParam(name = "id", required = true),
+		responses = {
+			@OpenApiResponse(status = "200", content = @OpenApiContent(from = UploadSession.class)),
+			@OpenApiResponse(status = "403"),
+			@OpenApiResponse(status = "404")
+		},
+		method = HttpMethod.GET,
+		path = "/api/v0/slides/uploads/:id"
+	)
+	public void get(Context ctx) {
+		UploadSession upload = getSession(ctx);
+		syncParts(upload);
+
+		setUploadHeaders(ctx, upload);
+		ctx.status(200).json(upload);
+	}
+
+	@OpenApi(
+		tags = { "slide" },
+		summary = "Get the offset of an upload, in the headers Upload-Offset, Upload-Length and Upload-Expires like tus. "
+			+ "Upload-Offset is the number of bytes received from the start of the file without gaps.",
+		pathParams = @OpenApiParam(name = "id", required = true),
+		responses = {
+			@OpenApiResponse(status = "200"),
+			@OpenApiResponse(status = "403"),
+			@OpenApiResponse(status = "404")
+		},
+		method = HttpMethod.HEAD,
+		path = "/api/v0/slides/uploads/:id"
+	)
+	public void head(Context ctx) {
+		UploadSession upload = getSession(ctx);
+		syncParts(upload);
+
+		setUploadHeaders(ctx, upload);
+		ctx.status(200);
+	}
+
+	@OpenApi(
+		tags = { "slide" },
+		summary = "Get a pre-signed URL which a chunk of a direct upload is uploaded to with PUT. "
+			+ "The URL is valid until expiresAt, a Unix timestamp as milliseconds.",
+		pathParams = {
+			@OpenApiParam(name = "id", required = true),
+			@OpenApiParam(name = "chunk", type = Integer.class, required = true),
+		},
+		responses = {
+			@OpenApiResponse(status = "200"),
+			@OpenApiResponse(status = "400", description = "Invalid chunk or not a direct upload"),
+			@OpenApiResponse(status = "403"),
+			@OpenApiResponse(status = "404"),
+			@OpenApiResponse(status = "409", description = "Upload has been finalized")
+		},
+		method = HttpMethod.GET,
+		path = "/api/v0/slides/uploads/:id/:chunk/url"
+	)
+	public void getChunkUrl(Context ctx) {
+		UploadSession upload = getSession(ctx);
+		int chunk = ctx.pathParam("chunk", Integer.class).get();
+
+		if (!upload.isDirect()) {
+			throw new BadRequestResponse("Upload is not a direct upload, upload the chunk to the server");
+		}
+
+		if (!upload.isChunk(chunk)) {
+			throw new BadRequestResponse("Invalid chunk " + chunk + ", upload has " + upload.getChunkCount() + " chunks");
+		}
+
+		if (upload.isFinalized()) {
+			throw new ConflictResponse("Upload has already been finalized");
+		}
+
+		long expiresAt = System.currentTimeMillis() + URL_EXPIRY.toMillis();
+
+		upload.touch();
+
+		try {
+			URL url = getDirectUploads().getPartUrl(upload.getRemoteKey(), upload.getRemoteId(), chunk, URL_EXPIRY);
+
+			ctx.header("Cache-Control", "no-store");
+			ctx.status(200).json(Map.of(
+				"url", url.toString(),
+				"method", "PUT",
+				"expiresAt", expiresAt
+			));
+		} catch (IOException e) {
+			logger.error("Error while creating URL for chunk {} of upload {}", chunk, upload.getId(), e);
+			throw new InternalServerErrorResponse(e.getMessage());
+		}
+	}
+
+	@OpenApi(
+		tags = { "slide" },
+		summary = "Upload a chunk of a slide. The request body is the chunk.",
+		pathParams = {
+			@OpenApiParam(name = "id", required = true),
+			@OpenApiParam(name = "chunk", type = Integer.class, required = true),
+		},
+		headers = @OpenApiParam(name = CHECKSUM_HEADER, required = true, description = "Base64 encoded CRC32C of the chunk"),
+		responses = {
+			@OpenApiResponse(status = "200", content = @OpenApiContent(from = UploadSession.class)),
+			@OpenApiResponse(status = "400", description = "Chunk has the wrong length or checksum"),
+			@OpenApiResponse(status = "403"),
+			@OpenApiResponse(status = "404"),
+			@OpenApiResponse(status = "409", description = "Upload has been finalized or cancelled")
+		},
+		method = HttpMethod.PUT,
+		path = "/api/v0/slides/uploads/:id/:chunk"
+	)
+	public void uploadChunk(Context ctx) {
+		UploadSession upload = getSession(ctx);
+		int chunk = ctx.pathParam("chunk", Integer.class).get();
+
+		if (upload.isDirect()) {
+			throw new BadRequestResponse("Chunks of a direct upload are uploaded to object storage");
+		}
+
+		String header = ctx.header(CHECKSUM_HEADER);
+
+		if (header == null) {
+			throw new BadRequestResponse(CHECKSUM_HEADER + " header is required");
+		}
+
+		try {
+			writeChunk(upload, chunk, ctx.req.getInputStream(), parseChecksum(header));
+		} catch (ClosedChannelException e) {
+			throw new ConflictResponse("Upload has been cancelled");
+		} catch (IOException e) {
+			logger.error("Error while writing chunk {} of upload {}", chunk, upload.getId(), e);
+			throw new InternalServerErrorResponse(e.getMessage());
+		}
+
+		ctx.status(200).json(upload);
+	}
+
+	@OpenApi(
+		tags = { "slide" },
+		summary = "Finish an upload. The slide is created once every chunk has been received.",
+		pathParams = @OpenApiParam(name = "id", required = true),
+		responses = {
+			@OpenApiResponse(status = "201", description = "Id of the created slide"),
+			@OpenApiResponse(status = "403"),
+			@OpenApiResponse(status = "404"),
+			@OpenApiResponse(status = "409", description = "Chunks are missing or still being uploaded"),
+			@OpenApiResponse(status = "422", description = "File is not a supported slide")
+		},
+		method = HttpMethod.POST,
+		path = "/api/v0/slides/uploads/:id/finalize"
+	)
+	public void finish(Context ctx) {
+		UploadSession upload = getSession(ctx);
+		syncParts(upload);
+
+		if (!upload.finalizeUpload()) {
+			throw new ConflictResponse(upload.isFinalized()
+				? "Upload has already been finalized"
+				: "Upload is incomplete, " + upload.getMissing().size() + " chunks missing or being uploaded");
+		}
+
+		String id = finish(ctx, upload).orElseThrow(() ->
+			new UnprocessableEntityResponse("File is not a slide supported by OpenSlide"));
+
+		ctx.status(201).json(Map.of("id", id));
+	}
+
+	@OpenApi(
+		tags = { "slide" },
+		summary = "Cancel an upload",
+		pathParams = @OpenApiParam(name = "id", required = true),
+		responses = {
+			@OpenApiResponse(status = "200"),
+			@OpenApiResponse(status = "403"),
+			@OpenApiResponse(status = "404")
+		},
+		method = HttpMethod.DELETE,
+		path = "/api/v0/slides/uploads/:id"
+	)
+	public void delete(Context ctx) {
+		UploadSession upload = getSession(ctx);
+
+		discard(upload);
+
+		ctx.status(200);
+
+		logger.info("Upload {} of slide {} cancelled", upload.getId(), upload.getFilename());
+	}
+
+	/**
+	 * Writes a chunk uploaded as multipart form data with the chunk and file size as query parameters,
+	 * the way slides were uploaded before upload sessions. The session is identified by the user, file
+	 * name and sizes, and the slide is created as soon as the last chunk has been received.
+	 */
+	public void uploadFormChunk(Context ctx) {
+		Allow(ctx, Roles.MANAGE_SLIDES);
+
+		String fileName = ctx.queryParam("filename");
+		long totalSize  = ctx.queryParam("fileSize", Long.class).get();
+		int chunkSize   = ctx.queryParam("chunkSize", Integer.class).get();
+		int chunk       = ctx.queryParam("chunk", Integer.class).get();
+
+		UploadedFile file = ctx.uploadedFile("file");
+
+		if (fileName == null) {
+			throw new BadRequestResponse("Filename not provided");
+		}
+
+		if (file == null) {
+			throw new UnprocessableEntityResponse("Slide not provided");
+		}
+
+		User user = Authenticator.getUser(ctx);
+
+		String id = UUID.nameUUIDFromBytes(
+			String.join("/", user.getId(), fileName, String.valueOf(totalSize), String.valueOf(chunkSize)).getBytes(StandardCharsets.UTF_8)
+		).toString();
+
+		UploadSession upload = lookup(id).orElseGet(() -> createSession(id, fileName, user, totalSize, chunkSize));
+
+		logger.trace("Uploading slide chunk: {} [Size: {}, Buffer: {}, Index: {}]", fileName, totalSize, chunkSize, chunk);
+
+		try (InputStream content = file.getContent()) {
+			writeChunk(upload, chunk, content, null);
+		} catch (ClosedChannelException e) {
+			throw new ConflictResponse("Upload has been cancelled");
+		} catch (IOException e) {
+			logger.error("Error while writing chunk {} of slide {}", chunk, fileName, e);
+			throw new InternalServerErrorResponse(e.getMessage());
+		}
+
+		// Simultaneous chunks may both complete the upload, but only one can finalize it
+		if (upload.finalizeUpload() && finish(ctx, upload).isEmpty()) {
+			throw new UnprocessableEntityResponse("File is not a slide supported by OpenSlide");
+		}
+
+		ctx.status(200);
+	}
+
+	/* Private API */
+
+	private UploadSession createDirectSession(String fileName, User user, long totalSize, int chunkSize) {
+		validateFilename(fileName);
+
+		String id = UUID.randomUUID().toString();
+
+		UploadSession upload;
+
+		// The sizes are validated before the limits of the provider are checked against them
+		try {
+			upload = new UploadSession(id, fileName, user.getId(), totalSize, chunkSize);
+		} catch (IllegalArgumentException e) {
+			throw new BadRequestResponse(e.getMessage());
+		}
+
+		DirectUploads provider = getDirectUploads();
+
+		if (!provider.supportsDirectUpload()) {
+			throw new BadRequestResponse("Storage provider " + Config.getString("storage.provider") + " is not configured for direct uploads");
+		}
+
+		if (chunkSize < provider.getMinPartSize() && chunkSize < totalSize) {
+			throw new BadRequestResponse("Chunks of a direct upload must be at least " + provider.getMinPartSize() + " bytes");
+		}
+
+		if (upload.getChunkCount() > provider.getMaxParts()) {
+			throw new BadRequestResponse("Direct uploads can have at most " + provider.getMaxParts() + " chunks, use larger chunks");
+		}
+
+		try {
+			upload.setRemoteId(provider.createUpload(upload.getRemoteKey()));
+		} catch (IOException e) {
+			logger.error("Error while starting direct upload of slide {}", fileName, e);
+			throw new InternalServerErrorResponse(e.getMessage());
+		}
+
+		sessions.put(id, upload);
+		upload.save();
+
+		return upload;
+	}
+
+	private UploadSession createSession(String id, String fileName, User user, long totalSize, int chunkSize) {
+		validateFilename(fileName);
+
+		UploadSession upload;
+
+		try {
+			upload = new UploadSession(id, fileName, user.getId(), totalSize, chunkSize);
+		} catch (IllegalArgumentException e) {
+			throw new BadRequestResponse(e.getMessage());
+		}
+
+		UploadSession existing = sessions.putIfAbsent(id, upload);
+
+		if (existing != null) {
+			return existing;
+		}
+
+		upload.save();
+
+		return upload;
+	}
+
+	private void validateFilename(String fileName) {
+		if (fileName.isBlank() || Path.of(fileName).getFileName() == null || !Path.of(fileName).getFileName().toString().equals(fileName)) {
+			throw new BadRequestResponse("Invalid filename: " + fileName);
+		}
+	}
+
+	/**
+	 * @throws BadRequestResponse if the storage provider doesn't support direct uploads.
+	 */
+	private static DirectUploads getDirectUploads() {
+		return DirectUploads.getInstance().orElseThrow(() ->
+			new BadRequestResponse("Storage provider " + Config.getString("storage.provider") + " does not support direct uploads"));
+	}
+
+	/**
+	 * Marks the parts of a direct upload which have been uploaded to object storage as received.
+	 */
+	private void syncParts(UploadSession upload) {
+		if (!upload.isDirect() || upload.isFinalized()) {
+			return;
+		}
+
+		try {
+			upload.setReceived(getDirectUploads().listParts(upload.getRemoteKey(), upload.getRemoteId()));
+		} catch (IOException e) {
+			logger.error("Error while listing parts of upload {}", upload.getId(), e);
+			throw new InternalServerErrorResponse(e.getMessage());
+		}
+	}
+
+	/**
+	 * @return upload which can still receive chunks, loaded from the database if not in memory.
+	 */
+	private static Optional<UploadSession> lookup(String id) {
+		UploadSession upload = sessions.get(id);
+
+		if (upload == null) {
+			upload = UploadSession.find(id).filter(found -> !found.isFinalized()).orElse(null);
+
+			if (upload == null) {
+				return Optional.empty();
+			}
+
+			UploadSession existing = sessions.putIfAbsent(id, upload);
+			upload = existing != null ? existing : upload;
+		}
+
+		if (upload.expire(EXPIRY)) {
+			discard(upload);
+			return Optional.empty();
+		}
+
+		return Optional.of(upload);
+	}
+
+	private UploadSession getSession(Context ctx) {
+		Allow(ctx, Roles.MANAGE_SLIDES);
+
+		UploadSession upload = lookup(ctx.pathParam("id")).orElseThrow(NotFoundResponse::new);
+
+		if (!upload.getOwner().equals(Authenticator.getUser(ctx).getId())) {
+			throw new ForbiddenResponse();
+		}
+
+		return upload;
+	}
+
+	/**
+	 * Streams a chunk to its position in the file, computing its checksum on the way. The chunk is only
+	 * marked as received if it has the expected length and checksum. A chunk may be uploaded again,
+	 * e.g. if the client didn't receive the response for it. Chunks are forced to disk only once, when
+	 * the upload is closed after its last chunk, instead of after every chunk.
+	 *
+	 * @param expected expected CRC32C of the chunk, or null to skip verification.
+	 */
+	private void writeChunk(UploadSession upload, int chunk, InputStream in, Long expected) throws IOException {
+		if (!upload.isChunk(chunk)) {
+			throw new BadRequestResponse("Invalid chunk " + chunk + ", upload has " + upload.getChunkCount() + " chunks");
+		}
+
+		if (!upload.beginWrite()) {
+			throw new ConflictResponse("Upload has already been finalized");
+		}
+
+		boolean success = false;
+
+		try {
+			FileChannel channel = upload.getChannel();
+			Checksum checksum = new CRC32C();
+			byte[] buffer = buffers.get();
+
+			long position = upload.getChunkOffset(chunk);
+			long length = upload.getChunkLength(chunk);
+			long written = 0;
+
+			int read;
+
+			while ((read = in.read(buffer)) != -1) {
+				if (written + read > length) {
+					throw new BadRequestResponse("Chunk " + chunk + " is longer than " + length + " bytes");
+				}
+
+				checksum.update(buffer, 0, read);
+
+				ByteBuffer data = ByteBuffer.wrap(buffer, 0, read);
+
+				while (data.hasRemaining()) {
+					channel.write(data, position + written + data.position());
+				}
+
+				written += read;
+			}
+
+			if (written != length) {
+				throw new BadRequestResponse("Chunk " + chunk + " is " + written + " bytes, expected " + length);
+			}
+
+			if (expected != null && checksum.getValue() != expected) {
+				throw new BadRequestResponse("Checksum of chunk " + chunk + " does not match");
+			}
+
+			success = true;
+		} finally {
+			upload.endWrite(chunk, success);
+		}
+	}
+
+	private void setUploadHeaders(Context ctx, UploadSession upload) {
+		ctx.header("Upload-Offset", String.valueOf(upload.getOffset()));
+		ctx.header("Upload-Length", String.valueOf(upload.getSize()));
+		ctx.header("Upload-Expires", DateTimeFormatter.RFC_1123_DATE_TIME.format(
+			Instant.ofEpochMilli(upload.getExpiresAt(EXPIRY)).atZone(ZoneOffset.UTC)));
+		ctx.header("Cache-Control", "no-store");
+	}
+
+	/**
+	 * @param header base64 encoded big-endian CRC32C.
+	 */
+	private long parseChecksum(String header) {
+		try {
+			byte[] bytes = Base64.getDecoder().decode(header.trim());
+
+			if (bytes.length != Integer.BYTES) {
+				throw new IllegalArgumentException();
+			}
+
+			return Integer.toUnsignedLong(ByteBuffer.wrap(bytes).getInt());
+		} catch (IllegalArgumentException e) {
+			throw new BadRequestResponse("Invalid " + CHECKSUM_HEADER + " header: " + header);
+		}
+	}
+
+	/**
+	 * Closes a finalized upload and processes the uploaded slide. Invalid slides are deleted.
+	 *
+	 * @return id of the created slide or empty if the file is not a supported slide.
+	 */
+	private Optional<String> finish(Context ctx, UploadSession upload) {
+		sessions.remove(upload.getId());
+
+		if (upload.isDirect()) {
+			return Optional.of(finishDirect(ctx, upload));
+		}
+
+		try {
+			upload.close();
+
+			Optional<String> id = processUploadedSlide(ctx, upload.getPath(), upload.getFilename());
+
+			if (id.isEmpty()) {
+				Files.deleteIfExists(upload.getPath());
+			}
+
+			upload.delete();
+
+			return id;
+		} catch (IOException e) {
+			logger.error("Error while processing uploaded slide {}", upload.getFilename(), e);
+			throw new InternalServerErrorResponse(e.getMessage());
+		}
+	}
+
+	/**
+	 * Assembles a direct upload in object storage and leaves the slide for the Tiler to download. The slide
+	 * can't be opened before it has been downloaded, so it is validated by the Tiler instead.
+	 *
+	 * @return id of the created slide.
+	 */
+	private String finishDirect(Context ctx, UploadSession upload) {
+		try {
+			getDirectUploads().completeUpload(upload.getRemoteKey(), upload.getRemoteId(), upload.getChunkCount());
+
+			logger.info("Processing slide {}, uploaded directly by {}", upload.getFilename(), Authenticator.getUsername(ctx).orElse("Unknown"));
+
+			String id = UUID.randomUUID().toString();
+
+			// Written to a temporary file first, so the Tiler never reads a partial key
+			Path temp = Path.of(String.format(Constants.TEMP_FILE, id + ".remote"));
+			Files.writeString(temp, upload.getRemoteKey());
+			Files.move(temp, Path.of(String.format(Constants.REMOTE_SLIDES, id)), StandardCopyOption.ATOMIC_MOVE);
+
+			// The request transaction is committed even if the request fails, so the slide is only added once it's queued
+			createSlide(ctx, id, upload.getFilename());
+
+			upload.delete();
+
+			return id;
+		} catch (IOException e) {
+			logger.error("Error while completing direct upload of slide {}", upload.getFilename(), e);
+			throw new InternalServerErrorResponse(e.getMessage());
+		}
+	}
+
+	/**
+	 * Removes an upload and deletes its file, or its parts in object storage for direct uploads.
+	 */
+	private static void discard(UploadSession upload) {
+		sessions.remove(upload.getId());
+
+		try {
+			upload.close();
+			Files.deleteIfExists(upload.getPath());
+
+			if (upload.isDirect()) {
+				getDirectUploads().abortUpload(upload.getRemoteKey(), upload.getRemoteId());
+			}
+		} catch (IOException | BadRequestResponse e) {
+			LoggerFactory.getLogger(UploadController.class).warn("Could not delete upload {} [{}]", upload.getId(), e);
+		}
+
+		upload.delete();
+	}
+
+	/**
+	 * Deletes uploads which haven't received any chunks within the expiry, including finalized uploads
+	 * which were never deleted because processing them failed, and upload files left without an upload.
+	 */
+	private static void collectExpired() {
+		Logger logger = LoggerFactory.getLogger(UploadController.class);
+		long expiredBefore = System.currentTimeMillis() - EXPIRY;
+
+		try {
+			for (UploadSession upload : UploadSession.findUpdatedBefore(expiredBefore)) {
+				// Uploads in memory may have received chunks since they were last saved
+				UploadSession current = sessions.getOrDefault(upload.getId(), upload);
+
+				if (current.expire(EXPIRY)) {
+					logger.info("Deleting expired upload {} of slide {} [{} / {} chunks received]",
+						current.getId(), current.getFilename(), current.getReceivedCount(), current.getChunkCount());
+
+					discard(current);
+				}
+			}
+
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(Path.of(Constants.TEMP_FILE).getParent(), "*.upload")) {
+				for (Path file : files) {
+					String id = file.getFileName().toString().replace(".upload", "");
+
+					if (Files.getLastModifiedTime(file).toMillis() < expiredBefore && !sessions.containsKey(id) && UploadSession.find(id).isEmpty()) {
+						logger.info("Deleting orphaned upload file {}", file);
+						Files.deleteIfExists(file);
+					}
+				}
+			}
+		} catch (Exception e) {
+			logger.error("Error while deleting expired uploads", e);
+		}
+	}
+
+	/**
+	 * Validates an uploaded slide, adds it to the database and marks it pending tiling.
+	 *
+	 * @param file uploaded file.
+	 * @param slideName name of the slide.
+	 * @return id of the slide or empty if the file is not a supported slide.
+	 */
+	private Optional<String> processUploadedSlide(Context ctx, Path file, String slideName) throws IOException {
+		// The uploaded slide is only opened to validate it, so it isn't cached
+		try {
+			new OpenSlide(file.toFile()).close();
+		} catch (IOException e) {
+			logger.error("Error when processing uploaded file: Couldn't create OpenSlide instance."
+				+ "\n" + "Possible solutions: file was corrupted during upload or the file isn't supported by OpenSlide");
+			return Optional.empty();
+		}
+
+		logger.info("Processing slide {}, uploaded by {}", slideName, Authenticator.getUsername(ctx).orElse("Unknown"));
+
+		String id = UUID.randomUUID().toString();
+		createSlide(ctx, id, slideName);
+
+		// Mark slide as pending tiling. See Tiler for further processing.
+
+		Files.move(file, Path.of(String.format(Constants.PENDING_SLIDES, id)));
+
+		return Optional.of(id);
+	}
+
+	/**
+	 * Adds an uploaded slide to the database.
+	 */
+	private void createSlide(Context ctx, String id, String slideName) {
+		User user = Authenticator.getUser(ctx);
+
+		Session session = ctx.use(Session.class);
+
+		Slide slide = new Slide();
+		slide.setName(slideName);
+		slide.setId(id);
+		slide.setOwner(user.getOrganization());
+		session.save(slide);
+	}
+}
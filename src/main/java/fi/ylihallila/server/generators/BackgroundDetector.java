@@ -0,0 +1,104 @@
+package fi.ylihallila.server.generators;
+
+import java.awt.Color;
+
+/**
+ * Detects tiles which consist only of the slide background, i.e. empty glass. Tones within 5% of
+ * the background color are considered background on each channel and a total of 1% of the pixels
+ * can be entirely different for the tile to still be considered background.
+ *
+ * The channel thresholds are calculated once per slide, after which checking a tile is a single
+ * row-major pass over the tile pixels.
+ */
+public class BackgroundDetector {
+
+	private static final double TOLERANCE = 0.05;
+
+	private static final double MAX_DIFFERENT_PIXELS = 0.01;
+
+	/**
+	 * Pixels are counted in blocks of this size, so that the inner loop has no branches and can be
+	 * vectorized by the JIT compiler. The tile is rejected as soon as a block pushes the count of
+	 * differing pixels over the limit.
+	 */
+	private static final int BLOCK_SIZE = 4096;
+
+	private final Color background;
+
+	private final int minRed,   maxRed;
+	private final int minGreen, maxGreen;
+	private final int minBlue,  maxBlue;
+
+	public BackgroundDetector(Color background) {
+		this.background = background;
+
+		this.minRed   = clamp(background.getRed()   * (1 - TOLERANCE));
+		this.maxRed   = clamp(background.getRed()   * (1 + TOLERANCE));
+		this.minGreen = clamp(background.getGreen() * (1 - TOLERANCE));
+		this.maxGreen = clamp(background.getGreen() * (1 + TOLERANCE));
+		this.minBlue  = clamp(background.getBlue()  * (1 - TOLERANCE));
+		this.maxBlue  = clamp(background.getBlue()  * (1 + TOLERANCE));
+	}
+
+	/**
+	 * @return background color of the slide.
+	 */
+	public Color getBackground() {
+		return background;
+	}
+
+	/**
+	 * Checks if the tile can be considered background.
+	 *
+	 * @param pixels tile pixels as (A)RGB in row-major order. The alpha channel is ignored.
+	 * @param length number of pixels in the tile.
+	 * @return true if to be considered background.
+	 */
+	public boolean isBackground(int[] pixels, int length) {
+		int maxPixelsDifferent = (int) Math.ceil(MAX_DIFFERENT_PIXELS * length);
+		int pixelsNotBackground = 0;
+
+		for (int start = 0; start < length; start += BLOCK_SIZE) {
+			int end = Math.min(start + BLOCK_SIZE, length);
+
+			for (int i = start; i < end; i++) {
+				int pixel = pixels[i];
+
+				int r = (pixel >> 16) & 0xFF;
+				int g = (pixel >> 8)  & 0xFF;
+				int b =  pixel        & 0xFF;
+
+				// Any channel outside of its range makes one of the differences negative
+				pixelsNotBackground += ((r - minRed)   | (maxRed   - r) |
+				                        (g - minGreen) | (maxGreen - g) |
+				                        (b - minBlue)  | (maxBlue  - b)) >>> 31;
+			}
+
+			if (pixelsNotBackground > maxPixelsDifferent) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Checks if a single pixel is within the background color range.
+	 *
+	 * @param pixel pixel as (A)RGB. The alpha channel is ignored.
+	 * @return true if the pixel is background.
+	 */
+	public boolean isBackground(int pixel) {
+		int r = (pixel >> 16) & 0xFF;
+		int g = (pixel >> 8)  & 0xFF;
+		int b =  pixel        & 0xFF;
+
+		return r >= minRed   && r <= maxRed   &&
+		       g >= minGreen && g <= maxGreen &&
+		       b >= minBlue  && b <= maxBlue;
+	}
+
+	private int clamp(double v) {
+		return v < 0 ? 0 : (v > 255 ? 255 : (int) v);
+	}
+}
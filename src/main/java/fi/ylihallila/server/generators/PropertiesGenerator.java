@@ -2,7 +2,6 @@ package fi.ylihallila.server.generators;
 
 import com.google.gson.GsonBuilder;
 import fi.ylihallila.server.util.OpenSlideCache;
-import org.openslide.OpenSlide;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -19,14 +18,18 @@ public class PropertiesGenerator {
 
     public PropertiesGenerator(String slideName) {
         try {
-            Optional<OpenSlide> openSlide = OpenSlideCache.get(slideName);
+            Optional<OpenSlideCache.Handle> handle = OpenSlideCache.acquire(slideName);
 
-            if (openSlide.isEmpty()) {
+            if (handle.isEmpty()) {
                 logger.error("Couldn't find slide: " + slideName);
                 return;
             }
 
-            Map<String, String> properties = new HashMap<>(openSlide.get().getProperties());
+            Map<String, String> properties;
+
+            try (OpenSlideCache.Handle openSlide = handle.get()) {
+                properties = new HashMap<>(openSlide.get().getProperties());
+            }
             properties.put("openslide.remoteserver.uri", "");
 
             String json = new GsonBuilder().setPrettyPrinting().create().toJson(properties);
@@ -0,0 +1,345 @@
+package fi.ylihallila.server.generators;
+
+import fi.ylihallila.server.archivers.TileArchive;
+import fi.ylihallila.server.util.Constants;
+import org.openslide.OpenSlide;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Generates every power of two level of a slide while reading only its full resolution level from
+ * OpenSlide. Each tile is the 2x2 box filtered reduction of the four tiles below it, so the pyramid
+ * is built as a quadtree: a tile is generated once its four children have been, after which the
+ * children are no longer needed. Only the tiles on the path being generated are kept in memory.
+ *
+ * Tiles without tissue are neither read nor stored, and are filled with the background color
+ * when the tiles above them are reduced.
+ */
+public class PyramidReducer {
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private static final long REPORT_INTERVAL = 1000;
+
+	private final OpenSlide openSlide;
+	private final List<TileLayout.Level> levels;
+	private final int tileSize;
+
+	private final long originX;
+	private final long originY;
+
+	private final Color background;
+	private final BackgroundDetector backgroundDetector;
+	private final TissueMask tissueMask;
+
+	private final TileEncoders encoders;
+	private final Map<Integer, TileArchive> archives;
+
+	private final AtomicInteger generated = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+
+	/**
+	 * @param levels power of two levels, largest first, with a downsample of 2^index.
+	 * @param tileSize width and height of tiles, must be even.
+	 * @param originX level 0 x coordinate of the tiled area.
+	 * @param originY level 0 y coordinate of the tiled area.
+	 * @param background background color of the slide or null.
+	 * @param backgroundDetector detector used to skip tiles with only background, or null.
+	 * @param tissueMask mask used to skip tiles without tissue, or null.
+	 * @param archives archives of the levels which should be stored, by level index.
+	 */
+	public PyramidReducer(OpenSlide openSlide, List<TileLayout.Level> levels, int tileSize, long originX, long originY,
+	                      Color background, BackgroundDetector backgroundDetector, TissueMask tissueMask,
+	                      TileEncoders encoders, Map<Integer, TileArchive> archives) {
+		if (tileSize % 2 != 0) {
+			throw new IllegalArgumentException("Tile size must be even, was " + tileSize);
+		}
+
+		this.openSlide = openSlide;
+		this.levels = levels;
+		this.tileSize = tileSize;
+		this.originX = originX;
+		this.originY = originY;
+		this.background = background;
+		this.backgroundDetector = backgroundDetector;
+		this.tissueMask = tissueMask;
+		this.encoders = encoders;
+		this.archives = archives;
+	}
+
+	/**
+	 * Generates every level and waits until they're done.
+	 */
+	public void run(ForkJoinPool executor) throws InterruptedException {
+		long startTime = System.currentTimeMillis();
+
+		// The largest level with a single tile is the root of the quadtree
+		int root = 0;
+
+		while (TileLayout.getTileCount(levels.get(root).getWidth(), tileSize) > 1
+				|| TileLayout.getTileCount(levels.get(root).getHeight(), tileSize) > 1) {
+			root++;
+		}
+
+		ForkJoinTask<int[]> task = executor.submit(new Tile(root, 0, 0));
+
+		while (!task.isDone()) {
+			try {
+				task.get(REPORT_INTERVAL, TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				System.out.print("\rProcessing tiles [generated " + generated.get() + " tiles; "
+					+ String.format("%.1f", getTilesPerSecond(startTime)) + " tiles/s]");
+			} catch (ExecutionException | CancellationException e) {
+				// Thrown again by join() below
+			}
+		}
+
+		// The task may complete between a timeout and checking isDone(), so the result is always read here
+		int[] pixels;
+
+		try {
+			pixels = task.join();
+		} catch (RuntimeException | Error e) {
+			logger.error("Error while reducing pyramid", e);
+			failed.incrementAndGet();
+			return;
+		}
+
+		// Levels smaller than a tile have a single tile each, reduced from the one below
+		TileLayout.Level previous = levels.get(root);
+
+		for (int i = root + 1; i < levels.size() && pixels != null; i++) {
+			TileLayout.Level level = levels.get(i);
+			int[] reduced = new int[(int) (level.getWidth() * level.getHeight())];
+
+			reduce(pixels, (int) previous.getWidth(), (int) previous.getHeight(), reduced, (int) level.getWidth(), 0, 0);
+
+			store(level, 0, 0, (int) level.getWidth(), (int) level.getHeight(), reduced);
+
+			pixels = reduced;
+			previous = level;
+		}
+
+		System.out.print("\r");
+		logger.info("Generated {} tiles for {} levels in {} seconds [{} tiles/s, {} failed]",
+			generated.get(), levels.size(), (System.currentTimeMillis() - startTime) / 1000.0,
+			String.format("%.1f", getTilesPerSecond(startTime)), failed.get());
+	}
+
+	/**
+	 * @return true if every tile was generated without errors.
+	 */
+	public boolean isComplete() {
+		return failed.get() == 0;
+	}
+
+	public int getGenerated() {
+		return generated.get();
+	}
+
+	private double getTilesPerSecond(long startTime) {
+		double seconds = (System.currentTimeMillis() - startTime) / 1000.0;
+
+		return seconds > 0 ? generated.get() / seconds : 0;
+	}
+
+	/**
+	 * Reduces an image to half its size with a 2x2 box filter and writes it to a region of another image.
+	 * The last row and column of an image with an odd size are averaged with themselves.
+	 *
+	 * @param source RGB pixels of the image to reduce.
+	 * @param sourceWidth width of the image to reduce.
+	 * @param sourceHeight height of the image to reduce.
+	 * @param target RGB pixels of the image to write to.
+	 * @param targetWidth width of the image to write to.
+	 * @param offsetX x coordinate in the target of the reduced image.
+	 * @param offsetY y coordinate in the target of the reduced image.
+	 */
+	public static void reduce(int[] source, int sourceWidth, int sourceHeight, int[] target, int targetWidth, int offsetX, int offsetY) {
+		int width  = (sourceWidth  + 1) / 2;
+		int height = (sourceHeight + 1) / 2;
+
+		for (int y = 0; y < height; y++) {
+			int row0 = 2 * y * sourceWidth;
+			int row1 = Math.min(2 * y + 1, sourceHeight - 1) * sourceWidth;
+			int out  = (offsetY + y) * targetWidth + offsetX;
+
+			for (int x = 0; x < width; x++) {
+				int x0 = 2 * x;
+				int x1 = Math.min(2 * x + 1, sourceWidth - 1);
+
+				int a = source[row0 + x0];
+				int b = source[row0 + x1];
+				int c = source[row1 + x0];
+				int d = source[row1 + x1];
+
+				int r = (((a >> 16) & 0xFF) + ((b >> 16) & 0xFF) + ((c >> 16) & 0xFF) + ((d >> 16) & 0xFF) + 2) >> 2;
+				int g = (((a >> 8)  & 0xFF) + ((b >> 8)  & 0xFF) + ((c >> 8)  & 0xFF) + ((d >> 8)  & 0xFF) + 2) >> 2;
+				int bl = ((a & 0xFF) + (b & 0xFF) + (c & 0xFF) + (d & 0xFF) + 2) >> 2;
+
+				target[out + x] = (r << 16) | (g << 8) | bl;
+			}
+		}
+	}
+
+	/**
+	 * Encodes and stores a tile, unless its level is not stored or it contains only background.
+	 */
+	private void store(TileLayout.Level level, long x, long y, int width, int height, int[] pixels) {
+		TileArchive archive = archives.get(level.getIndex());
+
+		generated.incrementAndGet();
+
+		if (archive == null || (backgroundDetector != null && backgroundDetector.isBackground(pixels, pixels.length))) {
+			return;
+		}
+
+		try {
+			BufferedImage img = TileBuffers.get().getImage(width, height);
+			System.arraycopy(pixels, 0, TileBuffers.getPixels(img), 0, pixels.length);
+
+			TileEncoder encoder = encoders.forLevel(level.getIndex());
+
+			String tileName = String.format(Constants.TILE_NAME_FORMAT,
+				level.getIndex(),
+				originX + x * level.getDownsample(),
+				originY + y * level.getDownsample(),
+				width, height,
+				encoder.getFormat().getExtension()
+			);
+
+			// The archive logs the error
+			if (!archive.addTile(tileName, encoder.encode(img).toByteArray())) {
+				failed.incrementAndGet();
+			}
+		} catch (IOException e) {
+			logger.error("Error while encoding tile {},{} of level {}", x, y, level.getIndex(), e);
+			failed.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Generates a tile and the tiles below it.
+	 */
+	private class Tile extends RecursiveTask<int[]> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int level;
+		private final int column;
+		private final int row;
+
+		private Tile(int level, int column, int row) {
+			this.level = level;
+			this.column = column;
+			this.row = row;
+		}
+
+		/**
+		 * @return RGB pixels of the tile, or null if the tile has no tissue.
+		 */
+		@Override
+		protected int[] compute() {
+			TileLayout.Level tileLevel = levels.get(level);
+
+			long x = TileLayout.getTileStart(column, tileSize, 0);
+			long y = TileLayout.getTileStart(row,    tileSize, 0);
+
+			int width  = (int) (TileLayout.getTileEnd(column, tileLevel.getWidth(),  tileSize, 0) - x);
+			int height = (int) (TileLayout.getTileEnd(row,    tileLevel.getHeight(), tileSize, 0) - y);
+
+			long downsample = tileLevel.getDownsample();
+
+			if (tissueMask != null && !tissueMask.intersects(
+					originX + x * downsample, originY + y * downsample, width * downsample, height * downsample)) {
+				return null;
+			}
+
+			int[] pixels = level == 0 ? read(x, y, width, height) : reduceChildren(width, height);
+
+			if (pixels != null) {
+				store(tileLevel, x, y, width, height, pixels);
+			}
+
+			return pixels;
+		}
+
+		private int[] read(long x, long y, int width, int height) {
+			try {
+				BufferedImage img = TileRenderer.paint(openSlide, 0, originX + x, originY + y, width, height, background);
+
+				return TileBuffers.getPixels(img).clone();
+			} catch (IOException e) {
+				logger.error("Error while reading tile {},{} of level 0", x, y, e);
+				failed.incrementAndGet();
+
+				return null;
+			}
+		}
+
+		private int[] reduceChildren(int width, int height) {
+			TileLayout.Level below = levels.get(this.level - 1);
+
+			int columns = TileLayout.getTileCount(below.getWidth(),  tileSize);
+			int rows    = TileLayout.getTileCount(below.getHeight(), tileSize);
+
+			List<Tile> children = new ArrayList<>(4);
+
+			for (int dy = 0; dy < 2; dy++) {
+				for (int dx = 0; dx < 2; dx++) {
+					if (2 * column + dx < columns && 2 * row + dy < rows) {
+						children.add(new Tile(this.level - 1, 2 * column + dx, 2 * row + dy));
+					}
+				}
+			}
+
+			invokeAll(children);
+
+			int[] pixels = null;
+
+			for (Tile child : children) {
+				int[] childPixels = child.join();
+
+				if (childPixels == null) {
+					continue;
+				}
+
+				if (pixels == null) {
+					pixels = new int[width * height];
+
+					// Children without tissue are left as background
+					Arrays.fill(pixels, background == null ? 0 : background.getRGB() & 0xFFFFFF);
+				}
+
+				long childX = TileLayout.getTileStart(child.column, tileSize, 0);
+				long childY = TileLayout.getTileStart(child.row,    tileSize, 0);
+
+				reduce(childPixels,
+					(int) (TileLayout.getTileEnd(child.column, below.getWidth(),  tileSize, 0) - childX),
+					(int) (TileLayout.getTileEnd(child.row,    below.getHeight(), tileSize, 0) - childY),
+					pixels, width,
+					(child.column % 2) * tileSize / 2,
+					(child.row    % 2) * tileSize / 2
+				);
+			}
+
+			return pixels;
+		}
+	}
+}
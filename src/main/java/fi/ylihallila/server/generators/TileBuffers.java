@@ -0,0 +1,127 @@
+package fi.ylihallila.server.generators;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Per-thread buffers used by {@link TileWorker}. Almost every tile of a slide is the same size,
+ * so instead of allocating new images and output streams for every tile each worker thread keeps
+ * its own set and reuses them for every tile it processes.
+ *
+ * The buffers live as long as their thread, so they must only be used on a bounded set of threads,
+ * such as the tiler's worker pool, and never on request threads.
+ */
+public class TileBuffers {
+
+	private static final BufferedImage RGB = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+
+	private static final ThreadLocal<TileBuffers> buffers = ThreadLocal.withInitial(TileBuffers::new);
+
+	/**
+	 * Tiles on the right and bottom edges of a level are smaller than the rest, so a thread
+	 * may need a few differently sized images. Only the most recently used ones are kept.
+	 */
+	private static final int MAX_IMAGES = 4;
+
+	/**
+	 * Initial size of the encoder output buffer. The buffer grows to fit the largest encoded tile
+	 * and stays that size for the rest of the thread's lifetime.
+	 */
+	private static final int INITIAL_OUTPUT_SIZE = 256 * 1024;
+
+	private final Map<Long, BufferedImage> images = new LinkedHashMap<>(MAX_IMAGES, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, BufferedImage> eldest) {
+			return size() > MAX_IMAGES;
+		}
+	};
+
+	private final ByteArrayOutputStream output = new ByteArrayOutputStream(INITIAL_OUTPUT_SIZE);
+
+	/**
+	 * Pixels of the band of tiles last read by this thread. Grows to fit the largest band.
+	 */
+	private int[] band = new int[0];
+
+	private TileBuffers() {}
+
+	/**
+	 * @return buffers of the current thread.
+	 */
+	public static TileBuffers get() {
+		return buffers.get();
+	}
+
+	/**
+	 * Returns a {@link BufferedImage#TYPE_INT_RGB} image of given size. The image is shared by every
+	 * tile of the same size processed on this thread, so its contents are undefined.
+	 *
+	 * @param width width of the image.
+	 * @param height height of the image.
+	 * @return reusable image.
+	 */
+	public BufferedImage getImage(int width, int height) {
+		long key = ((long) width << 32) | (height & 0xFFFFFFFFL);
+
+		return images.computeIfAbsent(key, k -> new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB));
+	}
+
+	/**
+	 * Returns a pixel array for reading a band of tiles. The array is shared by every band processed
+	 * on this thread, so its contents are undefined and it may be longer than requested.
+	 *
+	 * @param length number of pixels needed.
+	 * @return reusable pixel array.
+	 */
+	public int[] getBand(int length) {
+		if (band.length < length) {
+			band = new int[length];
+		}
+
+		return band;
+	}
+
+	/**
+	 * Returns an empty output stream for encoding a tile. The stream is reused by the next tile
+	 * processed on this thread, so its contents must be copied before that.
+	 *
+	 * @return reusable output stream.
+	 */
+	public ByteArrayOutputStream getOutput() {
+		output.reset();
+
+		return output;
+	}
+
+	/**
+	 * Returns the pixel array backing an image created by {@link #getImage(int, int)}.
+	 *
+	 * @param image image to get pixels for.
+	 * @return pixels in row-major order, one int per pixel.
+	 */
+	public static int[] getPixels(BufferedImage image) {
+		return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+	}
+
+	/**
+	 * Wraps RGB pixels in a {@link BufferedImage#TYPE_INT_RGB} compatible image without copying them.
+	 *
+	 * @param pixels pixels in row-major order, at least width * height long.
+	 * @return image backed by the given pixels.
+	 */
+	public static BufferedImage wrap(int[] pixels, int width, int height) {
+		DirectColorModel colorModel = (DirectColorModel) RGB.getColorModel();
+
+		WritableRaster raster = Raster.createPackedRaster(
+			new DataBufferInt(pixels, width * height), width, height, width, colorModel.getMasks(), null
+		);
+
+		return new BufferedImage(colorModel, raster, false, null);
+	}
+}
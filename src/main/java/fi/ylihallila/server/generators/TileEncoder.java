@@ -0,0 +1,100 @@
+package fi.ylihallila.server.generators;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Encodes tiles in a given format and quality. Looking up an ImageIO writer and creating its
+ * parameters for every tile is relatively expensive, so each thread keeps its own writer.
+ */
+public class TileEncoder {
+
+	static {
+		ImageIO.setUseCache(false);
+	}
+
+	private final TileFormat format;
+	private final float quality;
+
+	private final ThreadLocal<Writer> writers = ThreadLocal.withInitial(Writer::new);
+
+	/**
+	 * @param format format of the tiles.
+	 * @param quality compression quality between 0 and 1, ignored by lossless formats.
+	 * @throws IllegalArgumentException if there's no ImageIO writer for the format.
+	 */
+	public TileEncoder(TileFormat format, float quality) {
+		if (!format.isAvailable()) {
+			throw new IllegalArgumentException("No ImageIO writer for " + format.getFormatName());
+		}
+
+		if (quality < 0 || quality > 1) {
+			throw new IllegalArgumentException("Quality must be between 0 and 1, was " + quality);
+		}
+
+		this.format = format;
+		this.quality = quality;
+	}
+
+	public TileFormat getFormat() {
+		return format;
+	}
+
+	public float getQuality() {
+		return quality;
+	}
+
+	/**
+	 * Encodes an image.
+	 *
+	 * @return encoded image, only valid until the current thread encodes another image.
+	 */
+	public ByteArrayOutputStream encode(BufferedImage img) throws IOException {
+		ByteArrayOutputStream os = TileBuffers.get().getOutput();
+		Writer writer = writers.get();
+
+		try (ImageOutputStream ios = new MemoryCacheImageOutputStream(os)) {
+			writer.writer.setOutput(ios);
+			writer.writer.write(null, new IIOImage(img, null, null), writer.params);
+		} finally {
+			writer.writer.setOutput(null);
+		}
+
+		return os;
+	}
+
+	/**
+	 * An ImageIO writer and its parameters, owned by a single thread.
+	 */
+	private class Writer {
+
+		private final ImageWriter writer;
+		private final ImageWriteParam params;
+
+		private Writer() {
+			Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format.getFormatName());
+
+			this.writer = writers.next();
+			this.params = writer.getDefaultWriteParam();
+
+			if (format.isLossy() && params.canWriteCompressed()) {
+				params.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+
+				// Some plugins have no default compression type
+				if (params.getCompressionType() == null && params.getCompressionTypes().length > 0) {
+					params.setCompressionType(params.getCompressionTypes()[0]);
+				}
+
+				params.setCompressionQuality(quality);
+			}
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package fi.ylihallila.server.generators;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import static fi.ylihallila.server.util.Config.Config;
+
+/**
+ * Encoders used for the tiles of a slide. Every level is encoded in the same format, as the
+ * format is part of the tile URI of the slide, but each level can have its own quality. The
+ * most zoomed out levels are viewed the longest, so they can be encoded at a higher quality
+ * than the large, rarely viewed full resolution levels.
+ */
+public class TileEncoders {
+
+	private static final Logger logger = LoggerFactory.getLogger(TileEncoders.class);
+
+	private static volatile TileEncoders defaults;
+
+	private final TileFormat format;
+	private final float quality;
+	private final List<Float> levelQualities;
+
+	private final Map<Float, TileEncoder> encoders = new ConcurrentHashMap<>();
+
+	/**
+	 * @param format format of every level. JPEG is used if the format can't be written.
+	 * @param quality quality of levels without their own quality.
+	 * @param levelQualities quality of levels 0, 1, 2, ...
+	 */
+	public TileEncoders(TileFormat format, float quality, List<Float> levelQualities) {
+		if (!format.isAvailable()) {
+			logger.warn("No ImageIO writer for {} found, encoding tiles as JPEG", format.getFormatName());
+			format = TileFormat.JPEG;
+		}
+
+		this.format = format;
+		this.quality = quality;
+		this.levelQualities = List.copyOf(levelQualities);
+	}
+
+	/**
+	 * @return encoders configured by tiler.encoder.
+	 */
+	public static TileEncoders getDefault() {
+		if (defaults == null) {
+			defaults = new TileEncoders(
+				TileFormat.of(Config.getString("tiler.encoder.format")),
+				(float) Config.getDouble("tiler.encoder.quality"),
+				Config.getDoubleList("tiler.encoder.level.quality").stream()
+					.map(Double::floatValue)
+					.collect(Collectors.toList())
+			);
+		}
+
+		return defaults;
+	}
+
+	public TileFormat getFormat() {
+		return format;
+	}
+
+	/**
+	 * @return encoder for the tiles of a level.
+	 */
+	public TileEncoder forLevel(int level) {
+		float levelQuality = level < levelQualities.size() ? levelQualities.get(level) : quality;
+
+		return encoders.computeIfAbsent(levelQuality, q -> new TileEncoder(format, q));
+	}
+}
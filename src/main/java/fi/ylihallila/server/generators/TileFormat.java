@@ -0,0 +1,96 @@
+package fi.ylihallila.server.generators;
+
+import javax.imageio.ImageIO;
+import java.util.Optional;
+
+/**
+ * Image formats tiles can be encoded in. JPEG and PNG are always supported, WebP and AVIF only
+ * when an ImageIO plugin which can write them is on the classpath.
+ */
+public enum TileFormat {
+
+	JPEG("jpeg", "jpg",  "image/jpeg", true),
+	PNG ("png",  "png",  "image/png",  false),
+	WEBP("webp", "webp", "image/webp", true),
+	AVIF("avif", "avif", "image/avif", true);
+
+	private final String formatName;
+	private final String extension;
+	private final String contentType;
+	private final boolean lossy;
+
+	TileFormat(String formatName, String extension, String contentType, boolean lossy) {
+		this.formatName = formatName;
+		this.extension = extension;
+		this.contentType = contentType;
+		this.lossy = lossy;
+	}
+
+	/**
+	 * @return name of the format used to look up ImageIO writers.
+	 */
+	public String getFormatName() {
+		return formatName;
+	}
+
+	/**
+	 * @return file extension without the leading dot.
+	 */
+	public String getExtension() {
+		return extension;
+	}
+
+	public String getContentType() {
+		return contentType;
+	}
+
+	/**
+	 * @return true if the quality of the encoder affects this format.
+	 */
+	public boolean isLossy() {
+		return lossy;
+	}
+
+	/**
+	 * @return true if there's an ImageIO writer for this format.
+	 */
+	public boolean isAvailable() {
+		return ImageIO.getImageWritersByFormatName(formatName).hasNext();
+	}
+
+	/**
+	 * Parses a format by its name or extension, e.g. "jpeg" or "jpg".
+	 *
+	 * @throws IllegalArgumentException if the format is unknown.
+	 */
+	public static TileFormat of(String name) {
+		for (TileFormat format : values()) {
+			if (format.formatName.equalsIgnoreCase(name) || format.extension.equalsIgnoreCase(name)) {
+				return format;
+			}
+		}
+
+		throw new IllegalArgumentException("Unknown tile format: " + name);
+	}
+
+	/**
+	 * @return format matching the extension of a file or empty if it isn't a tile format.
+	 */
+	public static Optional<TileFormat> fromFileName(String fileName) {
+		int dot = fileName.lastIndexOf('.');
+
+		if (dot < 0) {
+			return Optional.empty();
+		}
+
+		String extension = fileName.substring(dot + 1);
+
+		for (TileFormat format : values()) {
+			if (format.extension.equalsIgnoreCase(extension) || format.formatName.equalsIgnoreCase(extension)) {
+				return Optional.of(format);
+			}
+		}
+
+		return Optional.empty();
+	}
+}
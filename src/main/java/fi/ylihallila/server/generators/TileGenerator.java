@@ -1,12 +1,12 @@
 package fi.ylihallila.server.generators;
 
 import com.google.gson.GsonBuilder;
+import fi.ylihallila.server.archivers.GuardedTileArchive;
+import fi.ylihallila.server.archivers.StreamingTileArchive;
 import fi.ylihallila.server.archivers.TileArchive;
-import fi.ylihallila.server.archivers.ZipTileArchive;
-import fi.ylihallila.server.storage.Allas;
-import fi.ylihallila.server.storage.FlatFile;
-import fi.ylihallila.server.storage.S3;
+import fi.ylihallila.server.models.TilingJob;
 import fi.ylihallila.server.storage.StorageProvider;
+import fi.ylihallila.server.storage.TileUploadQueue;
 import fi.ylihallila.server.util.Config;
 import fi.ylihallila.server.util.Constants;
 import org.apache.commons.compress.utils.FileNameUtils;
@@ -20,29 +20,35 @@ import java.awt.image.BufferedImage;
 import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.time.Duration;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.UUID;
 import java.util.concurrent.*;
 
 public class TileGenerator {
 
 	private final Logger logger = LoggerFactory.getLogger(getClass());
-	private final ForkJoinPool executor = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
-
-	private final OpenSlide openSlide;
+	private final ForkJoinPool executor;
 
 	/**
-	 * How long should the tile generation process take for one slide.
-	 *
-	 * After the duration specified any remaining tiles are ignored and the generated tiles are uploaded.
+	 * How levels are split into batches, saved with the batch checkpoints of a {@link TilingJob}.
+	 * Must be changed whenever the tiles of a batch change, so that old checkpoints are discarded.
 	 */
-	private final long TIMEOUT = Duration.ofMinutes(30).toMillis();
+	private static final String BATCH_LAYOUT = "rows/%d";
 
-	static {
-		ImageIO.setUseCache(false);
-	}
+	private final OpenSlide openSlide;
+	private final TileEncoders encoders;
+
+	private TileLayout layout;
+	private List<TileLayout.Level> levels;
+
+	private int tileSize;
+	private int overlap;
+	private boolean cropped;
+	private boolean derived;
 
 	// TODO: Catch exceptions so generation can try and continue.
 
@@ -55,6 +61,30 @@ public class TileGenerator {
 	}
 
 	public TileGenerator(File slide) throws IOException, InterruptedException {
+		this(slide, ForkJoinPool.commonPool(), null);
+	}
+
+	/**
+	 * @param slide slide to tile.
+	 * @param executor pool used to run the tile workers, possibly shared with other slides.
+	 * @param job job to resume from and save checkpoints to, or null to tile the whole slide.
+	 */
+	public TileGenerator(File slide, ForkJoinPool executor, TilingJob job) throws IOException, InterruptedException {
+		this(slide, executor, job, TileEncoders.getDefault());
+	}
+
+	/**
+	 * @param slide slide to tile.
+	 * @param executor pool used to run the tile workers, possibly shared with other slides.
+	 * @param job job to resume from and save checkpoints to, or null to tile the whole slide.
+	 * @param encoders format and quality of the tiles of this slide.
+	 * @throws IOException if any tile was cancelled or failed. The slide is kept and the levels which
+	 *                     weren't committed in full are generated again when the job is resumed.
+	 */
+	public TileGenerator(File slide, ForkJoinPool executor, TilingJob job, TileEncoders encoders) throws IOException, InterruptedException {
+		this.executor = executor;
+		this.encoders = encoders;
+
 		long startTime = System.currentTimeMillis();
 
 		openSlide = new OpenSlide(slide);
@@ -62,101 +92,332 @@ public class TileGenerator {
 		String id = getOrGenerateUUID(FileNameUtils.getBaseName(slide.getName()));
 
 		Color backgroundColor = getBackgroundColor();
+		BackgroundDetector backgroundDetector = backgroundColor == null ? null : new BackgroundDetector(backgroundColor);
+		TissueMask tissueMask = createTissueMask(backgroundColor);
 
-		int slideHeight = readIntegerProperty("openslide.level[0].height");
-		int slideWidth  = readIntegerProperty("openslide.level[0].width");
-		int levels      = readIntegerProperty("openslide.level-count");
+		layout = TileLayout.of(Config.Config.getString("tiler.layout"));
+		tileSize = Config.Config.getInt("tiler.tile.size");
+		overlap = Config.Config.getInt("tiler.tile.overlap");
+		cropped = Config.Config.getBoolean("tiler.bounds.crop") && openSlide.getProperties().containsKey(OpenSlide.PROPERTY_NAME_BOUNDS_WIDTH);
 
-		int tileHeight = 1024; //readIntegerPropertyOrDefault("openslide.level[0].tile-height", 256);
-		int tileWidth  = 1024; //readIntegerPropertyOrDefault("openslide.level[0].tile-width",  256);
-
-		int boundsX = 0; //readIntegerPropertyOrDefault(OpenSlide.PROPERTY_NAME_BOUNDS_X, 0);
-		int boundsY = 0; //readIntegerPropertyOrDefault(OpenSlide.PROPERTY_NAME_BOUNDS_Y, 0);
+		if (overlap > 0 && !layout.supportsOverlap()) {
+			logger.warn("Tile overlap is not supported by the {} layout, ignoring it", layout);
+			overlap = 0;
+		}
 
-		int boundsHeight = 0; //readIntegerPropertyOrDefault(OpenSlide.PROPERTY_NAME_BOUNDS_WIDTH, slideHeight);
-		int boundsWidth  = 0; //readIntegerPropertyOrDefault(OpenSlide.PROPERTY_NAME_BOUNDS_HEIGHT, slideWidth);
+		derived = Config.Config.getBoolean("tiler.levels.derive");
 
-		// These multipliers are used to calculate the levelHeight and levelWidth
-		// as only the level 0 boundHeight and boundWidth is known.
-		double boundsYMultiplier = 1;
-		double boundsXMultiplier = 1;
+		if (derived && (overlap > 0 || tileSize % 2 != 0)) {
+			logger.warn("Levels can only be derived from even sized tiles without overlap, reading every level from the slide");
+			derived = false;
+		}
 
-		if (boundsHeight > 0 && boundsWidth > 0) {
-			boundsYMultiplier = 1.0 * boundsHeight / slideHeight;
-			boundsXMultiplier = 1.0 * boundsWidth  / slideWidth;
+		// Derived levels share a single origin, which clients of the openslide layout don't know about
+		if (derived && cropped && layout == TileLayout.OPENSLIDE) {
+			logger.warn("Bounds can't be cropped when deriving levels with the openslide layout, tiling the whole slide");
+			cropped = false;
 		}
 
-		StorageProvider storage = switch (Config.Config.getString("storage.provider").toLowerCase()) {
-			case "aws" -> new S3.Builder()
-					.setConfigDefaults()
-					.setBucket(id)
-					.build();
-			case "allas" -> new Allas.Builder()
-					.setConfigDefaults()
-					.setContainer(id)
-					.build();
-			default -> new FlatFile();
-		};
+		// When cropping, only the bounds of the slide are tiled. Tiles are still named by their
+		// level 0 coordinates, see TileLayout#getLevels for how the tiles are aligned.
+		long originX = cropped ? readIntegerProperty(OpenSlide.PROPERTY_NAME_BOUNDS_X) : 0;
+		long originY = cropped ? readIntegerProperty(OpenSlide.PROPERTY_NAME_BOUNDS_Y) : 0;
+		long width   = cropped ? readIntegerProperty(OpenSlide.PROPERTY_NAME_BOUNDS_WIDTH)  : openSlide.getLevel0Width();
+		long height  = cropped ? readIntegerProperty(OpenSlide.PROPERTY_NAME_BOUNDS_HEIGHT) : openSlide.getLevel0Height();
+
+		levels = derived
+			? TileLayout.getPowerOfTwoLevels(openSlide, originX, originY, width, height)
+			: layout.getLevels(openSlide, originX, originY, width, height, cropped, tileSize);
+
+		logger.info("Generating {} levels of {}x{} tiles [layout: {}, overlap: {}, cropped: {}, derived: {}]", levels.size(), tileSize, tileSize, layout, overlap, cropped, derived);
+
+		StorageProvider storage = StorageProvider.fromConfig(id);
 
 		logger.info("Using {} as storage provider", storage);
+		logger.info("Encoding tiles as {}", encoders.getFormat());
+
+		// When streaming, tiles are uploaded while they're being generated instead of once per level.
+		TileUploadQueue uploadQueue = null;
+
+		if (Config.Config.getBoolean("tiler.streaming.enabled") && !storage.supportsStreaming()) {
+			logger.warn("{} does not support streaming tiles, committing archives instead", storage);
+		} else if (Config.Config.getBoolean("tiler.streaming.enabled")) {
+			uploadQueue = new TileUploadQueue(
+				storage, id,
+				Config.Config.getInt("tiler.streaming.queue.size"),
+				Config.Config.getInt("tiler.streaming.workers")
+			);
+		}
+
+		try {
+			if (derived) {
+				deriveLevels(id, storage, uploadQueue, job, originX, originY, backgroundColor, backgroundDetector, tissueMask);
+			} else {
+				generateLevels(id, storage, uploadQueue, job, backgroundDetector, tissueMask);
+			}
+		} finally {
+			// Queued tiles are uploaded and the upload workers stopped even if a level failed
+			if (uploadQueue != null) {
+				logger.debug("Waiting for tile uploads to finish");
+				uploadQueue.close();
+			}
+		}
 
-		for (int level = levels - 1; level >= 0; level--) {
-			int levelHeight = (int) (readIntegerProperty("openslide.level[" + level + "].height") * boundsYMultiplier);
-			int levelWidth  = (int) (readIntegerProperty("openslide.level[" + level + "].width")  * boundsXMultiplier);
-
-			int cols = (int) Math.ceil(1.0 * levelHeight / tileHeight);
-			int rows = (int) Math.ceil(1.0 * levelWidth  / tileWidth);
-
-			int downsample = (int) readDoubleProperty("openslide.level[" + level + "].downsample");
-
-			// TODO: Let StorageProvider choose which TileArchive to use
-			TileArchive tileArchive = new ZipTileArchive(id, level);
-
-			for (int row = 0; row <= rows; row++) {
-				for (int col = 0; col <= cols; col++) {
-					executor.execute(new TileWorker(
-						downsample, level, row, col,
-						boundsX, boundsY,
-						tileWidth, tileHeight,
-						slideWidth, slideHeight,
-						id,
-						backgroundColor,
-						openSlide,
-						tileArchive
-					));
+		generateThumbnail(id, storage);
+		generateProperties(id, storage);
+
+		logger.debug("Deleting original slide");
+		Files.delete(slide.toPath());
+
+		long endTime = System.currentTimeMillis();
+		System.out.print("\rTook " + (endTime - startTime) / 1000.0 + " seconds to generate & upload tiles.");
+	}
+
+	/**
+	 * Generates the levels of the layout, reading each level from the best matching level of the slide.
+	 * Every level is generated even if some tiles fail, so that only the incomplete levels are generated
+	 * again when the job is resumed.
+	 *
+	 * @throws IOException if any level has tiles which were cancelled or failed.
+	 */
+	private void generateLevels(String id, StorageProvider storage, TileUploadQueue uploadQueue, TilingJob job,
+	                            BackgroundDetector backgroundDetector, TissueMask tissueMask) throws IOException, InterruptedException {
+		int batchSize = Config.Config.getInt("tiler.checkpoint.batch.size");
+		long stallTimeout = Config.Config.getDuration("tiler.stall.timeout", TimeUnit.MILLISECONDS);
+
+		// Batch indices depend on how levels are split into batches, so the batches of a job saved
+		// with another split, e.g. by an older version or with another batch size, are generated again
+		if (job != null && job.setBatchLayout(String.format(BATCH_LAYOUT, batchSize))) {
+			logger.info("Batches of {} were saved with another batch layout, generating them again", id);
+		}
+
+		int incomplete = 0;
+
+		for (int i = levels.size() - 1; i >= 0; i--) {
+			TileLayout.Level level = levels.get(i);
+
+			int columns = TileLayout.getTileCount(level.getWidth(),  tileSize);
+			int rows    = TileLayout.getTileCount(level.getHeight(), tileSize);
+
+			long downsample = level.getDownsample();
+			long originX = level.getOriginX();
+			long originY = level.getOriginY();
+
+			if (job != null && job.isLevelDone(level.getIndex())) {
+				logger.info("Level {} already committed, skipping", level.getIndex());
+				continue;
+			}
+
+			// Stalled workers are cancelled but can't be interrupted, so they may still be adding a tile when the archive is saved
+			TileArchive levelArchive = uploadQueue == null ? new GuardedTileArchive(storage.createArchive(id, level.getIndex())) : null;
+			TileEncoder encoder = encoders.forLevel(level.getIndex());
+
+			// Tiles are split into batches of rows. When streaming, each batch is checkpointed
+			// once all of its tiles are committed, otherwise only whole levels are checkpointed.
+			List<TileBatch> batches = new ArrayList<>();
+			TileProgress progress = new TileProgress(executor, level.getIndex(), stallTimeout);
+
+			// Each worker reads a band of tiles at once. Bands are at least as tall as the tiles
+			// of the slide itself and are submitted in reading order, so neighbouring workers read
+			// neighbouring parts of the file and each tile of the slide is decoded once per band.
+			int bandRows    = getBandRows(level);
+			int bandColumns = getBandColumns(level, bandRows);
+
+			for (int batch = 0; batch * batchSize < rows; batch++) {
+				if (uploadQueue != null && job != null && job.isBatchDone(level.getIndex(), batch)) {
+					continue;
+				}
+
+				TileBatch tileBatch = uploadQueue != null
+					? new TileBatch(batch, new StreamingTileArchive(uploadQueue, level.getIndex()))
+					: new TileBatch(batch, levelArchive);
+
+				int lastRow = Math.min((batch + 1) * batchSize, rows);
+
+				for (int bandRow = batch * batchSize; bandRow < lastRow; bandRow += bandRows) {
+					for (int bandColumn = 0; bandColumn < columns; bandColumn += bandColumns) {
+						List<TileWorker.Tile> tiles = new ArrayList<>();
+
+						for (int row = bandRow; row < bandRow + bandRows && row < lastRow; row++) {
+							long y = TileLayout.getTileStart(row, tileSize, overlap);
+							long tileHeight = TileLayout.getTileEnd(row, level.getHeight(), tileSize, overlap) - y;
+
+							for (int column = bandColumn; column < bandColumn + bandColumns && column < columns; column++) {
+								long x = TileLayout.getTileStart(column, tileSize, overlap);
+								long tileWidth = TileLayout.getTileEnd(column, level.getWidth(), tileSize, overlap) - x;
+
+								if (tissueMask != null && !tissueMask.intersects(
+										originX + x * downsample, originY + y * downsample, tileWidth * downsample, tileHeight * downsample)) {
+									continue;
+								}
+
+								tiles.add(new TileWorker.Tile(x, y, (int) tileWidth, (int) tileHeight));
+							}
+						}
+
+						if (tiles.isEmpty()) {
+							continue;
+						}
+
+						tileBatch.tasks.add(progress.submit(new TileWorker(
+							level,
+							originX, originY,
+							tiles,
+							id,
+							backgroundDetector,
+							openSlide,
+							encoder,
+							tileBatch.archive
+						)));
+					}
 				}
+
+				batches.add(tileBatch);
 			}
 
-			float start = System.currentTimeMillis();
-			int tiles = rows * cols;
+			logger.debug("Scheduled {} / {} tiles for level {}", progress.getScheduled(), rows * columns, level.getIndex());
+
+			boolean committed = true;
+
+			// The executor may be shared with other slides, so wait for the tasks of this level only
+			for (TileBatch batch : batches) {
+				progress.await(batch.tasks);
+
+				if (batch.streaming != null) {
+					batch.archive.save();
+
+					if (job != null && progress.isComplete(batch.tasks) && batch.streaming.isCommitted()) {
+						job.checkpoint(level.getIndex(), batch.index);
+					}
 
-			synchronized (executor) {
-				while (!executor.isQuiescent() && !hasTimedOut(start)) {
-					System.out.print("\rProcessing tiles [L=" + level + "; generated ~" + (tiles - executor.getQueuedSubmissionCount()) +" / ~" + tiles + " tiles]");
-					executor.wait(100);
+					committed &= batch.streaming.isCommitted();
 				}
 			}
 
-			/* TODO: This might be called while there is still tiles being processed and result in a IOException:
-			    "Stream has already been finished" in TarTileArchive#addTile, caused by TarArchiveOutputStream:342
-			    Probably has to do when processing takes longer than the timeout period. */
-			File archive = tileArchive.save();
+			progress.finish();
 
-			logger.debug("Committing archive to storage");
-			storage.commitArchive(archive); // TODO: Commit async
+			// Every worker is either done or cancelled. Saving waits for tiles still being added by
+			// cancelled workers and rejects the tiles they add after it.
+			File archive = levelArchive == null ? null : levelArchive.save();
 
-			logger.debug("Deleting archive file");
-			Files.delete(archive.toPath());
+			// A failed commit is thrown before the level is checkpointed, so the level is generated again when resumed
+			if (archive != null) {
+				try {
+					logger.debug("Committing archive to storage");
+					storage.commitArchive(archive); // TODO: Commit async
+				} finally {
+					logger.debug("Deleting archive file");
+					Files.deleteIfExists(archive.toPath());
+				}
+			}
+
+			if (progress.isComplete() && committed) {
+				if (job != null) {
+					job.checkpoint(level.getIndex());
+				}
+			} else {
+				incomplete++;
+			}
 		}
 
-		generateThumbnail(id, storage);
-		generateProperties(id, storage);
+		if (incomplete > 0) {
+			throw new IOException(incomplete + " levels of " + id + " have tiles which were cancelled or failed");
+		}
+	}
 
-		logger.debug("Deleting original slide");
-		Files.delete(slide.toPath());
+	/**
+	 * Generates every level from the full resolution level of the slide, see {@link PyramidReducer}.
+	 * Levels are generated in a single pass, so a resumed job generates every level again but only
+	 * stores the levels which weren't committed yet.
+	 *
+	 * @throws IOException if any tile failed.
+	 */
+	private void deriveLevels(String id, StorageProvider storage, TileUploadQueue uploadQueue, TilingJob job,
+	                          long originX, long originY, Color backgroundColor, BackgroundDetector backgroundDetector,
+	                          TissueMask tissueMask) throws IOException, InterruptedException {
+		Map<Integer, TileArchive> archives = new TreeMap<>();
+
+		for (TileLayout.Level level : levels) {
+			if (job != null && job.isLevelDone(level.getIndex())) {
+				logger.info("Level {} already committed, skipping", level.getIndex());
+				continue;
+			}
 
-		long endTime = System.currentTimeMillis();
-		System.out.print("\rTook " + (endTime - startTime) / 1000.0 + " seconds to generate & upload tiles.");
+			archives.put(level.getIndex(), uploadQueue == null
+				? storage.createArchive(id, level.getIndex())
+				: new StreamingTileArchive(uploadQueue, level.getIndex()));
+		}
+
+		if (archives.isEmpty()) {
+			return;
+		}
+
+		PyramidReducer reducer = new PyramidReducer(
+			openSlide, levels, tileSize, originX, originY,
+			backgroundColor, backgroundDetector, tissueMask,
+			encoders, archives
+		);
+
+		reducer.run(executor);
+
+		boolean complete = reducer.isComplete();
+
+		for (Map.Entry<Integer, TileArchive> entry : archives.entrySet()) {
+			File archive = entry.getValue().save();
+
+			if (archive != null) {
+				try {
+					logger.debug("Committing archive of level {} to storage", entry.getKey());
+					storage.commitArchive(archive);
+				} finally {
+					Files.deleteIfExists(archive.toPath());
+				}
+			}
+
+			boolean committed = !(entry.getValue() instanceof StreamingTileArchive) || ((StreamingTileArchive) entry.getValue()).isCommitted();
+
+			if (job != null && reducer.isComplete() && committed) {
+				job.checkpoint(entry.getKey());
+			}
+
+			complete &= committed;
+		}
+
+		if (!complete) {
+			throw new IOException("Levels of " + id + " have tiles which failed");
+		}
+	}
+
+	/**
+	 * @return number of tile rows read at once, so that each band covers at least one row of the
+	 *         tiles the source level of the slide is stored in, unless a band of a single column
+	 *         that tall would be larger than the number of pixels read per band.
+	 */
+	private int getBandRows(TileLayout.Level level) {
+		String property = String.format("openslide.level[%d].tile-height", level.getSourceLevel());
+		String nativeHeight = openSlide.getProperties().get(property);
+
+		if (nativeHeight == null) {
+			return 1;
+		}
+
+		double rowHeight  = (tileSize - overlap) * level.getScale();
+		double tileWidth  = (tileSize + 2 * overlap) * level.getScale();
+		double tileHeight = (tileSize + 2 * overlap) * level.getScale();
+
+		long maxRows = (long) Math.max(1, Config.Config.getLong("tiler.band.pixels") / (tileWidth * tileHeight));
+
+		return (int) Math.min(maxRows, Math.max(1, Math.ceil(Integer.parseInt(nativeHeight) / rowHeight)));
+	}
+
+	/**
+	 * @return number of tile columns read at once, limited by the number of pixels read per band.
+	 */
+	private int getBandColumns(TileLayout.Level level, int bandRows) {
+		double tileWidth  = (tileSize + 2 * overlap) * level.getScale();
+		double bandHeight = (bandRows * tileSize + 2 * overlap) * level.getScale();
+
+		return (int) Math.max(1, Config.Config.getLong("tiler.band.pixels") / (tileWidth * bandHeight));
 	}
 
 	/**
@@ -177,43 +438,77 @@ public class TileGenerator {
 	 * @return background color or null
 	 */
 	private Color getBackgroundColor() {
-		Color color = null;
+		try {
+			return TileRenderer.getBackgroundColor(openSlide);
+		} catch (Exception e) {
+			logger.debug("Unable to find background color: {}", e.getLocalizedMessage());
+		}
+
+		return null;
+	}
+
+	/**
+	 * Builds a tissue mask used to skip tiles without any tissue. The slide background color is
+	 * used when the slide defines one, otherwise the background color in the configuration.
+	 *
+	 * @param backgroundColor background color of the slide or null.
+	 * @return tissue mask or null if disabled or could not be created.
+	 */
+	private TissueMask createTissueMask(Color backgroundColor) {
+		if (!Config.Config.getBoolean("tiler.tissue.mask.enabled")) {
+			return null;
+		}
 
 		try {
-			String bg = readStringProperty(OpenSlide.PROPERTY_NAME_BACKGROUND_COLOR);
+			if (backgroundColor == null) {
+				String bg = Config.Config.getString("tiler.tissue.mask.background");
 
-			if (bg != null) {
-				if (!bg.startsWith("#")) {
-					bg = "#" + bg;
+				if (!bg.isBlank()) {
+					backgroundColor = Color.decode(bg.startsWith("#") ? bg : "#" + bg);
 				}
-
-				color = Color.decode(bg);
 			}
+
+			TissueMask mask = TissueMask.create(
+				openSlide,
+				backgroundColor == null ? null : new BackgroundDetector(backgroundColor)
+			);
+
+			logger.info("Tissue covers {}% of the slide", Math.round(mask.getCoverage() * 100));
+
+			return mask;
 		} catch (Exception e) {
-			logger.debug("Unable to find background color: {}", e.getLocalizedMessage());
+			logger.error("Error while creating tissue mask, generating all tiles", e);
 		}
 
-		return color;
+		return null;
 	}
 
 	/**
-	 * Generates the thumbnail for the slide and saves it using the provided StorageProvider.
+	 * Generates the thumbnail for the slide and saves it using the provided StorageProvider. A slide
+	 * without a thumbnail can still be viewed, so failing to generate the thumbnail is only logged.
+	 *
+	 * @throws IOException if saving the thumbnail to storage fails, so that the job is tried again.
 	 */
-	private void generateThumbnail(String id, StorageProvider storageProvider) {
-		try (ByteArrayOutputStream os = new ByteArrayOutputStream()) {
-			BufferedImage thumbnail = openSlide.createThumbnailImage(500);
+	private void generateThumbnail(String id, StorageProvider storageProvider) throws IOException {
+		Path path = Path.of(String.format(Constants.TEMP_FILE, id + "_thumbnail.jpg"));
 
-			Path path = Path.of(String.format(Constants.TEMP_FILE, id + "_thumbnail.jpg"));
+		try {
+			try (ByteArrayOutputStream os = new ByteArrayOutputStream()) {
+				BufferedImage thumbnail = openSlide.createThumbnailImage(500);
 
-			ImageIO.write(thumbnail, "jpg", os);
+				ImageIO.write(thumbnail, "jpg", os);
 
-			Files.write(path, os.toByteArray());
+				Files.write(path, os.toByteArray());
+			} catch (IOException e) {
+				logger.error("Error while generating thumbnail", e);
+				return;
+			}
 
 			storageProvider.commitFile(path.toFile());
-
-			Files.delete(path);
-		} catch (IOException e) {
-			logger.error("Error while generating thumbnail", e);
+		} catch (UncheckedIOException e) {
+			throw new IOException("Error while saving thumbnail of " + id, e.getCause());
+		} finally {
+			Files.deleteIfExists(path);
 		}
 	}
 
@@ -226,10 +521,26 @@ public class TileGenerator {
 	 */
 	private void generateProperties(String id, StorageProvider storageProvider) {
 		Map<String, String> properties = new HashMap<>(openSlide.getProperties());
-		properties.put("openslide.remoteserver.uri", storageProvider.getTilesURI().replace("{id}", id));
+		properties.put("openslide.remoteserver.uri", storageProvider.getTilesURI().replace("{id}", id).replace("{extension}", encoders.getFormat().getExtension()));
+		properties.put(Constants.TILE_FORMAT_PROPERTY, encoders.getFormat().getFormatName());
 		properties.put("openslide.thumbnail.uri",    storageProvider.getThumbnailURI().replace("{id}", id));
-		properties.put("openslide.level[0].tile-width", "1024");
-		properties.put("openslide.level[0].tile-height", "1024");
+		properties.put("openslide.level[0].tile-width", String.valueOf(tileSize));
+		properties.put("openslide.level[0].tile-height", String.valueOf(tileSize));
+		properties.put(Constants.TILE_LAYOUT_PROPERTY, layout.name().toLowerCase());
+		properties.put(Constants.TILE_OVERLAP_PROPERTY, String.valueOf(overlap));
+		properties.put(Constants.TILE_CROPPED_PROPERTY, String.valueOf(cropped));
+
+		// The generated levels replace the levels of the slide
+		if (layout != TileLayout.OPENSLIDE || derived) {
+			properties.keySet().removeIf(key -> key.startsWith("openslide.level[") && !key.startsWith("openslide.level[0].tile-"));
+			properties.put("openslide.level-count", String.valueOf(levels.size()));
+
+			for (TileLayout.Level level : levels) {
+				properties.put("openslide.level[" + level.getIndex() + "].width",      String.valueOf(level.getWidth()));
+				properties.put("openslide.level[" + level.getIndex() + "].height",     String.valueOf(level.getHeight()));
+				properties.put("openslide.level[" + level.getIndex() + "].downsample", String.valueOf((double) level.getDownsample()));
+			}
+		}
 
 		Path propertiesFilePath = Path.of(String.format(Constants.SLIDE_PROPERTIES_FILE, id));
 		String JSON = new GsonBuilder().setPrettyPrinting().create().toJson(properties);
@@ -241,19 +552,32 @@ public class TileGenerator {
 		}
 	}
 
-	private String readStringProperty(String property) {
-		return openSlide.getProperties().get(property);
-	}
-
-	private double readDoubleProperty(String property) {
-		return Double.parseDouble(openSlide.getProperties().get(property));
-	}
-
 	private int readIntegerProperty(String property) {
 		return Integer.parseInt(openSlide.getProperties().get(property));
 	}
 
-	private boolean hasTimedOut(float startTime) {
-		return (System.currentTimeMillis() - startTime) > TIMEOUT;
+	private static class TileBatch {
+
+		private final int index;
+		private final TileArchive archive;
+
+		/**
+		 * Archive the tiles of the batch are streamed to, or null if they're added to the archive of the level.
+		 */
+		private final StreamingTileArchive streaming;
+
+		private final List<ForkJoinTask<?>> tasks = new ArrayList<>();
+
+		private TileBatch(int index, TileArchive archive) {
+			this.index = index;
+			this.archive = archive;
+			this.streaming = null;
+		}
+
+		private TileBatch(int index, StreamingTileArchive streaming) {
+			this.index = index;
+			this.archive = new GuardedTileArchive(streaming);
+			this.streaming = streaming;
+		}
 	}
 }
@@ -0,0 +1,228 @@
+package fi.ylihallila.server.generators;
+
+import org.openslide.OpenSlide;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Levels generated for a slide. Tiles are always named by their level, level 0 coordinates and size,
+ * but the levels and the grid of tiles on each level depend on the layout.
+ *
+ * <ul>
+ *     <li>OPENSLIDE: the levels of the slide itself.</li>
+ *     <li>DZI: a level for every power of two down to a single pixel, as required by Deep Zoom.
+ *         Neighbouring tiles overlap each other by the configured overlap.</li>
+ *     <li>IIIF: the same levels as DZI, used as the scale factors of a IIIF Image API level 0 service.
+ *         IIIF has no concept of overlap.</li>
+ * </ul>
+ *
+ * Levels which the slide doesn't have are read from the next larger level and scaled down.
+ */
+public enum TileLayout {
+
+	OPENSLIDE, DZI, IIIF;
+
+	/**
+	 * @throws IllegalArgumentException if the layout is unknown.
+	 */
+	public static TileLayout of(String name) {
+		return valueOf(name.toUpperCase());
+	}
+
+	public boolean supportsOverlap() {
+		return this == DZI;
+	}
+
+	/**
+	 * Clients of the openslide layout request tiles on the grid of the uncropped slide, so when cropping,
+	 * each level starts at the tile of that grid containing the origin of the tiled area, and its edge
+	 * tiles are the same size as the tiles of the uncropped level. Cropped slides therefore have exactly
+	 * the tiles of the uncropped slide which overlap the tiled area. The other layouts are served through
+	 * this server, which maps requests onto the origin of the tiled area.
+	 *
+	 * @param originX level 0 x coordinate of the tiled area.
+	 * @param originY level 0 y coordinate of the tiled area.
+	 * @param width width of the tiled area at level 0.
+	 * @param height height of the tiled area at level 0.
+	 * @param cropped true if only the bounds of the slide are tiled.
+	 * @param tileSize width and height of the tiles.
+	 * @return levels to generate, largest first.
+	 */
+	public List<Level> getLevels(OpenSlide openSlide, long originX, long originY, long width, long height, boolean cropped, int tileSize) {
+		List<Level> levels = new ArrayList<>();
+
+		if (this == OPENSLIDE) {
+			for (int level = 0; level < openSlide.getLevelCount(); level++) {
+				long downsample = (long) openSlide.getLevelDownsample(level);
+
+				if (!cropped) {
+					levels.add(new Level(level, downsample, 0, 0, openSlide.getLevelWidth(level), openSlide.getLevelHeight(level), level, 1));
+					continue;
+				}
+
+				long startX = alignToTiles(originX, tileSize, downsample);
+				long startY = alignToTiles(originY, tileSize, downsample);
+
+				levels.add(new Level(level, downsample, startX, startY,
+					getAlignedSize(startX, originX + width,  openSlide.getLevelWidth(level),  tileSize, downsample),
+					getAlignedSize(startY, originY + height, openSlide.getLevelHeight(level), tileSize, downsample),
+					level, 1
+				));
+			}
+		} else {
+			levels.addAll(getPowerOfTwoLevels(openSlide, originX, originY, width, height));
+		}
+
+		return levels;
+	}
+
+	/**
+	 * @param originX level 0 x coordinate of the tiled area.
+	 * @param originY level 0 y coordinate of the tiled area.
+	 * @param width width of the tiled area at level 0.
+	 * @param height height of the tiled area at level 0.
+	 * @return a level for every power of two down to a single pixel, largest first.
+	 */
+	public static List<Level> getPowerOfTwoLevels(OpenSlide openSlide, long originX, long originY, long width, long height) {
+		List<Level> levels = new ArrayList<>();
+
+		for (int level = 0; level < getPowerOfTwoLevelCount(width, height); level++) {
+			long downsample = 1L << level;
+			int source = openSlide.getBestLevelForDownsample(downsample);
+
+			levels.add(new Level(level, downsample, originX, originY,
+				ceilDiv(width, downsample), ceilDiv(height, downsample),
+				source, downsample / openSlide.getLevelDownsample(source)
+			));
+		}
+
+		return levels;
+	}
+
+	/**
+	 * @param position level 0 coordinate.
+	 * @return level 0 coordinate of the start of the tile containing the position, on a level
+	 *         with the given downsample which is tiled from 0.
+	 */
+	public static long alignToTiles(long position, int tileSize, long downsample) {
+		long span = tileSize * downsample;
+
+		return Math.floorDiv(position, span) * span;
+	}
+
+	/**
+	 * @param start level 0 coordinate of the start of the tiled area, aligned with {@link #alignToTiles(long, int, long)}.
+	 * @param end level 0 coordinate after the end of the cropped area.
+	 * @param levelSize size of the whole level.
+	 * @return size of the tiled area on the level, covering whole tiles up to the end of the cropped area,
+	 *         but never past the end of the level.
+	 */
+	public static long getAlignedSize(long start, long end, long levelSize, int tileSize, long downsample) {
+		long size = ceilDiv(ceilDiv(end - start, downsample), tileSize) * tileSize;
+
+		return Math.max(0, Math.min(size, levelSize - start / downsample));
+	}
+
+	/**
+	 * @return number of levels needed to halve an image down to a single pixel, including the full size level.
+	 */
+	public static int getPowerOfTwoLevelCount(long width, long height) {
+		long max = Math.max(1, Math.max(width, height));
+
+		return 65 - Long.numberOfLeadingZeros(max - 1);
+	}
+
+	/**
+	 * @return number of tiles needed to cover a level.
+	 */
+	public static int getTileCount(long levelSize, int tileSize) {
+		return (int) ceilDiv(levelSize, tileSize);
+	}
+
+	/**
+	 * @return first pixel of a tile on its level, including the overlap with the previous tile.
+	 */
+	public static long getTileStart(int index, int tileSize, int overlap) {
+		return Math.max(0, (long) index * tileSize - overlap);
+	}
+
+	/**
+	 * @return pixel after the last pixel of a tile on its level, including the overlap with the next tile.
+	 */
+	public static long getTileEnd(int index, long levelSize, int tileSize, int overlap) {
+		return Math.min(levelSize, (long) (index + 1) * tileSize + overlap);
+	}
+
+	private static long ceilDiv(long a, long b) {
+		return (a + b - 1) / b;
+	}
+
+	/**
+	 * A generated level.
+	 */
+	public static class Level {
+
+		private final int index;
+		private final long downsample;
+		private final long originX;
+		private final long originY;
+		private final long width;
+		private final long height;
+		private final int sourceLevel;
+		private final double scale;
+
+		/**
+		 * @param index index of the level, used in tile names.
+		 * @param downsample downsample of the level relative to level 0.
+		 * @param originX level 0 x coordinate of the first pixel of the level.
+		 * @param originY level 0 y coordinate of the first pixel of the level.
+		 * @param width width of the level.
+		 * @param height height of the level.
+		 * @param sourceLevel level of the slide the tiles are read from.
+		 * @param scale how much the tiles are scaled down after reading them from the source level.
+		 */
+		public Level(int index, long downsample, long originX, long originY, long width, long height, int sourceLevel, double scale) {
+			this.index = index;
+			this.downsample = downsample;
+			this.originX = originX;
+			this.originY = originY;
+			this.width = width;
+			this.height = height;
+			this.sourceLevel = sourceLevel;
+			this.scale = scale;
+		}
+
+		public int getIndex() {
+			return index;
+		}
+
+		public long getDownsample() {
+			return downsample;
+		}
+
+		public long getOriginX() {
+			return originX;
+		}
+
+		public long getOriginY() {
+			return originY;
+		}
+
+		public long getWidth() {
+			return width;
+		}
+
+		public long getHeight() {
+			return height;
+		}
+
+		public int getSourceLevel() {
+			return sourceLevel;
+		}
+
+		public double getScale() {
+			return scale;
+		}
+	}
+}
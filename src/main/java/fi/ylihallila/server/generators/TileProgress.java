@@ -0,0 +1,186 @@
+package fi.ylihallila.server.generators;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Tracks the tile workers of one level. Waiting for the workers reports the progress and throughput
+ * of the level and cancels workers which have been generating a single band of tiles for longer than
+ * the stall timeout. Slow levels are never cut short as long as each band finishes in time.
+ */
+public class TileProgress {
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private static final long REPORT_INTERVAL = Duration.ofSeconds(1).toMillis();
+
+	private final ForkJoinPool executor;
+	private final int level;
+	private final long stallTimeout;
+
+	private final long startTime = System.currentTimeMillis();
+
+	private final List<TileWorker> workers = new ArrayList<>();
+	private final List<ForkJoinTask<?>> tasks = new ArrayList<>();
+	private final Map<ForkJoinTask<?>, TileWorker> workersByTask = new IdentityHashMap<>();
+
+	private int cancelled = 0;
+
+	/**
+	 * @param executor pool used to run the tile workers.
+	 * @param level level being generated.
+	 * @param stallTimeout milliseconds a worker may spend on one tile before it is cancelled.
+	 */
+	public TileProgress(ForkJoinPool executor, int level, long stallTimeout) {
+		this.executor = executor;
+		this.level = level;
+		this.stallTimeout = stallTimeout;
+	}
+
+	/**
+	 * Submits a tile worker to the executor.
+	 *
+	 * @return task of the worker.
+	 */
+	public ForkJoinTask<?> submit(TileWorker worker) {
+		ForkJoinTask<?> task = executor.submit(worker);
+
+		workers.add(worker);
+		tasks.add(task);
+		workersByTask.put(task, worker);
+
+		return task;
+	}
+
+	/**
+	 * Waits until the given tasks of this level are done or cancelled.
+	 */
+	public void await(List<ForkJoinTask<?>> awaited) throws InterruptedException {
+		for (ForkJoinTask<?> task : awaited) {
+			while (!task.isDone()) {
+				try {
+					task.get(REPORT_INTERVAL, TimeUnit.MILLISECONDS);
+				} catch (TimeoutException e) {
+					report();
+					cancelStalled();
+				} catch (ExecutionException | CancellationException e) {
+					// Errors are logged by the worker and cancellations by cancelStalled()
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return true if every tile of this level was generated without being cancelled or failing.
+	 */
+	public boolean isComplete() {
+		return isComplete(tasks);
+	}
+
+	/**
+	 * @param awaited tasks submitted to this level, e.g. the tasks of a batch.
+	 * @return true if every tile of the given tasks was generated without being cancelled or failing.
+	 */
+	public boolean isComplete(List<ForkJoinTask<?>> awaited) {
+		return awaited.stream().allMatch(task ->
+			task.isDone() && !task.isCompletedAbnormally() && workersByTask.get(task).getFailed() == 0
+		);
+	}
+
+	/**
+	 * @return number of tiles submitted.
+	 */
+	public int getScheduled() {
+		return workers.stream().mapToInt(TileWorker::getTileCount).sum();
+	}
+
+	/**
+	 * @return number of tiles in bands which have been generated.
+	 */
+	public int getCompleted() {
+		int completed = 0;
+
+		for (int i = 0; i < tasks.size(); i++) {
+			if (tasks.get(i).isDone() && !tasks.get(i).isCancelled()) {
+				completed += workers.get(i).getTileCount();
+			}
+		}
+
+		return completed;
+	}
+
+	public int getCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * @return number of tiles which could not be generated.
+	 */
+	public int getFailed() {
+		return workers.stream().mapToInt(TileWorker::getFailed).sum();
+	}
+
+	/**
+	 * @return tiles generated per second since the level was started.
+	 */
+	public double getTilesPerSecond() {
+		double seconds = (System.currentTimeMillis() - startTime) / 1000.0;
+
+		return seconds > 0 ? getCompleted() / seconds : 0;
+	}
+
+	/**
+	 * Logs the final statistics of this level.
+	 */
+	public void finish() {
+		System.out.print("\r");
+		logger.info("Generated {} / {} tiles for level {} in {} seconds [{} tiles/s, {} cancelled, {} failed]",
+			getCompleted(), getScheduled(), level,
+			(System.currentTimeMillis() - startTime) / 1000.0,
+			String.format("%.1f", getTilesPerSecond()), cancelled, getFailed());
+	}
+
+	private void report() {
+		System.out.print("\rProcessing tiles [L=" + level + "; generated " + getCompleted() + " / " + getScheduled() + " tiles; "
+			+ String.format("%.1f", getTilesPerSecond()) + " tiles/s]");
+	}
+
+	/**
+	 * Cancels workers which have spent longer than the stall timeout on their band. A running worker
+	 * can't be interrupted, but once cancelled it won't add its remaining tiles to the archive.
+	 */
+	private void cancelStalled() {
+		long now = System.currentTimeMillis();
+
+		for (int i = 0; i < workers.size(); i++) {
+			TileWorker worker = workers.get(i);
+			ForkJoinTask<?> task = tasks.get(i);
+
+			if (task.isDone() || worker.getStartedAt() == 0 || now - worker.getStartedAt() < stallTimeout) {
+				continue;
+			}
+
+			worker.cancel();
+
+			if (!task.cancel(false)) {
+				continue;
+			}
+
+			cancelled++;
+
+			logger.warn("Cancelled {} of level {}, no progress in {} seconds", worker.getName(), level, stallTimeout / 1000);
+		}
+	}
+}
@@ -0,0 +1,150 @@
+package fi.ylihallila.server.generators;
+
+import org.openslide.OpenSlide;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * Reads tiles and bands of tiles, which are then encoded with a {@link TileEncoder}. Used by the {@link TileWorker TileWorkers}
+ * of the tiler and by the server, which renders tiles of slides that haven't been tiled yet on demand.
+ */
+public class TileRenderer {
+
+	/**
+	 * Paints a region of a slide into an image owned by the current thread. The image is reused
+	 * for the next tile of the same size painted by this thread.
+	 *
+	 * @param x level 0 x coordinate of the top left corner.
+	 * @param y level 0 y coordinate of the top left corner.
+	 * @param width width of the tile on the given level.
+	 * @param height height of the tile on the given level.
+	 * @param background color drawn behind transparent areas, or null for black.
+	 * @return RGB image of the tile.
+	 */
+	public static BufferedImage paint(OpenSlide openSlide, int level, long x, long y, int width, int height, Color background) throws IOException {
+		BufferedImage img = TileBuffers.get().getImage(width, height);
+		int[] data = TileBuffers.getPixels(img);
+
+		openSlide.paintRegionARGB(data, x, y, level, width, height);
+
+		// Without a background color the premultiplied pixels are already the same as
+		// drawing them over a black RGB image.
+		if (background != null) {
+			compositeOver(data, data.length, background.getRGB());
+		}
+
+		return img;
+	}
+
+	/**
+	 * Paints a region of a slide scaled down by a given factor, for levels which the slide doesn't have.
+	 * The region is read from the source level and scaled to the size of the tile.
+	 *
+	 * @param level source level the region is read from.
+	 * @param width width of the scaled tile.
+	 * @param height height of the scaled tile.
+	 * @param scale downsample of the tile relative to the source level.
+	 * @see #paint(OpenSlide, int, long, long, int, int, Color)
+	 */
+	public static BufferedImage paint(OpenSlide openSlide, int level, long x, long y, int width, int height, double scale, Color background) throws IOException {
+		int sourceWidth  = (int) Math.ceil(width  * scale);
+		int sourceHeight = (int) Math.ceil(height * scale);
+
+		BufferedImage source = paint(openSlide, level, x, y, sourceWidth, sourceHeight, background);
+
+		if (sourceWidth == width && sourceHeight == height) {
+			return source;
+		}
+
+		BufferedImage img = TileBuffers.get().getImage(width, height);
+		Graphics2D graphics = img.createGraphics();
+
+		try {
+			graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			graphics.drawImage(source, 0, 0, width, height, null);
+		} finally {
+			graphics.dispose();
+		}
+
+		return img;
+	}
+
+	/**
+	 * Paints a region spanning several tiles into the band buffer of the current thread, with a single
+	 * read from the slide. The buffer is reused for the next band painted by this thread.
+	 *
+	 * @param x level 0 x coordinate of the top left corner.
+	 * @param y level 0 y coordinate of the top left corner.
+	 * @param width width of the region on the given level.
+	 * @param height height of the region on the given level.
+	 * @param background color drawn behind transparent areas, or null for black.
+	 * @return RGB pixels of the region in row-major order. The array may be longer than the region.
+	 * @see TileBuffers#getBand(int)
+	 */
+	public static int[] paintBand(OpenSlide openSlide, int level, long x, long y, int width, int height, Color background) throws IOException {
+		int[] data = TileBuffers.get().getBand(width * height);
+
+		openSlide.paintRegionARGB(data, x, y, level, width, height);
+
+		if (background != null) {
+			compositeOver(data, width * height, background.getRGB());
+		}
+
+		return data;
+	}
+
+	/**
+	 * Parses the background color of a slide.
+	 *
+	 * @return background color or null if the slide doesn't define one.
+	 */
+	public static Color getBackgroundColor(OpenSlide openSlide) {
+		String bg = openSlide.getProperties().get(OpenSlide.PROPERTY_NAME_BACKGROUND_COLOR);
+
+		if (bg == null) {
+			return null;
+		}
+
+		return Color.decode(bg.startsWith("#") ? bg : "#" + bg);
+	}
+
+	/**
+	 * Composites the premultiplied ARGB pixels returned by OpenSlide over an opaque background color,
+	 * in place. The alpha channel is left as is, as it is ignored by {@link BufferedImage#TYPE_INT_RGB}.
+	 *
+	 * @param pixels premultiplied ARGB pixels.
+	 * @param length number of pixels to composite, from the start of the array.
+	 * @param color background color as RGB.
+	 */
+	static void compositeOver(int[] pixels, int length, int color) {
+		int bgR = (color >> 16) & 0xFF;
+		int bgG = (color >> 8)  & 0xFF;
+		int bgB =  color        & 0xFF;
+
+		for (int i = 0; i < length; i++) {
+			int pixel = pixels[i];
+			int alpha = pixel >>> 24;
+
+			if (alpha == 255) {
+				continue;
+			}
+
+			if (alpha == 0) {
+				pixels[i] = color;
+				continue;
+			}
+
+			int inverse = 255 - alpha;
+
+			int r = ((pixel >> 16) & 0xFF) + (bgR * inverse + 127) / 255;
+			int g = ((pixel >> 8)  & 0xFF) + (bgG * inverse + 127) / 255;
+			int b = ( pixel        & 0xFF) + (bgB * inverse + 127) / 255;
+
+			pixels[i] = (Math.min(r, 255) << 16) | (Math.min(g, 255) << 8) | Math.min(b, 255);
+		}
+	}
+}
@@ -1,137 +1,248 @@
 package fi.ylihallila.server.generators;
 
 import fi.ylihallila.server.archivers.TileArchive;
+import fi.ylihallila.server.util.Constants;
 import org.openslide.OpenSlide;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.imageio.ImageIO;
-import java.awt.*;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferInt;
 import java.io.ByteArrayOutputStream;
+import java.util.List;
 
+/**
+ * Generates a band of neighbouring tiles on one row or a few rows of a level. The whole band is read
+ * from the slide with a single call and then cut into tiles, so each tile of the slide's own tile
+ * grid is decoded once per band instead of once for every tile overlapping it.
+ */
 public class TileWorker implements Runnable {
 
 	private final Logger logger = LoggerFactory.getLogger(TileWorker.class);
 
 	private final String slideName;
-	private final Color bgColor;
+	private final BackgroundDetector background;
 
-	private final int level;
-	private final int tileX;
-	private final int tileY;
+	private final TileLayout.Level level;
+	private final long originX;
+	private final long originY;
 
-	private final int tileWidth;
-	private final int tileHeight;
+	private final List<Tile> tiles;
+
+	/**
+	 * Bounding box of the tiles on the level.
+	 */
+	private final long bandX;
+	private final long bandY;
+	private final int bandWidth;
+	private final int bandHeight;
 
 	private final OpenSlide openSlide;
+	private final TileEncoder encoder;
 	private final TileArchive archive;
 
-	public TileWorker(int downsample, int level, int row, int col, int offsetX, int offsetY, int tileWidth, int tileHeight, int slideWidth, int slideHeight, String slideName, Color bgColor, OpenSlide openSlide, TileArchive archive) {
-		this.slideName = slideName;
-		this.bgColor = bgColor;
-		this.level = level;
+	/**
+	 * Time this worker started generating its tiles, or 0 if it hasn't started yet.
+	 */
+	private volatile long startedAt = 0;
 
-		this.tileY = col * tileHeight * downsample + offsetY;
-		this.tileX = row * tileWidth  * downsample + offsetX;
+	/**
+	 * Set when the worker has stalled and the level has moved on without it.
+	 */
+	private volatile boolean cancelled = false;
 
-		int adjustX = 0;
-		int adjustY = 0;
+	/**
+	 * Number of tiles which could not be generated.
+	 */
+	private volatile int failed = 0;
 
-		if ((tileX + downsample * tileWidth) > slideWidth) {
-			adjustX = tileWidth - Math.abs((tileX - slideWidth) / downsample);
-		}
+	/**
+	 * @param level level of the tiles.
+	 * @param originX level 0 x coordinate of the tiled area.
+	 * @param originY level 0 y coordinate of the tiled area.
+	 * @param tiles tiles of the band, not empty.
+	 */
+	public TileWorker(TileLayout.Level level, long originX, long originY, List<Tile> tiles, String slideName, BackgroundDetector background, OpenSlide openSlide, TileEncoder encoder, TileArchive archive) {
+		this.slideName = slideName;
+		this.background = background;
+		this.level = level;
 
-		if ((tileY + downsample * tileHeight) > slideHeight) {
-			adjustY = tileHeight - Math.abs((tileY - slideHeight) / downsample);
-		}
+		this.originX = originX;
+		this.originY = originY;
+		this.tiles = tiles;
 
-		this.tileHeight = tileHeight - adjustY;
-		this.tileWidth  = tileWidth  - adjustX;
+		this.bandX = tiles.stream().mapToLong(Tile::getX).min().orElseThrow();
+		this.bandY = tiles.stream().mapToLong(Tile::getY).min().orElseThrow();
+		this.bandWidth  = (int) (tiles.stream().mapToLong(tile -> tile.getX() + tile.getWidth()).max().orElseThrow()  - bandX);
+		this.bandHeight = (int) (tiles.stream().mapToLong(tile -> tile.getY() + tile.getHeight()).max().orElseThrow() - bandY);
 
 		this.openSlide = openSlide;
+		this.encoder = encoder;
 		this.archive = archive;
 	}
 
-	@Override
-	public void run() {
-		try {
-			if (tileWidth == 0 || tileHeight == 0) {
-				return;
-			}
+	/**
+	 * Prevents this worker from adding its remaining tiles to the archive. Returns immediately, even if the
+	 * worker is blocked adding a tile. The archive is a {@link fi.ylihallila.server.archivers.GuardedTileArchive
+	 * GuardedTileArchive}, which waits for that tile when it is saved and rejects any tile added after it.
+	 * The level of a cancelled worker is not checkpointed and the job fails, so the slide is kept and the
+	 * level is generated again when the job is resumed.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
 
-			BufferedImage temp = new BufferedImage(tileWidth, tileHeight, BufferedImage.TYPE_INT_ARGB_PRE);
-			int[] data = ((DataBufferInt) temp.getRaster().getDataBuffer()).getData();
+	public long getStartedAt() {
+		return startedAt;
+	}
 
-			openSlide.paintRegionARGB(data, tileX, tileY, level, tileWidth, tileHeight);
+	public int getTileCount() {
+		return tiles.size();
+	}
 
-			BufferedImage img = new BufferedImage(tileWidth, tileHeight, BufferedImage.TYPE_INT_RGB);
-			Graphics2D g2d = img.createGraphics();
+	/**
+	 * @return number of tiles which could not be read, encoded or added to the archive.
+	 */
+	public int getFailed() {
+		return failed;
+	}
 
-			if (bgColor != null) {
-				g2d.setColor(bgColor);
-				g2d.fillRect(0, 0, tileWidth, tileHeight);
-			}
+	/**
+	 * @return description of the band for logging.
+	 */
+	public String getName() {
+		return String.format("band of %d tiles at %d,%d", tiles.size(), originX + bandX * level.getDownsample(), originY + bandY * level.getDownsample());
+	}
 
-			g2d.drawImage(temp, 0, 0, tileWidth, tileHeight, null);
-			g2d.dispose();
+	public String getTileName(Tile tile) {
+		return String.format(Constants.TILE_NAME_FORMAT,
+			level.getIndex(),
+			originX + tile.getX() * level.getDownsample(),
+			originY + tile.getY() * level.getDownsample(),
+			tile.getWidth(), tile.getHeight(),
+			encoder.getFormat().getExtension()
+		);
+	}
 
-			if (bgColor != null && isBackgroundTile(img)) {
-				return;
-			}
+	@Override
+	public void run() {
+		startedAt = System.currentTimeMillis();
+
+		if (bandWidth == 0 || bandHeight == 0) {
+			return;
+		}
+
+		double scale = level.getScale();
 
-			ByteArrayOutputStream os = new ByteArrayOutputStream();
-			ImageIO.write(img, "jpg", os);
+		int sourceWidth  = (int) Math.ceil(bandWidth  * scale);
+		int sourceHeight = (int) Math.ceil(bandHeight * scale);
 
-			archive.addTile(level + "_"+ tileX + "_" + tileY + "_" + tileWidth + "_" + tileHeight + ".jpg", os.toByteArray());
+		int[] band;
 
-			os.flush();
+		try {
+			band = TileRenderer.paintBand(
+				openSlide, level.getSourceLevel(),
+				originX + bandX * level.getDownsample(), originY + bandY * level.getDownsample(),
+				sourceWidth, sourceHeight,
+				background == null ? null : background.getBackground()
+			);
 		} catch (Exception e) {
-			logger.error("Error when generating tile: {}, row: {}, col: {}, x/y: {}/{}", slideName, tileX, tileY, tileWidth, tileHeight);
-			e.printStackTrace();
+			logger.error("Error when reading {} of {}, level: {}", getName(), slideName, level.getIndex(), e);
+			failed = tiles.size();
+			return;
 		}
-	}
 
-	/**
-	 * Checks if the tile can be considered background. Similar tones to background color are
-	 * ignored and a total of 1% of the pixels can be entirely different for the tile to be
-	 * considered background.
-	 * @param img BufferedImage of tile to check
-	 * @return true if to be considered background
-	 */
-	private boolean isBackgroundTile(BufferedImage img) {
-		int w = img.getWidth();
-		int h = img.getHeight();
+		BufferedImage source = scale == 1 ? null : TileBuffers.wrap(band, sourceWidth, sourceHeight);
 
-		int pixelsNotBackground = 0;
-		int maxPixelsDifferent = (int) Math.ceil(0.01f * w * h);
+		for (Tile tile : tiles) {
+			try {
+				int x = (int) (tile.getX() - bandX);
+				int y = (int) (tile.getY() - bandY);
 
-		for (int x = 0; x < w; x++) {
-			for (int y = 0; y < h; y++) {
-				if (img.getRGB(x, y) > scaleColor(bgColor, 1.05).getRGB() ||
-					img.getRGB(x, y) < scaleColor(bgColor, 0.95).getRGB()) {
+				BufferedImage img = TileBuffers.get().getImage(tile.getWidth(), tile.getHeight());
+				int[] data = TileBuffers.getPixels(img);
 
-					pixelsNotBackground++;
-
-					if (pixelsNotBackground > maxPixelsDifferent) {
-						return false;
+				if (source == null) {
+					for (int row = 0; row < tile.getHeight(); row++) {
+						System.arraycopy(band, (y + row) * sourceWidth + x, data, row * tile.getWidth(), tile.getWidth());
 					}
+				} else {
+					scale(source, img, x * scale, y * scale, tile.getWidth() * scale, tile.getHeight() * scale);
+				}
+
+				if (background != null && background.isBackground(data, data.length)) {
+					continue;
+				}
+
+				ByteArrayOutputStream os = encoder.encode(img);
+
+				if (cancelled) {
+					return;
+				}
+
+				// The archive logs the error
+				if (!archive.addTile(getTileName(tile), os.toByteArray())) {
+					failed++;
 				}
+			} catch (Exception e) {
+				logger.error("Error when generating tile: {}, level: {}, x/y: {}/{}", slideName, level.getIndex(), tile.getX(), tile.getY(), e);
+				failed++;
 			}
 		}
-
-		return true;
 	}
 
-	private Color scaleColor(Color color, double factor) {
-		return new Color(do8BitRangeCheck(color.getRed() * factor),
-				do8BitRangeCheck(color.getGreen() * factor),
-				do8BitRangeCheck(color.getBlue() * factor),
-				color.getAlpha());
+	/**
+	 * Scales a region of the band read from the source level to the size of a tile.
+	 */
+	private static void scale(BufferedImage source, BufferedImage target, double x, double y, double width, double height) {
+		Graphics2D graphics = target.createGraphics();
+
+		try {
+			graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			graphics.drawImage(source,
+				0, 0, target.getWidth(), target.getHeight(),
+				(int) Math.round(x), (int) Math.round(y),
+				(int) Math.min(source.getWidth(),  Math.round(x + width)),
+				(int) Math.min(source.getHeight(), Math.round(y + height)),
+				null
+			);
+		} finally {
+			graphics.dispose();
+		}
 	}
 
-	private int do8BitRangeCheck(double v) {
-		return v < 0 ? 0 : (v > 255 ? 255 : (int)v);
+	/**
+	 * A tile of a band, in the coordinates of its level relative to the origin of the tiled area.
+	 */
+	public static class Tile {
+
+		private final long x;
+		private final long y;
+		private final int width;
+		private final int height;
+
+		public Tile(long x, long y, int width, int height) {
+			this.x = x;
+			this.y = y;
+			this.width = width;
+			this.height = height;
+		}
+
+		public long getX() {
+			return x;
+		}
+
+		public long getY() {
+			return y;
+		}
+
+		public int getWidth() {
+			return width;
+		}
+
+		public int getHeight() {
+			return height;
+		}
 	}
 }
@@ -1,6 +1,11 @@
 package fi.ylihallila.server.generators;
 
+import fi.ylihallila.server.models.Slide;
+import fi.ylihallila.server.storage.DirectUploads;
 import fi.ylihallila.server.util.Constants;
+import fi.ylihallila.server.util.Database;
+import org.hibernate.Session;
+import org.openslide.OpenSlide;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
@@ -8,19 +13,33 @@ import org.slf4j.MDC;
 import java.io.IOException;
 import java.nio.file.*;
 import java.util.List;
+import java.util.Optional;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 
+import static fi.ylihallila.server.util.Config.Config;
+
 /**
  * Searches the slides directory for slides that are pending upload and submits
- * them to the TileGenerator, which tiles & saves the tiles using
+ * them to the TilingScheduler, which tiles & saves the tiles using
  * the Storage Provider defined in the server configuration.
+ *
+ * Slides uploaded directly to object storage are downloaded first, and then
+ * marked pending like any other slide.
  */
 public class Tiler implements Runnable {
 
-    private final ExecutorService executor = Executors.newSingleThreadExecutor();
     private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final TilingScheduler scheduler = new TilingScheduler(
+        Config.getInt("tiler.workers") > 0 ? Config.getInt("tiler.workers") : Runtime.getRuntime().availableProcessors(),
+        Config.getInt("tiler.concurrent.slides")
+    );
+
+    /**
+     * Downloads slides uploaded directly to object storage, one at a time.
+     */
+    private final ExecutorService downloads = Executors.newSingleThreadExecutor();
 
     public Tiler() {
         MDC.put("process", "tiler");
@@ -38,7 +57,7 @@ public class Tiler implements Runnable {
             logger.info("Checking for pending slides ...");
 
             List<Path> files = Files.list(Path.of(Constants.SLIDES_DIRECTORY))
-                    .filter(p -> p.endsWith(".pending"))
+                    .filter(p -> p.getFileName().toString().endsWith(".pending"))
                     .collect(Collectors.toList());
 
             if (files.size() > 0) {
@@ -47,18 +66,16 @@ public class Tiler implements Runnable {
                 for (Path file : files) {
                     logger.info("Adding {} to queue.", file.getFileName());
 
-                    executor.submit(() -> {
-                        try {
-                            new TileGenerator(file);
-                        } catch (IOException | InterruptedException e) {
-                            logger.error("Error while generating tiles for {}", file.getFileName(), e);
-                        }
-                    });
+                    scheduler.submit(file);
                 }
             } else {
                 logger.info("No pending slides.");
             }
 
+            Files.list(Path.of(Constants.SLIDES_DIRECTORY))
+                    .filter(p -> p.getFileName().toString().endsWith(".remote"))
+                    .forEach(this::download);
+
             logger.info("Waiting for slides ...");
 
             var valid = true;
@@ -78,13 +95,9 @@ public class Tiler implements Runnable {
                         System.out.println();
                         logger.info("Found new slide {}. Added to generation queue.", fileName);
 
-                        executor.submit(() -> {
-                            try {
-                                new TileGenerator(dir.resolve(changed));
-                            } catch (IOException | InterruptedException e) {
-                                logger.error("Error while generating tiles for {}", fileName, e);
-                            }
-                        });
+                        scheduler.submit(dir.resolve(changed));
+                    } else if (fileName.endsWith(".remote")) {
+                        download(dir.resolve(changed));
                     }
                 }
 
@@ -99,7 +112,7 @@ public class Tiler implements Runnable {
 //        while (true) {
 //            try {
 //                List<Path> files = Files.list(Path.of(Constants.SLIDES_DIRECTORY))
-//                        .filter(path -> path.endsWith(".pending"))
+//                        .filter(path -> path.getFileName().toString().endsWith(".pending"))
 //                        .collect(Collectors.toList());
 //
 //                if (files.size() > 0) {
@@ -122,4 +135,67 @@ public class Tiler implements Runnable {
 //            }
 //        }
     }
+
+    /**
+     * Downloads a slide uploaded directly to object storage and marks it pending. The download is
+     * moved in place atomically, so the slide is never tiled before it has been downloaded in full.
+     * Slides which OpenSlide can't open are deleted, as they would never be tiled.
+     *
+     * @param marker file containing the key of the slide in object storage.
+     */
+    private void download(Path marker) {
+        downloads.submit(() -> {
+            String id = marker.getFileName().toString().replace(".remote", "");
+            Path download = Path.of(String.format(Constants.DOWNLOADING_SLIDES, id));
+
+            try {
+                Optional<DirectUploads> directUploads = DirectUploads.getInstance();
+
+                if (directUploads.isEmpty()) {
+                    logger.error("Slide {} was uploaded directly, but the storage provider doesn't support direct uploads", id);
+                    return;
+                }
+
+                String key = Files.readString(marker).trim();
+
+                logger.info("Downloading slide {} from {}", id, key);
+
+                directUploads.get().download(key, download);
+
+                try {
+                    new OpenSlide(download.toFile()).close();
+                } catch (IOException e) {
+                    logger.error("Slide {} uploaded directly is not supported by OpenSlide, deleting it", id, e);
+
+                    Files.delete(download);
+                    Files.delete(marker);
+                    directUploads.get().delete(key);
+                    deleteSlide(id);
+
+                    return;
+                }
+
+                Files.move(download, Path.of(String.format(Constants.PENDING_SLIDES, id)), StandardCopyOption.ATOMIC_MOVE);
+                Files.delete(marker);
+
+                directUploads.get().delete(key);
+            } catch (Exception e) {
+                logger.error("Error while downloading slide {}. Restart the tiler to retry.", id, e);
+            }
+        });
+    }
+
+    private void deleteSlide(String id) {
+        Session session = Database.openSession();
+        session.beginTransaction();
+
+        Slide slide = session.find(Slide.class, id);
+
+        if (slide != null) {
+            session.delete(slide);
+        }
+
+        session.getTransaction().commit();
+        session.close();
+    }
 }
@@ -0,0 +1,311 @@
+package fi.ylihallila.server.generators;
+
+import fi.ylihallila.server.models.TilerStatus;
+import fi.ylihallila.server.models.TilingJob;
+import fi.ylihallila.server.util.Constants;
+import fi.ylihallila.server.util.Util;
+import org.apache.commons.compress.utils.FileNameUtils;
+import org.openslide.OpenSlide;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules slides for tiling. Several slides are tiled at the same time and all of them share one
+ * pool of tile workers, so the number of threads stays the same no matter how many slides are queued.
+ *
+ * Slides are processed shortest job first, based on the number of pixels on level 0, so that a small
+ * slide doesn't have to wait for a huge slide uploaded just before it. To avoid starving large slides,
+ * the size a slide is compared with halves every {@link #AGING} it has spent waiting.
+ *
+ * Jobs are persisted as {@link TilingJob TilingJobs}. When the scheduler is started, jobs which were
+ * queued or running when the tiler stopped are queued again and continue from their last checkpoint.
+ *
+ * The state of the queue is periodically written to {@link Constants#TILER_STATUS_FILE}, from where
+ * the server reads it.
+ */
+public class TilingScheduler {
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private static final long AGING = Duration.ofMinutes(10).toMillis();
+
+	private static final long PUBLISH_INTERVAL = Duration.ofSeconds(5).toMillis();
+
+	/**
+	 * Weight of the latest finished slide in the throughput estimate.
+	 */
+	private static final double THROUGHPUT_SMOOTHING = 0.3;
+
+	private final ForkJoinPool workers;
+	private final ExecutorService slides;
+	private final ScheduledExecutorService publisher = Executors.newSingleThreadScheduledExecutor();
+
+	private final int workerCount;
+	private final int concurrentSlides;
+
+	private final List<Job> queue   = new ArrayList<>();
+	private final List<Job> running = new ArrayList<>();
+
+	/**
+	 * Level 0 pixels per second tiled for a single slide, or 0 if unknown.
+	 */
+	private double throughput = 0;
+
+	/**
+	 * @param workers total number of tile worker threads.
+	 * @param concurrentSlides number of slides tiled at the same time.
+	 */
+	public TilingScheduler(int workers, int concurrentSlides) {
+		this.workerCount = workers;
+		this.concurrentSlides = concurrentSlides;
+		this.workers = new ForkJoinPool(workers);
+		this.slides = Executors.newFixedThreadPool(concurrentSlides);
+
+		resume();
+
+		for (int i = 0; i < concurrentSlides; i++) {
+			slides.execute(this::process);
+		}
+
+		publisher.scheduleAtFixedRate(this::publish, 0, PUBLISH_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Adds a slide to the tiling queue. If the slide has been partially tiled before, tiling
+	 * continues from the last checkpoint.
+	 *
+	 * @param slide path to the slide.
+	 */
+	public void submit(Path slide) {
+		String id = FileNameUtils.getBaseName(slide.getFileName().toString());
+
+		if (isQueued(id)) {
+			logger.debug("{} already queued", slide.getFileName());
+			return;
+		}
+
+		TilingJob tilingJob = TilingJob.find(id)
+			.filter(existing -> existing.getState() != TilingJob.State.DONE)
+			.orElseGet(() -> new TilingJob(id, slide.toString(), readPixelCount(slide)));
+
+		tilingJob.queued();
+
+		enqueue(new Job(slide, tilingJob));
+	}
+
+	public synchronized boolean isQueued(String id) {
+		return queue.stream().anyMatch(job -> job.getId().equals(id)) ||
+		       running.stream().anyMatch(job -> job.getId().equals(id));
+	}
+
+	/**
+	 * Queues jobs which were queued or running when the tiler was stopped.
+	 */
+	private void resume() {
+		for (TilingJob tilingJob : TilingJob.findUnfinished()) {
+			Path slide = Path.of(tilingJob.getSource());
+
+			if (Files.exists(slide)) {
+				logger.info("Resuming {}", tilingJob);
+
+				enqueue(new Job(slide, tilingJob));
+			} else {
+				boolean tiled = Files.exists(Path.of(String.format(Constants.SLIDE_PROPERTIES_FILE, tilingJob.getId())));
+				logger.warn("Slide for {} no longer exists, marking as {}", tilingJob, tiled ? "done" : "failed");
+
+				tilingJob.finished(tiled);
+			}
+		}
+	}
+
+	private void enqueue(Job job) {
+		synchronized (this) {
+			queue.add(job);
+			notifyAll();
+		}
+
+		logger.info("Added {} to queue [{} pixels, {} slides queued]", job.slide.getFileName(), job.pixels, getQueueDepth());
+
+		publish();
+	}
+
+	public synchronized int getQueueDepth() {
+		return queue.size();
+	}
+
+	private void process() {
+		MDC.put("process", "tiler");
+
+		while (!Thread.currentThread().isInterrupted()) {
+			Job job;
+
+			try {
+				job = take();
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			publish();
+
+			try {
+				new TileGenerator(job.slide.toFile(), workers, job.tilingJob);
+
+				finished(job, true);
+			} catch (Exception e) {
+				logger.error("Error while generating tiles for {}", job.slide.getFileName(), e);
+
+				finished(job, false);
+			}
+
+			publish();
+		}
+	}
+
+	/**
+	 * Takes the slide with the smallest aged size from the queue, waiting until one is available.
+	 */
+	private synchronized Job take() throws InterruptedException {
+		while (queue.isEmpty()) {
+			wait();
+		}
+
+		long now = System.currentTimeMillis();
+		Job job = queue.stream().min(Comparator.comparingDouble(j -> j.getAgedPixels(now))).get();
+
+		queue.remove(job);
+		running.add(job);
+		job.startedAt = now;
+		job.tilingJob.started();
+
+		return job;
+	}
+
+	private synchronized void finished(Job job, boolean success) {
+		running.remove(job);
+		job.tilingJob.finished(success);
+
+		double seconds = (System.currentTimeMillis() - job.startedAt) / 1000.0;
+
+		if (success && job.pixels > 0 && seconds > 0) {
+			double rate = job.pixels / seconds;
+			throughput = throughput == 0 ? rate : THROUGHPUT_SMOOTHING * rate + (1 - THROUGHPUT_SMOOTHING) * throughput;
+		}
+	}
+
+	/**
+	 * Writes the current state of the queue to {@link Constants#TILER_STATUS_FILE}. The estimates
+	 * assume every slide is tiled at the measured throughput and a queued slide starts as soon as
+	 * any running slide finishes.
+	 */
+	private void publish() {
+		try {
+			Path path = Path.of(Constants.TILER_STATUS_FILE);
+			Path temp = Path.of(Constants.TILER_STATUS_FILE + ".tmp");
+
+			Util.getMapper().writeValue(temp.toFile(), getStatus());
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			logger.error("Error while publishing tiler status", e);
+		}
+	}
+
+	private synchronized TilerStatus getStatus() {
+		long now = System.currentTimeMillis();
+		List<TilerStatus.Job> jobs = new ArrayList<>();
+
+		// Time in milliseconds from now until each slot is free
+		PriorityQueue<Long> slots = new PriorityQueue<>();
+		for (int i = running.size(); i < concurrentSlides; i++) {
+			slots.add(0L);
+		}
+
+		for (Job job : running) {
+			long remaining = Math.max(0, estimateDuration(job) - (now - job.startedAt));
+			slots.add(remaining);
+
+			jobs.add(new TilerStatus.Job(job.getId(), job.pixels, true, job.queuedAt, toSeconds(remaining)));
+		}
+
+		List<Job> queued = new ArrayList<>(queue);
+		queued.sort(Comparator.comparingDouble(j -> j.getAgedPixels(now)));
+
+		for (Job job : queued) {
+			long finishedAt = slots.poll() + estimateDuration(job);
+			slots.add(finishedAt);
+
+			jobs.add(new TilerStatus.Job(job.getId(), job.pixels, false, job.queuedAt, toSeconds(finishedAt)));
+		}
+
+		long eta = throughput == 0 ? -1 : toSeconds(slots.stream().max(Long::compare).orElse(0L));
+
+		return new TilerStatus(now, workerCount, concurrentSlides, queue.size(), throughput, eta, jobs);
+	}
+
+	/**
+	 * @return estimated milliseconds it takes to tile given slide, or -1 if unknown.
+	 */
+	private long estimateDuration(Job job) {
+		if (throughput == 0) {
+			return -1;
+		}
+
+		return (long) (job.pixels / throughput * 1000);
+	}
+
+	private long toSeconds(long millis) {
+		return throughput == 0 ? -1 : millis / 1000;
+	}
+
+	private long readPixelCount(Path slide) {
+		try (OpenSlide openSlide = new OpenSlide(slide.toFile())) {
+			return openSlide.getLevel0Width() * openSlide.getLevel0Height();
+		} catch (Exception e) {
+			logger.warn("Could not read size of {}, tiling it first", slide.getFileName(), e);
+			return 0;
+		}
+	}
+
+	private static class Job {
+
+		private final Path slide;
+		private final TilingJob tilingJob;
+		private final long pixels;
+		private final long queuedAt;
+
+		private long startedAt;
+
+		private Job(Path slide, TilingJob tilingJob) {
+			this.slide = slide;
+			this.tilingJob = tilingJob;
+			this.pixels = tilingJob.getPixels();
+			this.queuedAt = tilingJob.getQueuedAt();
+		}
+
+		private String getId() {
+			return tilingJob.getId();
+		}
+
+		/**
+		 * @return number of pixels, halved for every {@link #AGING} spent waiting.
+		 */
+		private double getAgedPixels(long now) {
+			return pixels / Math.pow(2, (double) (now - queuedAt) / AGING);
+		}
+	}
+}
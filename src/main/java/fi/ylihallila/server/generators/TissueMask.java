@@ -0,0 +1,133 @@
+package fi.ylihallila.server.generators;
+
+import org.openslide.OpenSlide;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.BitSet;
+
+/**
+ * Low resolution mask of the areas of a slide which contain tissue. The mask is built from a
+ * thumbnail of the slide before tiling, so that tiles which would contain only background are
+ * never read from OpenSlide in the first place.
+ *
+ * A pixel of the thumbnail is considered tissue unless it is transparent (i.e. not scanned) or
+ * background according to the provided {@link BackgroundDetector}. As the thumbnail is heavily
+ * downsampled, the tissue area is grown by one mask pixel in every direction to avoid losing
+ * thin tissue at the edges.
+ */
+public class TissueMask {
+
+	/**
+	 * Maximum width or height of the thumbnail used to build the mask.
+	 */
+	private static final int MASK_SIZE = 1024;
+
+	/**
+	 * Pixels with lower alpha than this are mostly not scanned and are never considered tissue.
+	 */
+	private static final int MIN_ALPHA = 128;
+
+	private final BitSet mask;
+
+	private final int width;
+	private final int height;
+
+	/**
+	 * How many level 0 pixels one mask pixel represents on each axis.
+	 */
+	private final double scaleX;
+	private final double scaleY;
+
+	private TissueMask(BitSet mask, int width, int height, double scaleX, double scaleY) {
+		this.mask = mask;
+		this.width = width;
+		this.height = height;
+		this.scaleX = scaleX;
+		this.scaleY = scaleY;
+	}
+
+	/**
+	 * Builds a tissue mask for the slide.
+	 *
+	 * @param openSlide slide to build the mask for.
+	 * @param background detector for background pixels or null to only exclude areas which were not scanned.
+	 * @return tissue mask.
+	 * @throws IOException if reading the thumbnail fails.
+	 */
+	public static TissueMask create(OpenSlide openSlide, BackgroundDetector background) throws IOException {
+		long slideWidth  = openSlide.getLevel0Width();
+		long slideHeight = openSlide.getLevel0Height();
+
+		BufferedImage thumbnail = openSlide.createThumbnailImage(
+			0, 0, slideWidth, slideHeight, MASK_SIZE, BufferedImage.TYPE_INT_ARGB
+		);
+
+		int width  = thumbnail.getWidth();
+		int height = thumbnail.getHeight();
+		int[] pixels = thumbnail.getRGB(0, 0, width, height, null, 0, width);
+
+		BitSet tissue = new BitSet(width * height);
+
+		for (int i = 0; i < pixels.length; i++) {
+			int pixel = pixels[i];
+
+			if ((pixel >>> 24) >= MIN_ALPHA && (background == null || !background.isBackground(pixel))) {
+				tissue.set(i);
+			}
+		}
+
+		return new TissueMask(
+			dilate(tissue, width, height), width, height,
+			1.0 * slideWidth / width, 1.0 * slideHeight / height
+		);
+	}
+
+	/**
+	 * Checks if the given level 0 region contains any tissue.
+	 *
+	 * @param x level 0 x coordinate of the region.
+	 * @param y level 0 y coordinate of the region.
+	 * @param w level 0 width of the region.
+	 * @param h level 0 height of the region.
+	 * @return true if the region contains tissue.
+	 */
+	public boolean intersects(long x, long y, long w, long h) {
+		int startX = Math.max(0, (int) Math.floor(x / scaleX));
+		int startY = Math.max(0, (int) Math.floor(y / scaleY));
+		int endX   = Math.min(width,  (int) Math.ceil((x + w) / scaleX));
+		int endY   = Math.min(height, (int) Math.ceil((y + h) / scaleY));
+
+		for (int row = startY; row < endY; row++) {
+			int next = mask.nextSetBit(row * width + startX);
+
+			if (next >= 0 && next < row * width + endX) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return fraction of the slide covered by tissue, between 0 and 1.
+	 */
+	public double getCoverage() {
+		return 1.0 * mask.cardinality() / (width * height);
+	}
+
+	private static BitSet dilate(BitSet tissue, int width, int height) {
+		BitSet dilated = new BitSet(width * height);
+
+		for (int i = tissue.nextSetBit(0); i >= 0; i = tissue.nextSetBit(i + 1)) {
+			int x = i % width;
+			int y = i / width;
+
+			for (int row = Math.max(0, y - 1); row <= Math.min(height - 1, y + 1); row++) {
+				dilated.set(row * width + Math.max(0, x - 1), row * width + Math.min(width - 1, x + 1) + 1);
+			}
+		}
+
+		return dilated;
+	}
+}
@@ -0,0 +1,141 @@
+package fi.ylihallila.server.models;
+
+import java.util.List;
+
+/**
+ * Snapshot of the tiling queue, published by the {@link fi.ylihallila.server.generators.Tiler Tiler}
+ * so that the server can show the queue to its users.
+ */
+public class TilerStatus {
+
+    /**
+     * Unix timestamp as milliseconds. Represents when this snapshot was taken.
+     */
+    private long updatedAt;
+
+    /**
+     * Number of threads shared by every slide being tiled.
+     */
+    private int workers;
+
+    /**
+     * Number of slides which can be tiled at the same time.
+     */
+    private int concurrentSlides;
+
+    /**
+     * Number of slides waiting for their turn.
+     */
+    private int queueDepth;
+
+    /**
+     * Measured tiling throughput of a single slide in level 0 pixels per second, or 0 if nothing
+     * has been tiled yet.
+     */
+    private double throughput;
+
+    /**
+     * Estimated seconds until every slide in the queue is tiled, or -1 if unknown.
+     */
+    private long eta;
+
+    /**
+     * Slides currently being tiled and waiting in the queue, in the order they are processed.
+     */
+    private List<Job> jobs;
+
+    public TilerStatus() {}
+
+    public TilerStatus(long updatedAt, int workers, int concurrentSlides, int queueDepth, double throughput, long eta, List<Job> jobs) {
+        this.updatedAt = updatedAt;
+        this.workers = workers;
+        this.concurrentSlides = concurrentSlides;
+        this.queueDepth = queueDepth;
+        this.throughput = throughput;
+        this.eta = eta;
+        this.jobs = jobs;
+    }
+
+    public long getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    public int getConcurrentSlides() {
+        return concurrentSlides;
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public double getThroughput() {
+        return throughput;
+    }
+
+    public long getEta() {
+        return eta;
+    }
+
+    public List<Job> getJobs() {
+        return jobs;
+    }
+
+    public static class Job {
+
+        /**
+         * UUID of the slide.
+         */
+        private String id;
+
+        /**
+         * Number of pixels on level 0 of the slide, used to order the queue.
+         */
+        private long pixels;
+
+        private boolean running;
+
+        /**
+         * Unix timestamp as milliseconds. Represents when the slide was added to the queue.
+         */
+        private long queuedAt;
+
+        /**
+         * Estimated seconds until this slide is tiled, or -1 if unknown.
+         */
+        private long eta;
+
+        public Job() {}
+
+        public Job(String id, long pixels, boolean running, long queuedAt, long eta) {
+            this.id = id;
+            this.pixels = pixels;
+            this.running = running;
+            this.queuedAt = queuedAt;
+            this.eta = eta;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public long getPixels() {
+            return pixels;
+        }
+
+        public boolean isRunning() {
+            return running;
+        }
+
+        public long getQueuedAt() {
+            return queuedAt;
+        }
+
+        public long getEta() {
+            return eta;
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package fi.ylihallila.server.models;
+
+import fi.ylihallila.server.util.Database;
+import org.hibernate.Session;
+
+import javax.persistence.*;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * A slide in the tiling queue. Jobs are persisted so that if the tiler is restarted, queued slides
+ * are tiled again and slides which were being tiled continue from the last checkpoint.
+ *
+ * A checkpoint is saved when a whole level or, when tiles are streamed to storage, a batch of tiles
+ * has been committed to storage. Anything after the last checkpoint is generated and committed again,
+ * so every tile is committed at least once.
+ */
+@Entity
+@Table( name = "tiling_jobs" )
+public class TilingJob {
+
+    /**
+     * UUID of the slide being tiled.
+     */
+    @Id
+    @Column(name = "id", updatable = false, nullable = false)
+    private String id;
+
+    /**
+     * Path to the slide file.
+     */
+    private String source;
+
+    @Enumerated(EnumType.STRING)
+    private State state;
+
+    /**
+     * Number of pixels on level 0, used to order the queue.
+     */
+    private long pixels;
+
+    /**
+     * Unix timestamps as milliseconds.
+     */
+    private long queuedAt;
+    private Long startedAt;
+    private Long finishedAt;
+
+    /**
+     * How many times tiling this slide has been started.
+     */
+    private int attempts;
+
+    /**
+     * How levels were split into batches when the batch checkpoints were saved.
+     */
+    private String batchLayout;
+
+    /**
+     * Completed levels as "level" and completed batches of tiles as "level:batch".
+     */
+    @ElementCollection(fetch = FetchType.EAGER)
+    @CollectionTable(name = "tiling_checkpoints", joinColumns = @JoinColumn(name = "job_id"))
+    @Column(name = "checkpoint")
+    private Set<String> checkpoints = new HashSet<>();
+
+    public TilingJob() {}
+
+    public TilingJob(String id, String source, long pixels) {
+        this.id = id;
+        this.source = source;
+        this.pixels = pixels;
+        this.state = State.QUEUED;
+        this.queuedAt = System.currentTimeMillis();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public long getPixels() {
+        return pixels;
+    }
+
+    public long getQueuedAt() {
+        return queuedAt;
+    }
+
+    public Long getStartedAt() {
+        return startedAt;
+    }
+
+    public Long getFinishedAt() {
+        return finishedAt;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Marks this job as queued and saves it.
+     */
+    public void queued() {
+        this.state = State.QUEUED;
+        save();
+    }
+
+    /**
+     * Marks this job as started and saves it.
+     */
+    public void started() {
+        this.state = State.RUNNING;
+        this.startedAt = System.currentTimeMillis();
+        this.attempts++;
+        save();
+    }
+
+    /**
+     * Marks this job as finished and saves it.
+     *
+     * @param success true if every level was tiled.
+     */
+    public void finished(boolean success) {
+        this.state = success ? State.DONE : State.FAILED;
+        this.finishedAt = System.currentTimeMillis();
+        save();
+    }
+
+    public synchronized boolean isLevelDone(int level) {
+        return checkpoints.contains(String.valueOf(level));
+    }
+
+    public synchronized boolean isBatchDone(int level, int batch) {
+        return checkpoints.contains(level + ":" + batch);
+    }
+
+    /**
+     * Sets how levels are split into batches. If the batch checkpoints were saved with a different
+     * layout, e.g. by an older version of the tiler or with another batch size, the same batch index
+     * refers to different tiles, so the batch checkpoints are discarded. Level checkpoints are kept.
+     *
+     * @param layout description of how levels are split into batches.
+     * @return true if batch checkpoints were discarded.
+     */
+    public synchronized boolean setBatchLayout(String layout) {
+        if (layout.equals(batchLayout)) {
+            return false;
+        }
+
+        boolean discarded = checkpoints.removeIf(checkpoint -> checkpoint.contains(":"));
+
+        batchLayout = layout;
+        save();
+
+        return discarded;
+    }
+
+    /**
+     * Saves a checkpoint for a level, which has been fully committed to storage.
+     */
+    public synchronized void checkpoint(int level) {
+        checkpoints.add(String.valueOf(level));
+        save();
+    }
+
+    /**
+     * Saves a checkpoint for a batch of tiles, which has been fully committed to storage.
+     */
+    public synchronized void checkpoint(int level, int batch) {
+        checkpoints.add(level + ":" + batch);
+        save();
+    }
+
+    private synchronized void save() {
+        Session session = Database.openSession();
+        session.beginTransaction();
+
+        session.merge(this);
+
+        session.getTransaction().commit();
+        session.close();
+    }
+
+    public static Optional<TilingJob> find(String id) {
+        Session session = Database.openSession();
+
+        try {
+            return Optional.ofNullable(session.find(TilingJob.class, id));
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * @return jobs which are queued or were running when the tiler stopped.
+     */
+    public static List<TilingJob> findUnfinished() {
+        Session session = Database.openSession();
+
+        try {
+            return session.createQuery("from TilingJob where state in (:states)", TilingJob.class)
+                    .setParameter("states", List.of(State.QUEUED, State.RUNNING))
+                    .list();
+        } finally {
+            session.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TilingJob{" +
+                "id='" + id + '\'' +
+                ", state=" + state +
+                ", attempts=" + attempts +
+                ", checkpoints=" + checkpoints.size() +
+                '}';
+    }
+
+    public enum State {
+
+        QUEUED,
+        RUNNING,
+        DONE,
+        FAILED
+
+    }
+}
@@ -0,0 +1,437 @@
+package fi.ylihallila.server.models;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import fi.ylihallila.server.util.Constants;
+import fi.ylihallila.server.util.Database;
+import org.hibernate.Session;
+
+import javax.persistence.*;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * A slide being uploaded in chunks. Chunks may be uploaded in any order and in parallel. The chunks
+ * which have been received are tracked, so the slide is only processed once every chunk has been
+ * written, regardless of the size of the file on disk.
+ *
+ * Sessions are persisted whenever a chunk has been received, so an interrupted upload can be resumed
+ * by uploading only the missing chunks, even after the server has been restarted.
+ *
+ * A direct upload is uploaded by the client to object storage instead, one part per chunk, and the
+ * chunks received are synchronized from the parts uploaded to the object store.
+ */
+@Entity
+@Table( name = "upload_sessions" )
+public class UploadSession {
+
+    @Id
+    @Column(name = "id", updatable = false, nullable = false)
+    private String id;
+
+    private String filename;
+
+    /**
+     * Id of the user who started the upload. Only they may upload chunks.
+     */
+    private String owner;
+
+    private long size;
+    private int chunkSize;
+    private int chunkCount;
+
+    /**
+     * Chunks which have been written in full, as the bytes of a {@link BitSet}.
+     */
+    private byte[] chunks;
+
+    /**
+     * Chunks which have been written in full. Guarded by this, like the fields below.
+     */
+    @Transient
+    private BitSet received;
+
+    /**
+     * Number of chunks currently being written.
+     */
+    @Transient
+    private int writing = 0;
+
+    private boolean finalized = false;
+
+    /**
+     * Id of the multipart upload in object storage, or null if the chunks are uploaded to the server.
+     */
+    private String remoteId;
+
+    @Transient
+    private FileChannel channel;
+
+    /**
+     * Unix timestamps as milliseconds.
+     */
+    private long createdAt;
+    private long updatedAt;
+
+    public UploadSession() {}
+
+    public UploadSession(String id, String filename, String owner, long size, int chunkSize) {
+        if (size <= 0 || chunkSize <= 0) {
+            throw new IllegalArgumentException("Size and chunk size must be positive");
+        }
+
+        // Rounded up without adding to size, which could overflow
+        if ((size - 1) / chunkSize + 1 > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many chunks, use larger chunks");
+        }
+
+        this.id = id;
+        this.filename = filename;
+        this.owner = owner;
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.chunkCount = (int) ((size - 1) / chunkSize + 1);
+        this.received = new BitSet(chunkCount);
+        this.chunks = new byte[0];
+        this.createdAt = System.currentTimeMillis();
+        this.updatedAt = createdAt;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    @JsonIgnore
+    public String getOwner() {
+        return owner;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    @JsonIgnore
+    public String getRemoteId() {
+        return remoteId;
+    }
+
+    public void setRemoteId(String remoteId) {
+        this.remoteId = remoteId;
+    }
+
+    /**
+     * @return true if the chunks are uploaded directly to object storage.
+     */
+    public boolean isDirect() {
+        return remoteId != null;
+    }
+
+    /**
+     * @return key of the slide in object storage, for direct uploads.
+     */
+    @JsonIgnore
+    public String getRemoteKey() {
+        return id + "/" + filename;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public synchronized long getUpdatedAt() {
+        return updatedAt;
+    }
+
+    /**
+     * @param expiry milliseconds an upload is kept without receiving any chunks.
+     * @return Unix timestamp as milliseconds after which the upload is deleted.
+     */
+    public synchronized long getExpiresAt(long expiry) {
+        return updatedAt + expiry;
+    }
+
+    /**
+     * @param expiry milliseconds an upload is kept without receiving any chunks.
+     * @return true if the upload has expired and no chunks are being written.
+     */
+    public synchronized boolean isExpired(long expiry) {
+        return writing == 0 && System.currentTimeMillis() > getExpiresAt(expiry);
+    }
+
+    /**
+     * Finalizes the upload if it has expired, so no chunk can begin writing between checking the
+     * expiry and deleting the upload. Uploads which were finalized but never deleted, e.g. because
+     * processing the slide failed or the server was stopped, expire once the expiry has passed
+     * since they were finalized.
+     *
+     * @param expiry milliseconds an upload is kept without receiving any chunks.
+     * @return true if the upload had expired and must be deleted.
+     */
+    public synchronized boolean expire(long expiry) {
+        if (!isExpired(expiry)) {
+            return false;
+        }
+
+        finalized = true;
+
+        return true;
+    }
+
+    /**
+     * @return file the chunks are written to.
+     */
+    @JsonIgnore
+    public Path getPath() {
+        return Path.of(String.format(Constants.UPLOAD_FILE, id));
+    }
+
+    /**
+     * @return position of a chunk in the file.
+     */
+    public long getChunkOffset(int chunk) {
+        return (long) chunk * chunkSize;
+    }
+
+    /**
+     * @return length of a chunk, which is less than the chunk size only for the last chunk.
+     */
+    public int getChunkLength(int chunk) {
+        return (int) Math.min(chunkSize, size - getChunkOffset(chunk));
+    }
+
+    public boolean isChunk(int chunk) {
+        return chunk >= 0 && chunk < chunkCount;
+    }
+
+    public synchronized int getReceivedCount() {
+        return getReceived().cardinality();
+    }
+
+    /**
+     * Number of bytes received from the start of the file without gaps, like Upload-Offset of tus.
+     * A client uploading chunks in order can resume from this offset.
+     */
+    public synchronized long getOffset() {
+        int firstMissing = getReceived().nextClearBit(0);
+
+        return firstMissing >= chunkCount ? size : getChunkOffset(firstMissing);
+    }
+
+    /**
+     * @return indices of the chunks which haven't been received yet, in ascending order.
+     */
+    public synchronized List<Integer> getMissing() {
+        BitSet received = getReceived();
+        List<Integer> missing = new ArrayList<>(chunkCount - received.cardinality());
+
+        for (int chunk = received.nextClearBit(0); chunk < chunkCount; chunk = received.nextClearBit(chunk + 1)) {
+            missing.add(chunk);
+        }
+
+        return missing;
+    }
+
+    public synchronized boolean isComplete() {
+        return getReceived().cardinality() == chunkCount;
+    }
+
+    public synchronized boolean isFinalized() {
+        return finalized;
+    }
+
+    /**
+     * Opens the file for writing, if not already open. The channel is shared by every chunk, which
+     * are written with positional writes.
+     *
+     * @throws ClosedChannelException if the upload has been closed, e.g. cancelled while the chunk
+     *                                was being uploaded. The file is never opened again after that.
+     */
+    @JsonIgnore
+    public synchronized FileChannel getChannel() throws IOException {
+        if (finalized) {
+            throw new ClosedChannelException();
+        }
+
+        if (channel == null) {
+            channel = FileChannel.open(getPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        }
+
+        return channel;
+    }
+
+    /**
+     * Records activity on a direct upload, whose chunks are uploaded to object storage without the
+     * server seeing them, so that it doesn't expire while its chunks are still being uploaded.
+     */
+    public synchronized void touch() {
+        if (finalized) {
+            return;
+        }
+
+        updatedAt = System.currentTimeMillis();
+        save();
+    }
+
+    /**
+     * Registers a chunk being written.
+     *
+     * @return false if the upload has already been finalized.
+     */
+    public synchronized boolean beginWrite() {
+        if (finalized) {
+            return false;
+        }
+
+        writing++;
+        updatedAt = System.currentTimeMillis();
+
+        return true;
+    }
+
+    /**
+     * @param chunk chunk which was written.
+     * @param success true if the whole chunk was written and verified.
+     */
+    public synchronized void endWrite(int chunk, boolean success) {
+        writing--;
+        updatedAt = System.currentTimeMillis();
+
+        // A closed upload may already have been deleted, and saving it would bring it back
+        if (success && !finalized && !getReceived().get(chunk)) {
+            received.set(chunk);
+            chunks = received.toByteArray();
+
+            save();
+        }
+    }
+
+    /**
+     * Marks the parts uploaded to object storage as received. Parts which aren't the size of their chunk
+     * are still being uploaded or were uploaded with the wrong size, and must be uploaded again.
+     *
+     * @param parts sizes of the uploaded parts, by chunk.
+     */
+    public synchronized void setReceived(Map<Integer, Long> parts) {
+        BitSet received = new BitSet(chunkCount);
+
+        parts.forEach((chunk, length) -> {
+            if (isChunk(chunk) && length == getChunkLength(chunk)) {
+                received.set(chunk);
+            }
+        });
+
+        if (!finalized && !received.equals(getReceived())) {
+            this.received = received;
+            this.chunks = received.toByteArray();
+            this.updatedAt = System.currentTimeMillis();
+
+            save();
+        }
+    }
+
+    /**
+     * Finalizes the upload, after which no more chunks are accepted.
+     *
+     * @return false if chunks are missing, still being written or the upload was already finalized.
+     */
+    public synchronized boolean finalizeUpload() {
+        if (finalized || writing > 0 || !isComplete()) {
+            return false;
+        }
+
+        finalized = true;
+        updatedAt = System.currentTimeMillis();
+        save();
+
+        return true;
+    }
+
+    /**
+     * Forces the chunks to disk and closes the file. Chunks can no longer be written after this,
+     * and chunks still being written fail instead of opening the file again.
+     */
+    public synchronized void close() throws IOException {
+        finalized = true;
+
+        if (channel != null) {
+            channel.force(false);
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private BitSet getReceived() {
+        if (received == null) {
+            received = chunks == null ? new BitSet(chunkCount) : BitSet.valueOf(chunks);
+        }
+
+        return received;
+    }
+
+    public synchronized void save() {
+        Session session = Database.openSession();
+        session.beginTransaction();
+
+        session.merge(this);
+
+        session.getTransaction().commit();
+        session.close();
+    }
+
+    public void delete() {
+        Session session = Database.openSession();
+        session.beginTransaction();
+
+        session.createQuery("delete from UploadSession where id = :id")
+                .setParameter("id", id)
+                .executeUpdate();
+
+        session.getTransaction().commit();
+        session.close();
+    }
+
+    public static Optional<UploadSession> find(String id) {
+        Session session = Database.openSession();
+
+        try {
+            return Optional.ofNullable(session.find(UploadSession.class, id));
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * @param updatedBefore Unix timestamp as milliseconds.
+     * @return uploads which haven't received any chunks since the given time.
+     */
+    public static List<UploadSession> findUpdatedBefore(long updatedBefore) {
+        Session session = Database.openSession();
+
+        try {
+            return session.createQuery("from UploadSession where updatedAt < :updatedBefore", UploadSession.class)
+                    .setParameter("updatedBefore", updatedBefore)
+                    .list();
+        } finally {
+            session.close();
+        }
+    }
+}
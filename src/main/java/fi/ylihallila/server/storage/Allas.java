@@ -1,26 +1,74 @@
 package fi.ylihallila.server.storage;
 
+import fi.ylihallila.server.archivers.PackedTileArchive;
+import fi.ylihallila.server.generators.TileFormat;
 import fi.ylihallila.server.util.Constants;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.javaswift.joss.client.factory.AccountFactory;
 import org.javaswift.joss.client.factory.AuthenticationMethod;
 import org.javaswift.joss.client.factory.AuthenticationMethodScope;
+import org.javaswift.joss.headers.GeneralHeader;
+import org.javaswift.joss.exception.NotFoundException;
+import org.javaswift.joss.headers.object.ObjectManifest;
+import org.javaswift.joss.headers.object.range.MidPartRange;
+import org.javaswift.joss.instructions.DownloadInstructions;
+import org.javaswift.joss.instructions.UploadInstructions;
 import org.javaswift.joss.model.Account;
 import org.javaswift.joss.model.Container;
 import org.javaswift.joss.model.StoredObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.File;
+import java.io.*;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 import static fi.ylihallila.server.util.Config.Config;
 
-public class Allas implements StorageProvider {
+public class Allas implements StorageProvider, DirectUploads {
 
-    public final static String SLIDE_URL     = "{host}/{id}/tiles/{level}_{tileX}_{tileY}_{tileWidth}_{tileHeight}.jpg";
+    public final static String SLIDE_URL     = "{host}/{id}/tiles/{level}_{tileX}_{tileY}_{tileWidth}_{tileHeight}.{extension}";
     public final static String THUMBNAIL_URL = "{host}/{id}_thumbnail.jpg";
 
+    /**
+     * Segments of a direct upload, which are joined by a manifest object once uploaded.
+     */
+    private final static String SEGMENT_PREFIX = "%s.segments/";
+    private final static String SEGMENT_NAME   = SEGMENT_PREFIX + "%08d";
+
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
+    /**
+     * Uploads archive segments of every slide, at most allas.upload.concurrency at a time.
+     */
+    private static final ExecutorService uploaders = Executors.newFixedThreadPool(Config.getInt("allas.upload.concurrency"), runnable -> {
+        Thread thread = new Thread(runnable, "Allas-uploader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     /**
      * Account used to upload tiles with.
      */
@@ -46,17 +94,45 @@ public class Allas implements StorageProvider {
     }
 
     public Allas(AccountFactory accountFactory, String containerName) {
-        this.account = accountFactory.createAccount();
+        this(accountFactory, containerName, true);
+    }
+
+    /**
+     * @param isPublic true if the contents of the container are publicly readable, as tiles are.
+     */
+    public Allas(AccountFactory accountFactory, String containerName, boolean isPublic) {
+        this(accountFactory.createAccount(), containerName, isPublic);
+    }
+
+    /**
+     * @param account authenticated account, which may be shared by other instances.
+     * @param isPublic true if the contents of the container are publicly readable, as tiles are.
+     */
+    public Allas(Account account, String containerName, boolean isPublic) {
+        this(account, containerName, isPublic, true);
+    }
+
+    /**
+     * @param account authenticated account, which may be shared by other instances.
+     * @param isPublic true if the contents of the container are publicly readable, as tiles are.
+     * @param create false to use the container as is, without creating it or changing its access.
+     */
+    public Allas(Account account, String containerName, boolean isPublic, boolean create) {
+        this.account = account;
         this.container = account.getContainer(containerName);
 
         logger.debug("Created new Allas instance");
 
+        if (!create) {
+            return;
+        }
+
         if (!container.exists()) {
             container.create();
             logger.debug("Created new Allas Bucket: {}", containerName);
         }
 
-        if (!container.isPublic()) {
+        if (isPublic && !container.isPublic()) {
             container.makePublic();
             logger.debug("Made Allas Bucket {} public", containerName);
         }
@@ -76,15 +152,291 @@ public class Allas implements StorageProvider {
 
     /**
      * Uploads an archive to Allas Object Storage. The container object "tiles" is used,
-     * as that will be the folder the archive contents will be extracted to.
+     * as that will be the folder the archive contents will be extracted to. Allas only
+     * extracts tar archives, so a {@link PackedTileArchive} is converted to tar segments
+     * of allas.archive.segment.size first.
+     *
+     * Segments are uploaded in parallel while the next segments are still being written,
+     * and each segment is retried on its own, so a failed request doesn't upload the whole
+     * level again.
      *
      * @param file archive to upload.
+     * @throws UncheckedIOException if a segment could not be uploaded, so the level isn't
+     *         checkpointed with tiles missing.
      */
     @Override public void commitArchive(File file) {
+        if (!file.getName().endsWith(PackedTileArchive.EXTENSION)) {
+            retry("archive " + file.getName(), () -> uploadArchive(file));
+            return;
+        }
+
+        long segmentSize = Config.getBytes("allas.archive.segment.size");
+        int concurrency = Config.getInt("allas.upload.concurrency");
+
+        // Limits the segments written ahead of the uploads, and so the temporary files on disk
+        Semaphore ahead = new Semaphore(concurrency * 2);
+        List<Future<?>> uploads = new ArrayList<>();
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            List<PackedTileArchive.Entry> entries = PackedTileArchive.readIndex(file.toPath());
+
+            int from = 0;
+
+            while (from < entries.size()) {
+                int to = from;
+                long size = 0;
+
+                while (to < entries.size() && (to == from || size + entries.get(to).getLength() <= segmentSize)) {
+                    size += entries.get(to++).getLength();
+                }
+
+                ahead.acquireUninterruptibly();
+
+                File segment;
+
+                try {
+                    segment = toTar(channel, entries.subList(from, to), file.getName() + "-" + uploads.size());
+                } catch (IOException | RuntimeException e) {
+                    ahead.release();
+                    throw e;
+                }
+
+                uploads.add(uploaders.submit(() -> {
+                    try {
+                        retry("segment " + segment.getName(), () -> uploadArchive(segment));
+                    } finally {
+                        segment.delete();
+                        ahead.release();
+                    }
+                }));
+
+                from = to;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error while converting " + file.getName() + " to tar", e);
+        } finally {
+            await(uploads, file);
+        }
+
+        logger.debug("Uploaded archive {} to Allas Bucket {} in {} segments", file.getName(), container.getName(), uploads.size());
+    }
+
+    private void uploadArchive(File tar) {
         StoredObject object = container.getObject("tiles");
-        object.uploadArchive(file, "tar");
+        object.uploadArchive(tar, "tar");
+
+        logger.debug("Uploaded archive {} to Allas Bucket {}", tar.getName(), container.getName());
+    }
+
+    /**
+     * Waits for every segment of an archive, even if some have already failed, so no segment is
+     * uploaded after the archive has been deleted.
+     */
+    private void await(List<Future<?>> uploads, File file) {
+        Exception failure = null;
+
+        for (Future<?> upload : uploads) {
+            try {
+                upload.get();
+            } catch (ExecutionException e) {
+                failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = e;
+            }
+        }
+
+        if (failure != null) {
+            throw new UncheckedIOException(new IOException("Error while uploading archive " + file.getName(), failure));
+        }
+    }
+
+    private File toTar(FileChannel channel, List<PackedTileArchive.Entry> entries, String name) throws IOException {
+        Path tar = Path.of(String.format(Constants.TEMP_FILE, name + ".tar"));
+
+        try (TarArchiveOutputStream tarOs = new TarArchiveOutputStream(new BufferedOutputStream(Files.newOutputStream(tar)))) {
+            for (PackedTileArchive.Entry entry : entries) {
+                byte[] data = PackedTileArchive.readTile(channel, entry);
+
+                TarArchiveEntry tarEntry = new TarArchiveEntry(entry.getName());
+                tarEntry.setSize(data.length);
+
+                tarOs.putArchiveEntry(tarEntry);
+                tarOs.write(data);
+                tarOs.closeArchiveEntry();
+            }
+        }
+
+        return tar.toFile();
+    }
+
+    /**
+     * Runs a request, retrying it up to allas.upload.retries times with exponential backoff and jitter.
+     * Expired tokens are renewed by the account itself.
+     */
+    private void retry(String description, Runnable request) {
+        long backoff = Config.getDuration("allas.upload.backoff", TimeUnit.MILLISECONDS);
+        int retries = Config.getInt("allas.upload.retries");
+
+        for (int attempt = 0; ; attempt++) {
+            try {
+                request.run();
+                return;
+            } catch (RuntimeException e) {
+                if (attempt >= retries) {
+                    throw e;
+                }
+
+                long delay = (backoff << attempt) + ThreadLocalRandom.current().nextLong(backoff + 1);
+
+                logger.warn("Error while uploading {} to Allas Bucket {}, retrying in {} ms [{} / {}]",
+                    description, container.getName(), delay, attempt + 1, retries, e);
+
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Uploads a single tile to Allas Object Storage, to the same location where
+     * {@link #commitArchive(File)} would extract it. Unlike extracted archives, uploaded
+     * tiles are served with the configured Cache-Control header.
+     */
+    @Override public void commitTile(String id, int level, String tileName, byte[] data) {
+        StoredObject object = container.getObject("tiles/" + tileName);
+
+        retry("tile " + tileName, () -> object.uploadObject(new UploadInstructions(data)
+            .setContentType(TileFormat.fromFileName(tileName).orElse(TileFormat.JPEG).getContentType())
+            .addHeader(new GeneralHeader("Cache-Control", Config.getString("allas.cache.control")))));
+    }
+
+    @Override public boolean isRemote() {
+        return true;
+    }
+
+    @Override public boolean supportsReading() {
+        return true;
+    }
+
+    /**
+     * Reads a tile from the container of this instance, which is named after the slide.
+     */
+    @Override public Optional<ByteBuffer> readTile(String id, int level, String tileName) {
+        try {
+            return Optional.of(ByteBuffer.wrap(container.getObject("tiles/" + tileName).downloadObject()));
+        } catch (NotFoundException e) {
+            return Optional.empty();
+        }
+    }
+
+    @Override public Optional<ByteBuffer> readTile(String id, int level, String tileName, long offset, int length) {
+        if (length <= 0) {
+            return Optional.of(ByteBuffer.allocate(0));
+        }
+
+        DownloadInstructions range = new DownloadInstructions()
+            .setRange(new MidPartRange((int) offset, (int) (offset + length - 1)));
+
+        try {
+            return Optional.of(ByteBuffer.wrap(container.getObject("tiles/" + tileName).downloadObject(range)));
+        } catch (NotFoundException e) {
+            return Optional.empty();
+        }
+    }
+
+    @Override public boolean tileExists(String id, int level, String tileName) {
+        return container.getObject("tiles/" + tileName).exists();
+    }
+
+    /* Direct uploads. Segments are uploaded with temporary URLs and joined with a Dynamic Large Object manifest */
+
+    @Override public String createUpload(String key) {
+        // Swift has no upload state, the segments are listed by their prefix
+        return String.format(SEGMENT_PREFIX, key);
+    }
+
+    @Override public boolean supportsDirectUpload() {
+        return account.getHashPassword() != null && !account.getHashPassword().isEmpty();
+    }
+
+    @Override public URL getPartUrl(String key, String uploadId, int part, Duration expiry) throws IOException {
+        if (!supportsDirectUpload()) {
+            throw new IllegalStateException("allas.temp.url.key is required for direct uploads");
+        }
+
+        StoredObject segment = container.getObject(String.format(SEGMENT_NAME, key, part));
+
+        return new URL(segment.getTempPutUrl(expiry.toSeconds()));
+    }
+
+    @Override public Map<Integer, Long> listParts(String key, String uploadId) {
+        Map<Integer, Long> parts = new HashMap<>();
+
+        for (StoredObject segment : getSegments(uploadId)) {
+            String name = segment.getName().substring(uploadId.length());
+
+            try {
+                parts.put(Integer.parseInt(name), segment.getContentLength());
+            } catch (NumberFormatException e) {
+                logger.debug("Ignoring unexpected object {} in upload {}", segment.getName(), key);
+            }
+        }
+
+        return parts;
+    }
 
-        logger.debug("Uploaded archive {} to Allas Bucket {}", file.getName(), container.getName());
+    @Override public void completeUpload(String key, String uploadId, int parts) throws IOException {
+        Map<Integer, Long> uploaded = listParts(key, uploadId);
+
+        for (int part = 0; part < parts; part++) {
+            if (!uploaded.containsKey(part)) {
+                throw new IOException("Upload " + key + " is missing part " + part);
+            }
+        }
+
+        container.getObject(key).uploadObject(new UploadInstructions(new byte[0])
+            .setObjectManifest(new ObjectManifest(container.getName() + "/" + uploadId)));
+
+        logger.debug("Completed upload {} to Allas Bucket {}", key, container.getName());
+    }
+
+    @Override public void abortUpload(String key, String uploadId) {
+        getSegments(uploadId).forEach(StoredObject::delete);
+    }
+
+    @Override public void download(String key, Path target) throws IOException {
+        // The manifest is downloaded as the segments joined in order
+        try (InputStream in = container.getObject(key).downloadObjectAsInputStream()) {
+            Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @Override public void delete(String key) {
+        container.getObject(key).delete();
+        abortUpload(key, String.format(SEGMENT_PREFIX, key));
+    }
+
+    private List<StoredObject> getSegments(String prefix) {
+        List<StoredObject> segments = new ArrayList<>();
+        String marker = null;
+
+        while (true) {
+            Collection<StoredObject> page = container.list(prefix, marker, container.getMaxPageSize());
+
+            if (page.isEmpty()) {
+                return segments;
+            }
+
+            for (StoredObject segment : page) {
+                segments.add(segment);
+                marker = segment.getName();
+            }
+        }
     }
 
     @Override public String getTilesURI() {
@@ -101,8 +453,21 @@ public class Allas implements StorageProvider {
 
     public static class Builder {
 
+        /**
+         * Account created from the configuration, shared by every instance. The account keeps its
+         * token and authenticates again once the token expires, so slides don't authenticate again.
+         */
+        private static Account sharedAccount;
+
         private AccountFactory factory;
+
+        /**
+         * Account to use instead of creating one with the factory.
+         */
+        private Account account;
         private String container;
+        private boolean isPublic = true;
+        private boolean create = true;
 
         public Builder() {
             this.factory = new AccountFactory();
@@ -119,17 +484,39 @@ public class Allas implements StorageProvider {
                     .setAuthenticationMode(AuthenticationMethodScope.PROJECT_NAME)
                     .setMock(false);
 
+            if (!Config.getString("allas.temp.url.key").isEmpty()) {
+                factory.setHashPassword(Config.getString("allas.temp.url.key"));
+            }
+
+            synchronized (Builder.class) {
+                if (sharedAccount == null) {
+                    // Concurrent uploads need a connection each, the default pool only has a few per host
+                    PoolingHttpClientConnectionManager connections = new PoolingHttpClientConnectionManager();
+                    connections.setMaxTotal(Config.getInt("allas.upload.concurrency") * 2);
+                    connections.setDefaultMaxPerRoute(Config.getInt("allas.upload.concurrency") * 2);
+
+                    sharedAccount = factory
+                        .setHttpClient(HttpClients.custom().setConnectionManager(connections).build())
+                        .setAllowReauthenticate(true)
+                        .createAccount();
+                }
+
+                account = sharedAccount;
+            }
+
             return this;
         }
 
         public Builder setAccountFactory(AccountFactory factory) {
             this.factory = factory;
+            this.account = null;
 
             return this;
         }
 
         public Builder setUsername(String username) {
             factory.setUsername(username);
+            this.account = null;
             factory.setAuthenticationMethod(AuthenticationMethod.KEYSTONE_V3);
             factory.setAuthenticationMode(AuthenticationMethodScope.PROJECT_NAME);
 
@@ -138,30 +525,35 @@ public class Allas implements StorageProvider {
 
         public Builder setPassword(String password) {
             factory.setPassword(password);
+            this.account = null;
 
             return this;
         }
 
         public Builder setDomain(String domain) {
             factory.setDomain(domain);
+            this.account = null;
 
             return this;
         }
 
         public Builder setAuthUrl(String authUrl) {
             factory.setAuthUrl(authUrl);
+            this.account = null;
 
             return this;
         }
 
         public Builder setTenantId(String tenantId) {
             factory.setTenantId(tenantId);
+            this.account = null;
 
             return this;
         }
 
         public Builder setTenantName(String tenantName) {
             factory.setTenantName(tenantName);
+            this.account = null;
 
             return this;
         }
@@ -172,8 +564,30 @@ public class Allas implements StorageProvider {
             return this;
         }
 
+        /**
+         * @param isPublic false to keep the container private, e.g. for uploaded slides. Containers are public by default.
+         */
+        public Builder setPublic(boolean isPublic) {
+            this.isPublic = isPublic;
+
+            return this;
+        }
+
+        /**
+         * @param create false to only read from an existing container, without creating it or making it public.
+         */
+        public Builder setCreate(boolean create) {
+            this.create = create;
+
+            return this;
+        }
+
         public Allas build() {
-            return new Allas(factory, container);
+            if (account != null) {
+                return new Allas(account, container, isPublic, create);
+            }
+
+            return new Allas(factory.createAccount(), container, isPublic, create);
         }
     }
 }
@@ -0,0 +1,134 @@
+package fi.ylihallila.server.storage;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+
+import static fi.ylihallila.server.util.Config.Config;
+
+/**
+ * Object storage which clients can upload slides to directly, instead of through the server.
+ * A slide is uploaded in parts with pre-signed URLs and assembled by the object store, so the
+ * server only coordinates the upload. The tiler downloads the slide once it has been uploaded.
+ *
+ * Parts are numbered from 0, like the chunks of an {@link fi.ylihallila.server.models.UploadSession UploadSession}.
+ */
+public interface DirectUploads {
+
+    /**
+     * Starts a multipart upload.
+     *
+     * @param key key of the object the parts are assembled to.
+     * @return id of the upload in the object store.
+     */
+    String createUpload(String key) throws IOException;
+
+    /**
+     * Returns a pre-signed URL which a part can be uploaded to with HTTP PUT without credentials.
+     *
+     * @param expiry how long the URL is valid for.
+     */
+    URL getPartUrl(String key, String uploadId, int part, Duration expiry) throws IOException;
+
+    /**
+     * @return sizes of the parts uploaded so far, by part.
+     */
+    Map<Integer, Long> listParts(String key, String uploadId) throws IOException;
+
+    /**
+     * Assembles the uploaded parts to the object.
+     *
+     * @param parts number of parts, every one of which has been uploaded.
+     */
+    void completeUpload(String key, String uploadId, int parts) throws IOException;
+
+    /**
+     * Deletes the parts of an upload which won't be completed.
+     */
+    void abortUpload(String key, String uploadId) throws IOException;
+
+    /**
+     * Streams a completed upload to a file.
+     */
+    void download(String key, Path target) throws IOException;
+
+    /**
+     * Deletes a completed upload.
+     */
+    void delete(String key) throws IOException;
+
+    /**
+     * @return false if pre-signed URLs can't be created, e.g. because the key used to sign them hasn't been configured.
+     */
+    default boolean supportsDirectUpload() {
+        return true;
+    }
+
+    /**
+     * @return smallest allowed size of a part, other than the last one.
+     */
+    default long getMinPartSize() {
+        return 1;
+    }
+
+    /**
+     * @return largest allowed number of parts.
+     */
+    default int getMaxParts() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Creates the direct uploads of the configured storage provider.
+     *
+     * @return empty if the storage provider doesn't support direct uploads.
+     */
+    static Optional<DirectUploads> fromConfig() {
+        return switch (Config.getString("storage.provider").toLowerCase()) {
+            case "aws" -> Optional.of(new S3.Builder()
+                    .setConfigDefaults()
+                    .setBucket(Config.getString("s3.uploads.bucket"))
+                    .build());
+            case "allas" -> Optional.of(new Allas.Builder()
+                    .setConfigDefaults()
+                    .setContainer(Config.getString("allas.uploads.container"))
+                    .setPublic(false)
+                    .build());
+            default -> Optional.empty();
+        };
+    }
+
+    /**
+     * Returns the direct uploads of the configured storage provider, which are created when first
+     * used and shared by the server and the tiler.
+     *
+     * @return empty if the storage provider doesn't support direct uploads.
+     */
+    static Optional<DirectUploads> getInstance() {
+        return Instance.get();
+    }
+
+    /**
+     * Holds the instance returned by {@link #getInstance()}. Creating it fails if the storage provider
+     * is misconfigured, so it's created again the next time it's used.
+     */
+    final class Instance {
+
+        private static DirectUploads instance;
+        private static boolean loaded = false;
+
+        private Instance() {}
+
+        private static synchronized Optional<DirectUploads> get() {
+            if (!loaded) {
+                instance = fromConfig().orElse(null);
+                loaded = true;
+            }
+
+            return Optional.ofNullable(instance);
+        }
+    }
+}
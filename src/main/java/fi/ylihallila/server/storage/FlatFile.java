@@ -1,16 +1,28 @@
 package fi.ylihallila.server.storage;
 
-import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import fi.ylihallila.server.archivers.DirectoryTileArchive;
+import fi.ylihallila.server.archivers.PackedTileArchive;
+import fi.ylihallila.server.archivers.TileArchive;
+import fi.ylihallila.server.util.Util;
 import org.apache.commons.compress.archivers.zip.ZipFile;
 import org.apache.commons.compress.utils.FileNameUtils;
-import org.apache.commons.compress.utils.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.util.Enumeration;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
 
 import static fi.ylihallila.server.util.Config.Config;
 
@@ -18,54 +30,196 @@ public class FlatFile implements StorageProvider {
 
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
+    /**
+     * Tile directories which are known to exist, so they don't have to be checked for every tile.
+     */
+    private final Set<Path> directories = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @throws UncheckedIOException if copying the file fails.
+     */
     @Override public void commitFile(File file) {
         try {
             Files.copy(
                 file.toPath(),
-                Path.of("tiles", file.getName())
+                Path.of("tiles", file.getName()),
+                StandardCopyOption.REPLACE_EXISTING
             );
         } catch (IOException e) {
-            logger.error("Error while saving tile archive to flat file.");
+            throw new UncheckedIOException("Error while saving " + file.getName() + " to flat file", e);
         }
     }
 
+    /**
+     * Tiles are written straight to their directory while they're being generated, so there is
+     * nothing to extract when the level is committed.
+     */
+    @Override public TileArchive createArchive(String id, int level) {
+        Path directory = getTileDirectory(id, level);
+        directories.add(directory);
+
+        return new DirectoryTileArchive(directory);
+    }
+
+    /**
+     * Extracts an archive created elsewhere, e.g. by an older version of the tiler. Entries are
+     * extracted in parallel straight from the archive, without copying the archive first.
+     *
+     * @throws UncheckedIOException if extracting any of the entries fails.
+     */
     @Override public void commitArchive(File file) {
-        try {
-            Path archivePath = Path.of("tiles", file.getName());
-            Path tilePath    = Path.of("tiles", FileNameUtils.getBaseName(file.getName()));
+        if (file.getName().endsWith(PackedTileArchive.EXTENSION)) {
+            commitPackedArchive(file);
+            return;
+        }
 
-            Files.copy(
-                file.toPath(),
-                archivePath
-            );
+        Path tilePath = Path.of("tiles", FileNameUtils.getBaseName(file.getName()));
 
-            ZipFile zipFile = new ZipFile(archivePath.toFile());
-            Enumeration<? extends ZipArchiveEntry> entries = zipFile.getEntries();
-            while (entries.hasMoreElements()) {
-                ZipArchiveEntry entry = entries.nextElement();
+        try (ZipFile zipFile = new ZipFile(file);
+             FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            Collections.list(zipFile.getEntries()).parallelStream().forEach(entry -> {
                 Path entryPath = tilePath.resolve(entry.getName());
 
-                if (entry.isDirectory()) {
-                    Files.createDirectories(entryPath);
-                } else {
-                    Files.createDirectories(entryPath.getParent());
+                try {
+                    if (entry.isDirectory()) {
+                        Files.createDirectories(entryPath);
+                    } else if (entry.getMethod() == ZipEntry.STORED && entry.getDataOffset() >= 0) {
+                        // Tiles are already compressed, so they're usually stored as is and can be copied without decoding
+                        createDirectories(entryPath.getParent());
+                        transfer(channel, entry.getDataOffset(), entry.getSize(), entryPath);
+                    } else {
+                        createDirectories(entryPath.getParent());
 
-                    try (InputStream in = zipFile.getInputStream(entry)){
-                        try (OutputStream out = new FileOutputStream(entryPath.toFile())){
-                            IOUtils.copy(in, out);
+                        try (InputStream in = zipFile.getInputStream(entry)) {
+                            copy(in, entryPath);
                         }
                     }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
                 }
-            }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error while saving tile archive " + file.getName() + " to flat file", e);
+        }
+    }
+
+    /**
+     * Extracts a {@link PackedTileArchive} into the same directory structure as a zip archive.
+     * Tiles are transferred from the archive in parallel, without passing through the heap.
+     */
+    private void commitPackedArchive(File file) {
+        Path tilePath = Path.of("tiles", FileNameUtils.getBaseName(file.getName()));
 
-            Files.delete(archivePath);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            Files.createDirectories(tilePath);
+
+            PackedTileArchive.readIndex(file.toPath()).parallelStream().forEach(entry -> {
+                try {
+                    transfer(channel, entry.getOffset(), entry.getLength(), tilePath.resolve(entry.getName()));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
         } catch (IOException e) {
-            logger.error("Error while saving tile archive to flat file.", e);
+            throw new UncheckedIOException("Error while saving tile archive " + file.getName() + " to flat file", e);
+        }
+    }
+
+    /**
+     * Copies a region of an archive to a file with positional transfers, which are safe to use
+     * from several threads at once. The tiles directory is served while it's being written, so
+     * the file is written next to its target and moved into place once complete.
+     */
+    private void transfer(FileChannel source, long position, long length, Path target) throws IOException {
+        Path temp = temporary(target);
+
+        try {
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                long transferred = 0;
+
+                while (transferred < length) {
+                    long count = source.transferTo(position + transferred, length - transferred, out);
+
+                    if (count <= 0) {
+                        throw new EOFException("Unexpected end of archive while extracting " + target.getFileName());
+                    }
+
+                    transferred += count;
+                }
+            }
+
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Copies a stream to a file, which is moved into place once complete like in {@link #transfer}.
+     */
+    private void copy(InputStream in, Path target) throws IOException {
+        Path temp = temporary(target);
+
+        try {
+            Files.copy(in, temp);
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private Path temporary(Path target) {
+        return target.resolveSibling(target.getFileName() + "." + UUID.randomUUID() + ".tmp");
+    }
+
+    private void createDirectories(Path directory) throws IOException {
+        if (!directories.contains(directory)) {
+            Files.createDirectories(directory);
+            directories.add(directory);
         }
     }
 
+    private Path getTileDirectory(String id, int level) {
+        return Path.of("tiles", id + "-level-" + level + "-tiles");
+    }
+
+    /**
+     * Tiles are served from the tiles directory while they're being written, so each tile is written
+     * to a temporary file first and moved in place once complete.
+     */
+    @Override public void commitTile(String id, int level, String tileName, byte[] data) throws IOException {
+        Path directory = getTileDirectory(id, level);
+        createDirectories(directory);
+
+        Util.writeAtomically(directory.resolve(tileName), data);
+    }
+
+    @Override public boolean supportsReading() {
+        return true;
+    }
+
+    @Override public Optional<ByteBuffer> readTile(String id, int level, String tileName) throws IOException {
+        return readTile(id, level, tileName, 0, Integer.MAX_VALUE);
+    }
+
+    @Override public Optional<ByteBuffer> readTile(String id, int level, String tileName, long offset, int length) throws IOException {
+        try (FileChannel channel = FileChannel.open(getTileDirectory(id, level).resolve(tileName), StandardOpenOption.READ)) {
+            ByteBuffer data = ByteBuffer.allocate((int) Math.max(0, Math.min(length, channel.size() - offset)));
+
+            while (data.hasRemaining() && channel.read(data, offset + data.position()) >= 0);
+
+            return Optional.of(data.flip());
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        }
+    }
+
+    @Override public boolean tileExists(String id, int level, String tileName) {
+        return Files.exists(getTileDirectory(id, level).resolve(tileName));
+    }
+
     @Override public String getTilesURI() {
-        return Config.getString("server.host") + "/tiles/{id}-level-{level}-tiles/{level}_{tileX}_{tileY}_{tileWidth}_{tileHeight}.jpg";
+        return Config.getString("server.host") + "/tiles/{id}-level-{level}-tiles/{level}_{tileX}_{tileY}_{tileWidth}_{tileHeight}.{extension}";
     }
 
     @Override public String getThumbnailURI() {
@@ -0,0 +1,110 @@
+package fi.ylihallila.server.storage;
+
+import fi.ylihallila.server.archivers.TileArchive;
+import fi.ylihallila.server.util.Constants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+import static fi.ylihallila.server.util.Config.Config;
+
+/**
+ * Read-through {@link TileMirror} in front of remote storage. Tiles are committed to the remote storage
+ * as usual, but read from the mirror on the local disk, and copied to the mirror from the remote
+ * storage the first time they're read. Tiles are served by the tile endpoint instead of the remote
+ * storage, so recently viewed slides are served from the local disk.
+ */
+public class MirroredStorage implements StorageProvider {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final StorageProvider remote;
+    private final TileMirror mirror;
+
+    public MirroredStorage(StorageProvider remote, TileMirror mirror) {
+        this.remote = remote;
+        this.mirror = mirror;
+    }
+
+    @Override public void commitFile(File file) {
+        remote.commitFile(file);
+    }
+
+    @Override public void commitArchive(File file) {
+        remote.commitArchive(file);
+    }
+
+    @Override public TileArchive createArchive(String id, int level) {
+        return remote.createArchive(id, level);
+    }
+
+    @Override public void commitTile(String id, int level, String tileName, byte[] data) throws IOException {
+        remote.commitTile(id, level, tileName, data);
+    }
+
+    @Override public CompletableFuture<Void> commitTileAsync(String id, int level, String tileName, byte[] data) {
+        return remote.commitTileAsync(id, level, tileName, data);
+    }
+
+    @Override public boolean supportsStreaming() {
+        return remote.supportsStreaming();
+    }
+
+    @Override public boolean supportsReading() {
+        return remote.supportsReading();
+    }
+
+    /**
+     * Reads a tile from the mirror, or from the remote storage if it isn't mirrored yet. Tiles read from
+     * the remote storage are mirrored, but failing to mirror a tile doesn't fail the read.
+     */
+    @Override public Optional<ByteBuffer> readTile(String id, int level, String tileName) throws IOException {
+        String key = id + "/" + tileName;
+
+        Optional<ByteBuffer> mirrored = mirror.get(key);
+
+        if (mirrored.isPresent()) {
+            return mirrored;
+        }
+
+        Optional<ByteBuffer> tile = remote.readTile(id, level, tileName);
+
+        if (tile.isPresent()) {
+            try {
+                mirror.put(key, tile.get());
+            } catch (IOException e) {
+                logger.warn("Could not mirror tile {} of {}", tileName, id, e);
+            }
+        }
+
+        return tile;
+    }
+
+    @Override public boolean tileExists(String id, int level, String tileName) throws IOException {
+        return mirror.contains(id + "/" + tileName) || remote.tileExists(id, level, tileName);
+    }
+
+    @Override public boolean isRemote() {
+        return remote.isRemote();
+    }
+
+    /**
+     * @return the tile endpoint of this server, which reads the tiles through the mirror.
+     */
+    @Override public String getTilesURI() {
+        return Config.getString("server.host") + Constants.TILE_ENDPOINT;
+    }
+
+    @Override public String getThumbnailURI() {
+        return remote.getThumbnailURI();
+    }
+
+    @Override public String toString() {
+        return "Mirrored " + remote;
+    }
+}
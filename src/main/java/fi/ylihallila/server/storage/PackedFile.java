@@ -0,0 +1,96 @@
+package fi.ylihallila.server.storage;
+
+import fi.ylihallila.server.archivers.PackedTileArchive;
+import fi.ylihallila.server.util.Constants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Optional;
+
+import static fi.ylihallila.server.util.Config.Config;
+
+/**
+ * Saves every tile of a slide to a single {@link PackedPyramid} file, instead of one file per tile
+ * like {@link FlatFile}. The tiles are served by the tile endpoint, which reads them from the pyramid.
+ */
+public class PackedFile implements StorageProvider {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final String id;
+
+    public PackedFile(String id) {
+        this.id = id;
+    }
+
+    /**
+     * @throws UncheckedIOException if copying the file fails.
+     */
+    @Override public void commitFile(File file) {
+        try {
+            Files.copy(
+                file.toPath(),
+                Path.of("tiles", file.getName()),
+                StandardCopyOption.REPLACE_EXISTING
+            );
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error while saving " + file.getName() + " to packed file storage", e);
+        }
+    }
+
+    /**
+     * Appends a {@link PackedTileArchive} to the pyramid of this slide.
+     *
+     * @param file archive created by {@link #createArchive(String, int)}.
+     * @throws UncheckedIOException if appending the archive fails.
+     */
+    @Override public void commitArchive(File file) {
+        try (PackedPyramid pyramid = PackedPyramid.openForWriting(id)) {
+            pyramid.append(file);
+
+            logger.debug("Appended {} to pyramid of {} [{} tiles]", file.getName(), id, pyramid.size());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error while saving tile archive " + file.getName() + " to packed file", e);
+        }
+    }
+
+    /**
+     * Not supported: the index of the pyramid would have to be rewritten for every tile.
+     */
+    @Override public void commitTile(String id, int level, String tileName, byte[] data) throws IOException {
+        throw new IOException("Packed file storage does not support streaming tiles");
+    }
+
+    @Override public boolean supportsStreaming() {
+        return false;
+    }
+
+    @Override public boolean supportsReading() {
+        return true;
+    }
+
+    @Override public Optional<ByteBuffer> readTile(String id, int level, String tileName) throws IOException {
+        Optional<PackedPyramid> pyramid = PackedPyramid.get(id);
+
+        return pyramid.isPresent() ? pyramid.get().getTile(tileName) : Optional.empty();
+    }
+
+    @Override public boolean tileExists(String id, int level, String tileName) throws IOException {
+        return PackedPyramid.get(id).flatMap(pyramid -> pyramid.getEntry(tileName)).isPresent();
+    }
+
+    @Override public String getTilesURI() {
+        return Config.getString("server.host") + Constants.TILE_ENDPOINT;
+    }
+
+    @Override public String getThumbnailURI() {
+        return Config.getString("server.host") + "/tiles/{id}_thumbnail.jpg";
+    }
+}
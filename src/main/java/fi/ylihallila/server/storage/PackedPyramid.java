@@ -0,0 +1,355 @@
+package fi.ylihallila.server.storage;
+
+import fi.ylihallila.server.archivers.PackedTileArchive;
+import fi.ylihallila.server.util.Constants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Every tile of a slide in a single file with an index, similar to MBTiles or PMTiles. Copying or
+ * deleting a slide is a single file operation, instead of one for every tile.
+ *
+ * <pre>
+ * [header: {@link #MAGIC} as int, committed length as long]
+ * [tile data ...]
+ * [index: count * (name as modified UTF-8, offset as long, length as int)]
+ * [footer: index offset as long, count as int]
+ * </pre>
+ *
+ * Levels are appended after the committed length followed by a new index, and the header is only
+ * updated once they're written. If the tiler stops while appending, the header still points to the
+ * previous index and the partially written level is overwritten the next time.
+ *
+ * Pyramids opened for reading are memory-mapped, so tiles of frequently viewed slides are served
+ * from the page cache without copying them to the heap.
+ */
+public class PackedPyramid implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(PackedPyramid.class);
+
+    public static final int MAGIC = 0x50595231; // "PYR1"
+
+    private static final int HEADER_SIZE = Integer.BYTES + Long.BYTES;
+    private static final int FOOTER_SIZE = Long.BYTES + Integer.BYTES;
+
+    /**
+     * A single mapping is limited to 2 GB, so larger pyramids are mapped in segments.
+     */
+    private static final long SEGMENT_SIZE = 1L << 30;
+
+    /**
+     * Pyramids opened for reading by the server, by slide id.
+     */
+    private static final Map<String, PackedPyramid> readers = new ConcurrentHashMap<>();
+
+    private final Path path;
+    private final FileChannel channel;
+    private final boolean memoryMapped;
+
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+    private volatile Map<String, PackedTileArchive.Entry> index = new HashMap<>();
+
+    /**
+     * Length of the file up to the end of the latest footer.
+     */
+    private volatile long length = HEADER_SIZE;
+
+    /**
+     * Modification time of the file when the index was read, in milliseconds.
+     */
+    private volatile long lastModified = 0;
+
+    private PackedPyramid(Path path, FileChannel channel, boolean memoryMapped) throws IOException {
+        this.path = path;
+        this.channel = channel;
+        this.memoryMapped = memoryMapped;
+
+        refresh();
+    }
+
+    /**
+     * Opens a pyramid for appending levels to, creating it if it doesn't exist.
+     */
+    public static PackedPyramid openForWriting(String id) throws IOException {
+        Path path = Path.of(String.format(Constants.PACKED_TILES_FILE, id));
+
+        return new PackedPyramid(path, FileChannel.open(path,
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE), false);
+    }
+
+    /**
+     * Returns the pyramid of a slide for reading tiles. Opened pyramids are kept open and their
+     * index is reloaded if the tiler has appended to the file since.
+     *
+     * @param id id of the slide.
+     * @return empty if the slide has no packed pyramid.
+     */
+    public static Optional<PackedPyramid> get(String id) throws IOException {
+        PackedPyramid pyramid = readers.get(id);
+
+        if (pyramid == null) {
+            Path path = Path.of(String.format(Constants.PACKED_TILES_FILE, id));
+
+            if (!Files.exists(path)) {
+                return Optional.empty();
+            }
+
+            pyramid = readers.computeIfAbsent(id, key -> {
+                try {
+                    return new PackedPyramid(path, FileChannel.open(path, StandardOpenOption.READ), true);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+
+        pyramid.refresh();
+
+        return Optional.of(pyramid);
+    }
+
+    /**
+     * Closes the reader of a slide, if open. Used before deleting the pyramid.
+     */
+    public static void evict(String id) {
+        PackedPyramid pyramid = readers.remove(id);
+
+        if (pyramid != null) {
+            try {
+                pyramid.close();
+            } catch (IOException e) {
+                logger.warn("Error while closing packed pyramid of {}", id, e);
+            }
+        }
+    }
+
+    public Optional<PackedTileArchive.Entry> getEntry(String tileName) {
+        return Optional.ofNullable(index.get(tileName));
+    }
+
+    /**
+     * Reads a tile.
+     *
+     * @return tile data or empty if the pyramid doesn't contain the tile.
+     */
+    public Optional<byte[]> readTile(String tileName) throws IOException {
+        PackedTileArchive.Entry entry = index.get(tileName);
+
+        if (entry == null) {
+            return Optional.empty();
+        }
+
+        return Optional.of(PackedTileArchive.readTile(channel, entry));
+    }
+
+    /**
+     * Returns a tile without copying it, as a read-only view of the mapped file. Tiles spanning two
+     * segments are read to the heap instead.
+     *
+     * @return tile data or empty if the pyramid doesn't contain the tile.
+     */
+    public Optional<ByteBuffer> getTile(String tileName) throws IOException {
+        PackedTileArchive.Entry entry = index.get(tileName);
+
+        if (entry == null) {
+            return Optional.empty();
+        }
+
+        MappedByteBuffer[] mapped = segments;
+
+        int segment  = (int) (entry.getOffset() / SEGMENT_SIZE);
+        int position = (int) (entry.getOffset() % SEGMENT_SIZE);
+
+        if (segment < mapped.length && position + entry.getLength() <= mapped[segment].capacity()) {
+            return Optional.of(mapped[segment].slice(position, entry.getLength()).asReadOnlyBuffer());
+        }
+
+        return Optional.of(ByteBuffer.wrap(PackedTileArchive.readTile(channel, entry)));
+    }
+
+    /**
+     * @return modification time of the pyramid when it was last read, in milliseconds.
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Appends the tiles of a saved {@link PackedTileArchive} to this pyramid. Tiles already in the
+     * pyramid are replaced.
+     */
+    public synchronized void append(File archive) throws IOException {
+        List<PackedTileArchive.Entry> entries = PackedTileArchive.readIndex(archive.toPath());
+
+        long dataLength = entries.stream().mapToLong(entry -> entry.getOffset() + entry.getLength()).max().orElse(0);
+        long start = length;
+
+        try (FileChannel source = FileChannel.open(archive.toPath(), StandardOpenOption.READ)) {
+            long transferred = 0;
+
+            while (transferred < dataLength) {
+                // Unlike transferFrom, writing to the channel may extend the file
+                transferred += source.transferTo(transferred, dataLength - transferred, channel.position(start + transferred));
+            }
+        }
+
+        Map<String, PackedTileArchive.Entry> merged = new HashMap<>(index);
+
+        for (PackedTileArchive.Entry entry : entries) {
+            merged.put(entry.getName(), new PackedTileArchive.Entry(entry.getName(), start + entry.getOffset(), entry.getLength()));
+        }
+
+        long indexOffset = start + dataLength;
+        long end = writeIndex(merged, indexOffset);
+
+        channel.truncate(end);
+        channel.force(false);
+
+        // The new level is visible to readers only after this
+        write(ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putLong(end).flip(), 0);
+        channel.force(false);
+
+        this.index = merged;
+        this.length = end;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Reloads the index if the header has changed since it was last read. A file without a valid
+     * header has no committed levels yet.
+     */
+    private void refresh() throws IOException {
+        if (channel.size() < HEADER_SIZE) {
+            return;
+        }
+
+        ByteBuffer header = read(0, HEADER_SIZE);
+
+        if (header.getInt() == MAGIC && header.getLong() != length) {
+            synchronized (this) {
+                readIndex();
+            }
+        }
+    }
+
+    private void readIndex() throws IOException {
+        ByteBuffer header = read(0, HEADER_SIZE);
+
+        if (header.getInt() != MAGIC) {
+            throw new IOException(path + " is not a packed pyramid");
+        }
+
+        long end = header.getLong();
+
+        ByteBuffer footer = read(end - FOOTER_SIZE, FOOTER_SIZE);
+        long indexOffset = footer.getLong();
+        int count = footer.getInt();
+
+        ByteBuffer buffer = read(indexOffset, (int) (end - FOOTER_SIZE - indexOffset));
+        Map<String, PackedTileArchive.Entry> entries = new HashMap<>(count * 2);
+
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer.array()))) {
+            for (int i = 0; i < count; i++) {
+                PackedTileArchive.Entry entry = new PackedTileArchive.Entry(in.readUTF(), in.readLong(), in.readInt());
+                entries.put(entry.getName(), entry);
+            }
+        }
+
+        if (memoryMapped) {
+            map(end);
+        }
+
+        this.index = entries;
+        this.length = end;
+        this.lastModified = Files.getLastModifiedTime(path).toMillis();
+    }
+
+    /**
+     * Maps the file up to given length. Mappings are only released once garbage collected, so
+     * segments which are already mapped in full are reused.
+     */
+    private void map(long end) throws IOException {
+        MappedByteBuffer[] previous = segments;
+        MappedByteBuffer[] mapped = new MappedByteBuffer[(int) ((end + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+
+        for (int i = 0; i < mapped.length; i++) {
+            long position = i * SEGMENT_SIZE;
+            long size = Math.min(SEGMENT_SIZE, end - position);
+
+            if (i < previous.length && previous[i].capacity() == size) {
+                mapped[i] = previous[i];
+            } else {
+                mapped[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+            }
+        }
+
+        this.segments = mapped;
+    }
+
+    /**
+     * @return position after the footer.
+     */
+    private long writeIndex(Map<String, PackedTileArchive.Entry> entries, long position) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(entries.size() * 64 + FOOTER_SIZE);
+
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            for (PackedTileArchive.Entry entry : new ArrayList<>(entries.values())) {
+                out.writeUTF(entry.getName());
+                out.writeLong(entry.getOffset());
+                out.writeInt(entry.getLength());
+            }
+
+            out.writeLong(position);
+            out.writeInt(entries.size());
+        }
+
+        write(ByteBuffer.wrap(bytes.toByteArray()), position);
+
+        return position + bytes.size();
+    }
+
+    private void write(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of " + path);
+            }
+        }
+
+        return buffer.flip();
+    }
+}
@@ -1,103 +1,519 @@
 package fi.ylihallila.server.storage;
 
+import fi.ylihallila.server.archivers.PackedTileArchive;
+import fi.ylihallila.server.generators.TileFormat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
 import software.amazon.awssdk.auth.credentials.AwsCredentials;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
 import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
-import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.sync.ResponseTransformer;
 import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
 import software.amazon.awssdk.services.s3.S3Client;
-import software.amazon.awssdk.services.s3.S3ClientBuilder;
+import software.amazon.awssdk.services.s3.model.BucketAlreadyOwnedByYouException;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
 import software.amazon.awssdk.services.s3.model.CreateBucketConfiguration;
 import software.amazon.awssdk.services.s3.model.CreateBucketRequest;
 import software.amazon.awssdk.services.s3.model.HeadBucketRequest;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.Part;
 import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Collectors;
 
 import static fi.ylihallila.server.util.Config.Config;
 
-public class S3 implements StorageProvider {
+/**
+ * Stores tiles in an S3 bucket, under a prefix for each slide. Tiles are uploaded as their own objects
+ * with an asynchronous client, so many uploads are in flight at once and uploading is limited by
+ * bandwidth rather than the latency of each request. Large files are uploaded as multipart uploads
+ * with their parts uploaded in parallel.
+ *
+ * The clients are shared by every instance created with {@link Builder#setConfigDefaults()}, so
+ * connections are reused between slides. Instances created without the configuration share the
+ * clients of their region instead, so clients are never created per instance and left unclosed.
+ */
+public class S3 implements StorageProvider, DirectUploads {
 
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
+    public final static String SLIDE_URL     = "{host}/{id}/tiles/{level}_{tileX}_{tileY}_{tileWidth}_{tileHeight}.{extension}";
+    public final static String THUMBNAIL_URL = "{host}/{id}/{id}_thumbnail.jpg";
+
+    /**
+     * Limits of S3 multipart uploads.
+     */
+    private static final long MIN_PART_SIZE = 5 * 1024 * 1024;
+    private static final int MAX_PARTS = 10000;
+
+    /**
+     * Buckets which exist, so each bucket is only created once.
+     */
+    private static final Set<String> buckets = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Uploads in flight, shared by every instance using the same asynchronous client.
+     */
+    private static final Map<S3AsyncClient, Semaphore> inFlight = new ConcurrentHashMap<>();
+
     private final S3Client client;
+    private final S3AsyncClient asyncClient;
 
-    private final Region region = Region.EU_CENTRAL_1;
+    /**
+     * Signs the URLs of direct uploads, or null if not supported.
+     */
+    private final S3Presigner presigner;
+
+    private final Region region;
     private final String bucket;
 
-    public S3(S3Client client, String bucket) {
+    /**
+     * Prefix of every key, e.g. the id of the slide followed by a slash. Empty for no prefix.
+     */
+    private final String prefix;
+
+    private final Semaphore uploads;
+    private final long partSize;
+    private final int partConcurrency;
+
+    public S3(S3Client client, S3AsyncClient asyncClient, S3Presigner presigner, Region region, String bucket, String prefix) {
+        this(client, asyncClient, presigner, region, bucket, prefix, true);
+    }
+
+    /**
+     * @param create false to use the bucket as is, without creating it.
+     */
+    public S3(S3Client client, S3AsyncClient asyncClient, S3Presigner presigner, Region region, String bucket, String prefix, boolean create) {
         this.client = client;
+        this.asyncClient = asyncClient;
+        this.presigner = presigner;
+        this.region = region;
         this.bucket = bucket;
+        this.prefix = prefix;
 
-        client.createBucket(CreateBucketRequest
-                .builder()
-                .bucket(bucket)
-                .createBucketConfiguration(CreateBucketConfiguration
+        this.uploads = inFlight.computeIfAbsent(asyncClient, c -> new Semaphore(Config.getInt("s3.upload.concurrency")));
+        this.partSize = Math.max(MIN_PART_SIZE, Config.getBytes("s3.multipart.part.size"));
+        this.partConcurrency = Math.max(1, Config.getInt("s3.multipart.concurrency"));
+
+        if (!create || buckets.contains(bucket)) {
+            return;
+        }
+
+        try {
+            client.createBucket(CreateBucketRequest
                     .builder()
-                    .locationConstraint(region.id())
-                    .build()
-                )
-                .build());
+                    .bucket(bucket)
+                    .createBucketConfiguration(CreateBucketConfiguration
+                        .builder()
+                        .locationConstraint(region.id())
+                        .build()
+                    )
+                    .build());
 
-        logger.debug("Creating S3 Bucket {}", bucket);
+            logger.debug("Creating S3 Bucket {}", bucket);
+        } catch (BucketAlreadyOwnedByYouException e) {
+            logger.debug("S3 Bucket {} already exists, resuming upload", bucket);
+        }
 
         client.waiter().waitUntilBucketExists(HeadBucketRequest
                 .builder()
                 .bucket(bucket)
                 .build());
 
+        buckets.add(bucket);
+
         logger.debug("S3 Bucket {} created", bucket);
     }
 
+    /**
+     * Uploads a file, as a multipart upload with parts uploaded in parallel if it is larger than the part size.
+     *
+     * @throws UncheckedIOException if uploading the file fails.
+     */
     @Override public void commitFile(File file) {
+        String key = prefix + file.getName();
+
+        try {
+            if (file.length() <= partSize) {
+                putObject(PutObjectRequest.builder().bucket(bucket).key(key).build(), AsyncRequestBody.fromFile(file)).join();
+            } else {
+                uploadMultipart(file.toPath(), key);
+            }
+
+            logger.debug("Uploaded file {} to S3 Bucket {}", key, bucket);
+        } catch (IOException e) {
+            logger.error("Error while uploading {} to S3 Bucket {}", key, bucket, e);
+            throw new UncheckedIOException("Error while uploading " + key + " to S3 Bucket " + bucket, e);
+        } catch (CompletionException e) {
+            logger.error("Error while uploading {} to S3 Bucket {}", key, bucket, e.getCause());
+            throw new UncheckedIOException("Error while uploading " + key + " to S3 Bucket " + bucket, new IOException(e.getCause()));
+        }
+    }
+
+    @Override public void commitTile(String id, int level, String tileName, byte[] data) throws IOException {
+        try {
+            commitTileAsync(id, level, tileName, data).join();
+        } catch (CompletionException e) {
+            throw new IOException("Error while uploading tile " + tileName, e.getCause());
+        }
+    }
+
+    /**
+     * Starts uploading a tile, waiting only if the maximum number of uploads are already in flight.
+     */
+    @Override public CompletableFuture<Void> commitTileAsync(String id, int level, String tileName, byte[] data) {
         var request = PutObjectRequest.builder()
                 .bucket(bucket)
-                .key(file.getName())
+                .key(getTileKey(tileName))
+                .contentType(TileFormat.fromFileName(tileName).orElse(TileFormat.JPEG).getContentType())
+                .cacheControl(Config.getString("s3.cache.control"))
                 .build();
 
-        client.putObject(request, RequestBody.fromFile(file));
-
-        logger.debug("Uploaded file {} to S3 Bucket {}", file.getName(), bucket);
+        return putObject(request, AsyncRequestBody.fromBytes(data));
     }
 
-    // https://stackoverflow.com/questions/51276201/how-to-extract-files-in-s3-on-the-fly-with-boto3
+    /**
+     * S3 doesn't extract archives, so every tile of the archive is uploaded as its own object, in parallel.
+     *
+     * @throws UncheckedIOException if reading the archive or uploading any of its tiles fails.
+     */
     @Override public void commitArchive(File file) {
-        commitFile(file);
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+        IOException readError = null;
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            for (PackedTileArchive.Entry entry : PackedTileArchive.readIndex(file.toPath())) {
+                pending.add(commitTileAsync(null, -1, entry.getName(), PackedTileArchive.readTile(channel, entry)));
+            }
+        } catch (IOException e) {
+            logger.error("Error while reading archive {}", file.getName(), e);
+            readError = e;
+        }
+
+        // Uploads already started are waited for even if reading failed, so none are left in flight
+        try {
+            CompletableFuture.allOf(pending.toArray(CompletableFuture[]::new)).join();
+        } catch (CompletionException e) {
+            long failed = pending.stream().filter(CompletableFuture::isCompletedExceptionally).count();
+
+            logger.error("Error while uploading archive {}, {} / {} tiles failed", file.getName(), failed, pending.size(), e.getCause());
+            throw new UncheckedIOException("Error while uploading archive " + file.getName() + ", " + failed + " tiles failed", new IOException(e.getCause()));
+        }
+
+        if (readError != null) {
+            throw new UncheckedIOException("Error while reading archive " + file.getName(), readError);
+        }
+
+        logger.debug("Uploaded {} tiles of archive {} to S3 Bucket {}", pending.size(), file.getName(), bucket);
+    }
+
+    @Override public boolean isRemote() {
+        return true;
+    }
+
+    @Override public boolean supportsReading() {
+        return true;
+    }
+
+    /**
+     * Reads a tile of the slide of this instance, whose id is the prefix.
+     */
+    @Override public Optional<ByteBuffer> readTile(String id, int level, String tileName) {
+        try {
+            return Optional.of(client.getObjectAsBytes(request -> request.bucket(bucket).key(getTileKey(tileName))).asByteBuffer());
+        } catch (NoSuchKeyException e) {
+            return Optional.empty();
+        }
+    }
+
+    @Override public Optional<ByteBuffer> readTile(String id, int level, String tileName, long offset, int length) {
+        if (length <= 0) {
+            return Optional.of(ByteBuffer.allocate(0));
+        }
+
+        String range = "bytes=" + offset + "-" + (offset + length - 1);
+
+        try {
+            return Optional.of(client.getObjectAsBytes(request -> request.bucket(bucket).key(getTileKey(tileName)).range(range)).asByteBuffer());
+        } catch (NoSuchKeyException e) {
+            return Optional.empty();
+        }
+    }
+
+    @Override public boolean tileExists(String id, int level, String tileName) {
+        try {
+            client.headObject(request -> request.bucket(bucket).key(getTileKey(tileName)));
+            return true;
+        } catch (NoSuchKeyException e) {
+            return false;
+        }
+    }
+
+    private String getTileKey(String tileName) {
+        return prefix + "tiles/" + tileName;
     }
 
     @Override public String getTilesURI() {
-        return null;
+        return SLIDE_URL.replace("{host}", getHost());
     }
 
     @Override public String getThumbnailURI() {
-        return null;
+        return THUMBNAIL_URL.replace("{host}", getHost());
     }
 
-    public void finish() {
-        client.close();
+    private String getHost() {
+        String host = Config.getString("s3.public.url");
+
+        return host.isEmpty() ? String.format("https://%s.s3.%s.amazonaws.com", bucket, region.id()) : host;
     }
 
-    public static class Builder {
+    /**
+     * Sends a request once fewer than s3.upload.concurrency uploads are in flight.
+     */
+    private CompletableFuture<Void> putObject(PutObjectRequest request, AsyncRequestBody body) {
+        try {
+            uploads.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.failedFuture(e);
+        }
 
-        private S3ClientBuilder builder;
-        private String bucket;
+        try {
+            return asyncClient.putObject(request, body)
+                    .whenComplete((response, e) -> uploads.release())
+                    .thenApply(response -> null);
+        } catch (RuntimeException e) {
+            uploads.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Uploads a file in parts of s3.multipart.part.size, at most s3.multipart.concurrency parts at a
+     * time. At most that many parts are held in memory.
+     */
+    private void uploadMultipart(Path file, String key) throws IOException {
+        long size = Files.size(file);
+        int parts = (int) ((size + partSize - 1) / partSize);
+
+        if (parts > MAX_PARTS) {
+            throw new IOException(file + " needs " + parts + " parts, increase s3.multipart.part.size");
+        }
+
+        String uploadId = asyncClient.createMultipartUpload(request -> request.bucket(bucket).key(key)).join().uploadId();
+
+        Semaphore permits = new Semaphore(partConcurrency);
+        List<CompletableFuture<CompletedPart>> completed = new ArrayList<>(parts);
 
-        public Builder() {
-            this.builder = S3Client.builder();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            for (int part = 1; part <= parts; part++) {
+                permits.acquireUninterruptibly();
+
+                long position = (part - 1) * partSize;
+                ByteBuffer data = ByteBuffer.allocate((int) Math.min(partSize, size - position));
+
+                while (data.hasRemaining()) {
+                    if (channel.read(data, position + data.position()) < 0) {
+                        throw new IOException("Unexpected end of file " + file);
+                    }
+                }
+
+                data.flip();
+
+                int partNumber = part;
+
+                completed.add(asyncClient.uploadPart(request -> request
+                            .bucket(bucket)
+                            .key(key)
+                            .uploadId(uploadId)
+                            .partNumber(partNumber),
+                        AsyncRequestBody.fromByteBuffer(data))
+                    .whenComplete((response, e) -> permits.release())
+                    .thenApply(response -> CompletedPart.builder().partNumber(partNumber).eTag(response.eTag()).build()));
+            }
+
+            List<CompletedPart> uploaded = CompletableFuture.allOf(completed.toArray(CompletableFuture[]::new))
+                    .thenApply(done -> completed.stream().map(CompletableFuture::join).collect(Collectors.toList()))
+                    .join();
+
+            asyncClient.completeMultipartUpload(request -> request
+                    .bucket(bucket)
+                    .key(key)
+                    .uploadId(uploadId)
+                    .multipartUpload(upload -> upload.parts(uploaded))
+            ).join();
+        } catch (IOException | RuntimeException e) {
+            asyncClient.abortMultipartUpload(request -> request.bucket(bucket).key(key).uploadId(uploadId));
+            throw e;
+        }
+    }
+
+    /* Direct uploads. Parts are numbered from 1 in S3 */
+
+    @Override public String createUpload(String key) {
+        return client.createMultipartUpload(request -> request.bucket(bucket).key(prefix + key)).uploadId();
+    }
+
+    @Override public boolean supportsDirectUpload() {
+        return presigner != null;
+    }
+
+    @Override public URL getPartUrl(String key, String uploadId, int part, Duration expiry) {
+        if (presigner == null) {
+            throw new UnsupportedOperationException("S3 instance was created without a presigner");
+        }
+
+        return presigner.presignUploadPart(request -> request
+                .signatureDuration(expiry)
+                .uploadPartRequest(upload -> upload
+                    .bucket(bucket)
+                    .key(prefix + key)
+                    .uploadId(uploadId)
+                    .partNumber(part + 1)
+                )
+        ).url();
+    }
+
+    @Override public Map<Integer, Long> listParts(String key, String uploadId) {
+        Map<Integer, Long> parts = new HashMap<>();
+
+        for (Part part : getParts(key, uploadId)) {
+            parts.put(part.partNumber() - 1, part.size());
+        }
+
+        return parts;
+    }
+
+    @Override public void completeUpload(String key, String uploadId, int parts) throws IOException {
+        List<CompletedPart> completed = getParts(key, uploadId).stream()
+                .filter(part -> part.partNumber() <= parts)
+                .sorted(Comparator.comparing(Part::partNumber))
+                .map(part -> CompletedPart.builder().partNumber(part.partNumber()).eTag(part.eTag()).build())
+                .collect(Collectors.toList());
+
+        if (completed.size() != parts) {
+            throw new IOException("Upload " + key + " has " + completed.size() + " / " + parts + " parts");
         }
 
+        client.completeMultipartUpload(request -> request
+                .bucket(bucket)
+                .key(prefix + key)
+                .uploadId(uploadId)
+                .multipartUpload(upload -> upload.parts(completed))
+        );
+
+        logger.debug("Completed upload {} to S3 Bucket {}", key, bucket);
+    }
+
+    @Override public void abortUpload(String key, String uploadId) {
+        client.abortMultipartUpload(request -> request.bucket(bucket).key(prefix + key).uploadId(uploadId));
+    }
+
+    @Override public void download(String key, Path target) throws IOException {
+        Files.deleteIfExists(target);
+
+        client.getObject(request -> request.bucket(bucket).key(prefix + key), ResponseTransformer.toFile(target));
+    }
+
+    @Override public void delete(String key) {
+        client.deleteObject(request -> request.bucket(bucket).key(prefix + key));
+    }
+
+    @Override public long getMinPartSize() {
+        return MIN_PART_SIZE;
+    }
+
+    @Override public int getMaxParts() {
+        return MAX_PARTS;
+    }
+
+    private List<Part> getParts(String key, String uploadId) {
+        return client.listPartsPaginator(request -> request.bucket(bucket).key(prefix + key).uploadId(uploadId))
+                .parts()
+                .stream()
+                .collect(Collectors.toList());
+    }
+
+    @Override public String toString() {
+        return "S3[" + bucket + "/" + prefix + "]";
+    }
+
+    public static class Builder {
+
+        /**
+         * Clients created from the configuration, shared by every instance.
+         */
+        private static S3Client sharedClient;
+        private static S3AsyncClient sharedAsyncClient;
+        private static S3Presigner sharedPresigner;
+
+        /**
+         * Clients created without the configuration, shared by every instance in the same region.
+         */
+        private static final Map<Region, S3Client> defaultClients = new ConcurrentHashMap<>();
+        private static final Map<Region, S3AsyncClient> defaultAsyncClients = new ConcurrentHashMap<>();
+
+        private S3Client client;
+        private S3AsyncClient asyncClient;
+
+        /**
+         * Only created with credentials, as direct uploads can't be signed without them.
+         */
+        private S3Presigner presigner;
+
+        private Region region = Region.EU_CENTRAL_1;
+        private String bucket;
+        private String prefix = "";
+        private boolean create = true;
+
         public S3.Builder setConfigDefaults() {
-            // TODO: Check for errors
-            builder.region(Region.of(Config.getString("aws.region")));
+            synchronized (Builder.class) {
+                if (sharedClient == null) {
+                    // TODO: Check for errors
+                    Region region = Region.of(Config.getString("s3.region"));
+
+                    AwsCredentials awsCredentials = AwsBasicCredentials.create(
+                        Config.getString("s3.aws.access.key.id"),
+                        Config.getString("s3.aws.secret.access.key")
+                    );
 
-            AwsCredentials awsCredentials = AwsBasicCredentials.create(
-                Config.getString("s3.aws.access.key.id"),
-                Config.getString("s3.aws.secret.access.key")
-            );
+                    AwsCredentialsProvider credentialsProvider = StaticCredentialsProvider.create(awsCredentials);
 
-            builder.credentialsProvider(StaticCredentialsProvider.create(awsCredentials));
+                    sharedClient = S3Client.builder().region(region).credentialsProvider(credentialsProvider).build();
+                    sharedAsyncClient = S3AsyncClient.builder().region(region).credentialsProvider(credentialsProvider).build();
+                    sharedPresigner = S3Presigner.builder().region(region).credentialsProvider(credentialsProvider).build();
+                }
+
+                this.region = Region.of(Config.getString("s3.region"));
+                this.client = sharedClient;
+                this.asyncClient = sharedAsyncClient;
+                this.presigner = sharedPresigner;
+            }
 
             return this;
         }
@@ -108,8 +524,31 @@ public class S3 implements StorageProvider {
             return this;
         }
 
+        /**
+         * @param prefix prefix of every key, e.g. the id of a slide. A slash is added as the separator.
+         */
+        public S3.Builder setPrefix(String prefix) {
+            this.prefix = prefix.isEmpty() ? "" : prefix + "/";
+
+            return this;
+        }
+
+        /**
+         * @param create false to only read from an existing bucket, without creating it.
+         */
+        public S3.Builder setCreate(boolean create) {
+            this.create = create;
+
+            return this;
+        }
+
         public S3 build() {
-            return new S3(builder.build(), bucket);
+            if (client == null) {
+                client = defaultClients.computeIfAbsent(region, r -> S3Client.builder().region(r).build());
+                asyncClient = defaultAsyncClients.computeIfAbsent(region, r -> S3AsyncClient.builder().region(r).build());
+            }
+
+            return new S3(client, asyncClient, presigner, region, bucket, prefix, create);
         }
     }
 }
@@ -1,9 +1,25 @@
 package fi.ylihallila.server.storage;
 
+import fi.ylihallila.server.archivers.PackedTileArchive;
+import fi.ylihallila.server.archivers.TileArchive;
+
 import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+import static fi.ylihallila.server.util.Config.Config;
 
 /**
  * Storage Provider represents a place where tiles can be saved & accessed from.
+ *
+ * Tiling jobs are resumed from their last checkpoint after a restart, so the same file, archive or
+ * tile may be committed more than once. Committing again must overwrite the previous copy.
+ *
+ * Storage providers which support reading tiles back can be served by the server itself, e.g. through
+ * a {@link MirroredStorage} which keeps the tiles of recently viewed slides on the local disk.
  */
 public interface StorageProvider {
 
@@ -11,19 +27,117 @@ public interface StorageProvider {
      * Save a single file.
      *
      * @param file file to save.
+     * @throws UncheckedIOException if saving the file fails.
      */
     void commitFile(File file);
 
     /**
-     * Save an archive.
+     * Save an archive. The level is checkpointed once this returns, so failures must be thrown
+     * rather than only logged, or the level would never be generated again.
      *
-     * @param file archive to save.
+     * @param file archive to save, created by {@link #createArchive(String, int)}.
+     * @throws UncheckedIOException if saving the archive fails.
      */
     void commitArchive(File file);
 
+    /**
+     * Creates the archive which tiles of a level are added to before the archive is committed
+     * with {@link #commitArchive(File)}.
+     *
+     * @param id id of the slide.
+     * @param level level of the tiles.
+     * @return empty archive.
+     */
+    default TileArchive createArchive(String id, int level) {
+        return new PackedTileArchive(id, level);
+    }
+
+    /**
+     * Save a single tile. Used when tiles are streamed to storage while they're being generated,
+     * instead of committing an archive for each level.
+     *
+     * @param id id of the slide.
+     * @param level level of the tile.
+     * @param tileName name of the tile.
+     * @param data encoded tile.
+     * @throws IOException if saving the tile fails.
+     */
+    void commitTile(String id, int level, String tileName, byte[] data) throws IOException;
+
+    /**
+     * Starts saving a single tile. Storage providers which upload tiles over the network can override
+     * this to keep many uploads in flight at once. By default the tile is saved before returning.
+     *
+     * @return future which completes once the tile has been saved, or exceptionally if saving it failed.
+     * @see #commitTile(String, int, String, byte[])
+     */
+    default CompletableFuture<Void> commitTileAsync(String id, int level, String tileName, byte[] data) {
+        try {
+            commitTile(id, level, tileName, data);
+
+            return CompletableFuture.completedFuture(null);
+        } catch (IOException | RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * @return false if {@link #commitTile(String, int, String, byte[])} is not supported and tiles
+     *         must be committed as archives.
+     */
+    default boolean supportsStreaming() {
+        return true;
+    }
+
+    /**
+     * @return true if the tiles are stored on another host, so reading them requires a request.
+     */
+    default boolean isRemote() {
+        return false;
+    }
+
+    /**
+     * @return false if tiles can't be read back with {@link #readTile(String, int, String)}.
+     */
+    default boolean supportsReading() {
+        return false;
+    }
+
+    /**
+     * Reads a tile committed to this storage.
+     *
+     * @param id id of the slide.
+     * @param level level of the tile.
+     * @param tileName name of the tile.
+     * @return the tile or empty if it doesn't exist or reading is not supported.
+     * @throws IOException if reading the tile fails.
+     */
+    default Optional<ByteBuffer> readTile(String id, int level, String tileName) throws IOException {
+        return Optional.empty();
+    }
+
+    /**
+     * Reads a range of a tile. By default the whole tile is read and sliced.
+     *
+     * @param offset first byte to read.
+     * @param length number of bytes to read, fewer are returned if the tile ends before.
+     * @return the range or empty if the tile doesn't exist.
+     */
+    default Optional<ByteBuffer> readTile(String id, int level, String tileName, long offset, int length) throws IOException {
+        return readTile(id, level, tileName).map(tile -> slice(tile, offset, length));
+    }
+
+    /**
+     * @return true if the tile has been committed to this storage.
+     */
+    default boolean tileExists(String id, int level, String tileName) throws IOException {
+        return readTile(id, level, tileName).isPresent();
+    }
+
     /**
      * Returns the URI where the tiles are located. Contains placeholders {id}, {level}, {tileX}, {tileY},
-     * {tileHeight}, {tileWidth} and any possible Storage Provider specific placeholders.
+     * {tileHeight}, {tileWidth}, {extension} and any possible Storage Provider specific placeholders.
+     * {id} and {extension} are replaced by the tiler.
      *
      * @return string URI with placeholders.
      */
@@ -36,4 +150,65 @@ public interface StorageProvider {
      */
     String getThumbnailURI();
 
+    /**
+     * @return the range of a buffer, clamped to its end.
+     */
+    static ByteBuffer slice(ByteBuffer buffer, long offset, int length) {
+        ByteBuffer slice = buffer.duplicate();
+        int start = (int) Math.min(offset, slice.remaining());
+
+        slice.position(slice.position() + start);
+        slice.limit(slice.position() + Math.min(length, slice.remaining()));
+
+        return slice.slice();
+    }
+
+    /**
+     * Creates the storage provider defined in the server configuration for a slide. Remote storage
+     * is mirrored to the local disk if storage.mirror.enabled is set.
+     *
+     * @param id id of the slide.
+     */
+    static StorageProvider fromConfig(String id) {
+        return fromConfig(id, true);
+    }
+
+    /**
+     * Creates the storage provider defined in the server configuration for reading the tiles of a slide.
+     * Unlike {@link #fromConfig(String)}, the bucket or container of the slide is neither created nor
+     * made public, so reading has no side effects on the storage.
+     *
+     * @param id id of the slide.
+     */
+    static StorageProvider forReading(String id) {
+        return fromConfig(id, false);
+    }
+
+    private static StorageProvider fromConfig(String id, boolean create) {
+        StorageProvider storage = switch (Config.getString("storage.provider").toLowerCase()) {
+            case "aws" -> new S3.Builder()
+                    .setConfigDefaults()
+                    .setBucket(Config.getString("s3.bucket"))
+                    .setPrefix(id)
+                    .setCreate(create)
+                    .build();
+            case "allas" -> new Allas.Builder()
+                    .setConfigDefaults()
+                    .setContainer(id)
+                    .setCreate(create)
+                    .build();
+            case "packed" -> new PackedFile(id);
+            default -> new FlatFile();
+        };
+
+        if (storage.isRemote() && Config.getBoolean("storage.mirror.enabled")) {
+            try {
+                return new MirroredStorage(storage, TileMirror.getInstance());
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not create tile mirror", e);
+            }
+        }
+
+        return storage;
+    }
 }
@@ -0,0 +1,241 @@
+package fi.ylihallila.server.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static fi.ylihallila.server.util.Config.Config;
+
+/**
+ * Copies of tiles read from remote storage, kept on the local disk up to a maximum size. The least
+ * recently used tiles are deleted first once the mirror is full, so the tiles of slides which are
+ * being viewed stay on the local disk while other slides are only kept in object storage.
+ *
+ * The mirror survives restarts: existing files are indexed on startup, oldest first.
+ */
+public class TileMirror {
+
+    private static final Logger logger = LoggerFactory.getLogger(TileMirror.class);
+
+    private static TileMirror instance;
+
+    private final Path directory;
+    private final long maxSize;
+
+    /**
+     * Size of every mirrored file, by key, in access order. Guarded by this.
+     */
+    private final LinkedHashMap<String, Long> files = new LinkedHashMap<>(16, 0.75f, true);
+    private long size = 0;
+
+    private final AtomicLong hits   = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param directory directory the tiles are mirrored to.
+     * @param maxSize size in bytes after which the least recently used tiles are deleted.
+     */
+    public TileMirror(Path directory, long maxSize) throws IOException {
+        this.directory = directory.toAbsolutePath().normalize();
+        this.maxSize = maxSize;
+
+        Files.createDirectories(this.directory);
+
+        index();
+    }
+
+    /**
+     * @return mirror defined in the server configuration, created when first used.
+     */
+    public static synchronized TileMirror getInstance() throws IOException {
+        if (instance == null) {
+            instance = new TileMirror(
+                Path.of(Config.getString("storage.mirror.directory")),
+                Config.getBytes("storage.mirror.size")
+            );
+        }
+
+        return instance;
+    }
+
+    /**
+     * @param key relative path of the tile, e.g. "{id}/{tile name}".
+     * @return the mirrored tile or empty if it isn't mirrored.
+     */
+    public Optional<ByteBuffer> get(String key) throws IOException {
+        synchronized (this) {
+            if (files.get(key) == null) {
+                misses.incrementAndGet();
+                return Optional.empty();
+            }
+        }
+
+        try (FileChannel channel = FileChannel.open(resolve(key), StandardOpenOption.READ)) {
+            ByteBuffer data = ByteBuffer.allocate((int) channel.size());
+
+            while (data.hasRemaining() && channel.read(data) >= 0);
+
+            hits.incrementAndGet();
+
+            return Optional.of(data.flip());
+        } catch (NoSuchFileException e) {
+            // Evicted while being read
+            remove(key);
+            misses.incrementAndGet();
+
+            return Optional.empty();
+        }
+    }
+
+    public synchronized boolean contains(String key) {
+        return files.containsKey(key);
+    }
+
+    /**
+     * Mirrors a tile, deleting the least recently used tiles if the mirror is full. The tile is written
+     * to a temporary file first, so a partially written tile is never read.
+     */
+    public void put(String key, ByteBuffer data) throws IOException {
+        Path path = resolve(key);
+        Path temp = path.resolveSibling(path.getFileName() + "." + UUID.randomUUID() + ".tmp");
+
+        Files.createDirectories(path.getParent());
+
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = data.duplicate();
+
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        List<String> evicted = new ArrayList<>();
+
+        synchronized (this) {
+            Long previous = files.put(key, (long) data.remaining());
+            size += data.remaining() - (previous == null ? 0 : previous);
+
+            Iterator<Map.Entry<String, Long>> eldest = files.entrySet().iterator();
+
+            while (size > maxSize && eldest.hasNext()) {
+                Map.Entry<String, Long> entry = eldest.next();
+
+                if (entry.getKey().equals(key)) {
+                    continue;
+                }
+
+                size -= entry.getValue();
+                evicted.add(entry.getKey());
+                eldest.remove();
+            }
+        }
+
+        for (String old : evicted) {
+            Files.deleteIfExists(resolve(old));
+        }
+    }
+
+    public long getSize() {
+        synchronized (this) {
+            return size;
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private synchronized void remove(String key) {
+        Long removed = files.remove(key);
+
+        if (removed != null) {
+            size -= removed;
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the key points outside of the mirror.
+     */
+    private Path resolve(String key) {
+        Path path = directory.resolve(key).normalize();
+
+        if (!path.startsWith(directory) || path.equals(directory)) {
+            throw new IllegalArgumentException("Invalid mirror key: " + key);
+        }
+
+        return path;
+    }
+
+    /**
+     * Indexes the files mirrored before a restart, least recently modified first. Temporary files
+     * left by an interrupted write are deleted.
+     */
+    private void index() throws IOException {
+        List<Path> existing = new ArrayList<>();
+
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.filter(Files::isRegularFile).forEach(existing::add);
+        }
+
+        existing.sort(Comparator.comparingLong(path -> {
+            try {
+                return Files.readAttributes(path, BasicFileAttributes.class).lastModifiedTime().toMillis();
+            } catch (IOException e) {
+                return 0L;
+            }
+        }));
+
+        List<Path> evicted = new ArrayList<>();
+
+        synchronized (this) {
+            for (Path path : existing) {
+                if (path.getFileName().toString().endsWith(".tmp")) {
+                    evicted.add(path);
+                    continue;
+                }
+
+                long length = Files.size(path);
+
+                files.put(directory.relativize(path).toString().replace(path.getFileSystem().getSeparator(), "/"), length);
+                size += length;
+            }
+
+            Iterator<Map.Entry<String, Long>> eldest = files.entrySet().iterator();
+
+            while (size > maxSize && eldest.hasNext()) {
+                Map.Entry<String, Long> entry = eldest.next();
+
+                size -= entry.getValue();
+                evicted.add(resolve(entry.getKey()));
+                eldest.remove();
+            }
+        }
+
+        for (Path path : evicted) {
+            Files.deleteIfExists(path);
+        }
+
+        logger.info("Indexed tile mirror {} [{} files, {} bytes]", directory, files.size(), size);
+    }
+}
@@ -0,0 +1,172 @@
+package fi.ylihallila.server.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Bounded queue of encoded tiles, which a pool of upload workers commits to a {@link StorageProvider}
+ * while the tiles are still being generated. When the queue is full, adding a tile blocks until an
+ * upload worker has taken one, so at most the capacity of the queue is held in memory at any time.
+ *
+ * Workers start uploads with {@link StorageProvider#commitTileAsync(String, int, String, byte[])}, so
+ * a storage provider which uploads asynchronously may have more tiles in flight than there are workers.
+ */
+public class TileUploadQueue implements AutoCloseable {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    /**
+     * Added once for every upload worker when closing the queue, signals the worker to stop.
+     */
+    private static final Tile END = new Tile(-1, null, null, null);
+
+    private final StorageProvider storage;
+    private final String id;
+
+    private final BlockingQueue<Tile> queue;
+    private final ExecutorService uploaders;
+    private final int workers;
+
+    /**
+     * Uploads which have been started but not completed.
+     */
+    private final Set<CompletableFuture<Void>> inFlight = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong committed = new AtomicLong();
+    private final AtomicLong failed    = new AtomicLong();
+
+    public TileUploadQueue(StorageProvider storage, String id, int capacity, int workers) {
+        this.storage = storage;
+        this.id = id;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.workers = workers;
+        this.uploaders = Executors.newFixedThreadPool(workers);
+
+        for (int i = 0; i < workers; i++) {
+            uploaders.execute(this::upload);
+        }
+    }
+
+    /**
+     * Adds a tile to the upload queue, waiting if the queue is full.
+     *
+     * @param level level of the tile.
+     * @param tileName name of the tile.
+     * @param data encoded tile.
+     * @param callback called with true once the tile is committed or false if committing it failed.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void put(int level, String tileName, byte[] data, Consumer<Boolean> callback) throws InterruptedException {
+        queue.put(new Tile(level, tileName, data, callback));
+    }
+
+    /**
+     * @return number of tiles committed to storage so far.
+     */
+    public long getCommitted() {
+        return committed.get();
+    }
+
+    /**
+     * @return number of tiles which could not be committed.
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Waits until every queued tile has been committed and stops the upload workers. If interrupted
+     * while waiting, the upload workers are stopped without waiting and the interrupt is restored.
+     */
+    @Override
+    public void close() {
+        try {
+            for (int i = 0; i < workers; i++) {
+                queue.put(END);
+            }
+
+            uploaders.shutdown();
+
+            while (!uploaders.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.debug("Waiting for {} tiles to be uploaded", queue.size() + inFlight.size());
+            }
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while waiting for tile uploads, {} queued tiles were not uploaded", queue.size());
+            uploaders.shutdownNow();
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        // Completed uploads remove themselves, the rest are waited for
+        CompletableFuture.allOf(inFlight.toArray(CompletableFuture[]::new)).join();
+
+        logger.debug("Uploaded {} tiles, {} failed", committed.get(), failed.get());
+    }
+
+    private void upload() {
+        try {
+            Tile tile;
+
+            while ((tile = queue.take()) != END) {
+                CompletableFuture<Void> upload = start(tile);
+
+                inFlight.add(upload);
+                upload.whenComplete((result, e) -> inFlight.remove(upload));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return future which completes once the tile has been uploaded and its callback called.
+     */
+    private CompletableFuture<Void> start(Tile tile) {
+        CompletableFuture<Void> upload;
+
+        try {
+            upload = storage.commitTileAsync(id, tile.level, tile.name, tile.data);
+        } catch (Exception e) {
+            upload = CompletableFuture.failedFuture(e);
+        }
+
+        return upload.handle((result, e) -> {
+            if (e == null) {
+                committed.incrementAndGet();
+            } else {
+                failed.incrementAndGet();
+                logger.error("Error while uploading tile {} of {}", tile.name, id, e);
+            }
+
+            tile.callback.accept(e == null);
+
+            return null;
+        });
+    }
+
+    private static class Tile {
+
+        private final int level;
+        private final String name;
+        private final byte[] data;
+        private final Consumer<Boolean> callback;
+
+        private Tile(int level, String name, byte[] data, Consumer<Boolean> callback) {
+            this.level = level;
+            this.name = name;
+            this.data = data;
+            this.callback = callback;
+        }
+    }
+}
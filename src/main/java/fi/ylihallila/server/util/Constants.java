@@ -9,7 +9,32 @@ public class Constants {
     public final static String PROJECT_FILE_FORMAT   = "projects/%s.json";
     public final static String BACKUP_FILE_FORMAT    = "backups/%s@%s";
     public final static String PROJECTS_FOLDER       = "projects/";
-    public final static String TILE_FILE_FORMAT      = "tiles/%s/%s/%s_%s_%s_%s.png";
+    public final static String TILE_FILE_FORMAT      = "tiles/%s-level-%s-tiles/%s";
+    public final static String TILE_NAME_FORMAT      = "%s_%s_%s_%s_%s.%s";
+
+    /**
+     * Slide property with the {@link fi.ylihallila.server.generators.TileFormat TileFormat} of its tiles.
+     * Slides without it have JPEG tiles.
+     */
+    public final static String TILE_FORMAT_PROPERTY  = "openslide.remoteserver.format";
+
+    /**
+     * Slide properties describing how the tiles were generated, see {@link fi.ylihallila.server.generators.TileLayout TileLayout}.
+     * Slides without them have OpenSlide levels, no overlap and aren't cropped.
+     */
+    public final static String TILE_LAYOUT_PROPERTY  = "openslide.remoteserver.layout";
+    public final static String TILE_OVERLAP_PROPERTY = "openslide.remoteserver.overlap";
+    public final static String TILE_CROPPED_PROPERTY = "openslide.remoteserver.cropped";
+
+    /**
+     * Path of the tile endpoint, which serves tiles from any local storage and renders tiles of pending slides.
+     */
+    public final static String TILE_ENDPOINT         = "/api/v0/slides/{id}/tile/{tileX}/{tileY}/{level}/{tileWidth}/{tileHeight}";
+
+    /**
+     * Every tile of a slide in one file, see {@link fi.ylihallila.server.storage.PackedPyramid PackedPyramid}.
+     */
+    public final static String PACKED_TILES_FILE     = "tiles/%s.tiles";
 
     public final static String ORGANIZATION_LOGOS    = "logos/%s.png";
 
@@ -24,10 +49,27 @@ public class Constants {
      */
     public final static String PENDING_SLIDES        = "slides/%s.pending";
 
+    /**
+     * Slides uploaded directly to object storage, containing the key of the slide. The {@link fi.ylihallila.server.generators.Tiler Tiler}
+     * downloads these to {@link #DOWNLOADING_SLIDES} and marks them pending once downloaded.
+     */
+    public final static String REMOTE_SLIDES         = "slides/%s.remote";
+    public final static String DOWNLOADING_SLIDES    = "slides/%s.download";
+
     public final static String SLIDES_DIRECTORY      = "slides";
 
+    /**
+     * State of the tiling queue, written by the {@link fi.ylihallila.server.generators.Tiler Tiler}.
+     */
+    public final static String TILER_STATUS_FILE     = "tiler.json";
+
     public final static String BACKUP_FOLDER         = "backups/";
     public final static String TEMP_FILE             = "temp/%s";
+
+    /**
+     * Slide being uploaded, by the id of its {@link fi.ylihallila.server.models.UploadSession UploadSession}.
+     */
+    public final static String UPLOAD_FILE           = "temp/%s.upload";
     public final static String ADMINISTRATORS_FILE   = "administrators.json";
 
     public final static String PASSWORD_RESET_URL = "%s/api/v0/auth/password/set/%s";
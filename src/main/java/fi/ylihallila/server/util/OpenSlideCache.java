@@ -1,37 +1,297 @@
 package fi.ylihallila.server.util;
 
 import org.openslide.OpenSlide;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+import static fi.ylihallila.server.util.Config.Config;
+
+/**
+ * Keeps OpenSlide instances open between requests. Every instance holds a native handle and its
+ * own tile cache, so the number of cached slides is bounded and slides which haven't been used
+ * for a while are closed.
+ *
+ * Instances are borrowed with {@link #acquire(String)} and must be returned by closing the
+ * returned {@link Handle}. An evicted slide is only closed once every handle to it has been returned.
+ * Each slide has a small pool of instances, so parallel reads of one slide don't have to wait
+ * for each other inside OpenSlide.
+ */
 public class OpenSlideCache {
 
-    private static final HashMap<String, OpenSlide> cache = new HashMap<>();
+    private static final Logger logger = LoggerFactory.getLogger(OpenSlideCache.class);
+
+    private static final int MAX_SLIDES     = Config.getInt("openslide.cache.size");
+    private static final int POOL_SIZE      = Math.max(1, Config.getInt("openslide.cache.pool.size"));
+    private static final long IDLE_TIMEOUT  = Config.getDuration("openslide.cache.idle.timeout", TimeUnit.MILLISECONDS);
 
     /**
-     * Gets an OpenSlide instance for a given slide. Tries to look
-     * for slides where the server.jar file is located.
+     * Cached slides in access order, least recently used first. Guarded by the class lock.
+     */
+    private static final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    static {
+        ScheduledExecutorService cleaner = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "OpenSlideCache-cleaner");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long interval = Math.max(1000, IDLE_TIMEOUT / 2);
+        cleaner.scheduleWithFixedDelay(OpenSlideCache::evictIdle, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Borrows an OpenSlide instance for a slide. Waits if every instance of the slide's pool is in use.
      *
      * @param filename slide filename
      * @return empty if not found
-     * @throws IOException if an I/O error occurs, e.g. when file not found
+     * @throws IOException if an I/O error occurs, e.g. when the file isn't supported by OpenSlide
+     */
+    public static Optional<Handle> acquire(String filename) throws IOException {
+        Entry entry;
+
+        synchronized (OpenSlideCache.class) {
+            entry = entries.get(filename);
+
+            if (entry == null) {
+                if (!new File(filename).exists()) {
+                    return Optional.empty();
+                }
+
+                entry = new Entry(filename);
+                entries.put(filename, entry);
+
+                evictOverflow();
+            }
+
+            entry.references++;
+            entry.lastUsed = System.currentTimeMillis();
+        }
+
+        try {
+            return Optional.of(new Handle(entry, entry.borrow()));
+        } catch (IOException | RuntimeException e) {
+            release(entry);
+
+            // Don't keep slides which can't be opened
+            evict(filename);
+
+            throw e;
+        }
+    }
+
+    /**
+     * Removes a slide from the cache, e.g. when it has been moved or deleted. Its instances are
+     * closed once they're no longer in use.
+     */
+    public static void evict(String filename) {
+        List<Entry> closed = new ArrayList<>();
+
+        synchronized (OpenSlideCache.class) {
+            Entry entry = entries.remove(filename);
+
+            if (entry != null && entry.evict()) {
+                closed.add(entry);
+            }
+        }
+
+        closed.forEach(Entry::close);
+    }
+
+    /**
+     * @return number of slides currently cached.
+     */
+    public static synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Evicts the least recently used slides until the cache is within its size. Must hold the class lock.
+     */
+    private static void evictOverflow() {
+        Iterator<Entry> it = entries.values().iterator();
+
+        while (entries.size() > MAX_SLIDES && it.hasNext()) {
+            Entry entry = it.next();
+            it.remove();
+
+            logger.debug("Evicting OpenSlide instances of {}", entry.filename);
+
+            if (entry.evict()) {
+                entry.close();
+            }
+        }
+    }
+
+    private static void evictIdle() {
+        List<Entry> closed = new ArrayList<>();
+        long now = System.currentTimeMillis();
+
+        synchronized (OpenSlideCache.class) {
+            Iterator<Entry> it = entries.values().iterator();
+
+            while (it.hasNext()) {
+                Entry entry = it.next();
+
+                if (entry.references == 0 && now - entry.lastUsed >= IDLE_TIMEOUT) {
+                    it.remove();
+                    entry.evict();
+                    closed.add(entry);
+                }
+            }
+        }
+
+        for (Entry entry : closed) {
+            logger.debug("Closing idle OpenSlide instances of {}", entry.filename);
+            entry.close();
+        }
+    }
+
+    private static void release(Entry entry) {
+        boolean close;
+
+        synchronized (OpenSlideCache.class) {
+            entry.references--;
+            entry.lastUsed = System.currentTimeMillis();
+
+            close = entry.evicted && entry.references == 0;
+        }
+
+        if (close) {
+            entry.close();
+        }
+    }
+
+    /**
+     * A borrowed OpenSlide instance. Closing the handle returns the instance to its pool.
      */
-    public static Optional<OpenSlide> get(String filename) throws IOException {
-        if (cache.containsKey(filename)) {
-            return Optional.of(cache.get(filename));
+    public static class Handle implements AutoCloseable {
+
+        private final Entry entry;
+        private OpenSlide openSlide;
+
+        private Handle(Entry entry, OpenSlide openSlide) {
+            this.entry = entry;
+            this.openSlide = openSlide;
         }
 
-        File file = new File(filename);
-        if (file.exists()) {
-            OpenSlide openSlide = new OpenSlide(file);
-            cache.put(filename, openSlide);
+        public OpenSlide get() {
+            if (openSlide == null) {
+                throw new IllegalStateException("Handle has already been closed");
+            }
 
-            return Optional.of(openSlide);
+            return openSlide;
         }
 
-        return Optional.empty();
+        @Override
+        public void close() {
+            if (openSlide == null) {
+                return;
+            }
+
+            entry.giveBack(openSlide);
+            openSlide = null;
+
+            release(entry);
+        }
+    }
+
+    /**
+     * The pool of instances of a single slide.
+     */
+    private static class Entry {
+
+        private final String filename;
+
+        /**
+         * Instances which aren't in use.
+         */
+        private final Deque<OpenSlide> idle = new ArrayDeque<>();
+
+        /**
+         * Number of instances opened, including those in use.
+         */
+        private int opened = 0;
+
+        /**
+         * Handles which haven't been returned yet, including threads waiting for one.
+         * Guarded by the class lock like the fields below.
+         */
+        private int references = 0;
+        private long lastUsed;
+        private boolean evicted = false;
+
+        private Entry(String filename) {
+            this.filename = filename;
+        }
+
+        private OpenSlide borrow() throws IOException {
+            synchronized (this) {
+                while (idle.isEmpty() && opened >= POOL_SIZE) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for OpenSlide instance of " + filename, e);
+                    }
+                }
+
+                if (!idle.isEmpty()) {
+                    return idle.pop();
+                }
+
+                opened++;
+            }
+
+            // Opening a slide may take a while, so other threads can use the pool meanwhile
+            try {
+                return new OpenSlide(new File(filename));
+            } catch (IOException | RuntimeException e) {
+                synchronized (this) {
+                    opened--;
+                    notify();
+                }
+
+                throw e;
+            }
+        }
+
+        private synchronized void giveBack(OpenSlide openSlide) {
+            idle.push(openSlide);
+            notify();
+        }
+
+        /**
+         * Marks this entry evicted. Must hold the class lock.
+         *
+         * @return true if no handles are in use and the instances can be closed.
+         */
+        private boolean evict() {
+            evicted = true;
+
+            return references == 0;
+        }
+
+        private synchronized void close() {
+            for (OpenSlide openSlide : idle) {
+                openSlide.close();
+            }
+
+            opened -= idle.size();
+            idle.clear();
+        }
     }
 }
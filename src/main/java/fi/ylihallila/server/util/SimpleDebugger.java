@@ -28,15 +28,53 @@ public class SimpleDebugger {
         logger.debug("auth.simple.enabled: " + Config.getString("auth.simple.enabled"));
         logger.debug("auth.microsoft.enabled: " + Config.getString("auth.microsoft.enabled"));
         logger.debug("roles.manage.personal.projects.default: " + Config.getBoolean("roles.manage.personal.projects.default"));
+        logger.debug("uploads.session.expiry: " + Config.getDuration("uploads.session.expiry"));
+        logger.debug("uploads.direct.url.expiry: " + Config.getDuration("uploads.direct.url.expiry"));
         logger.debug("ssl.keystore: " + Config.getString("ssl.keystore.path"));
         logger.debug("ssl.keystore.password: " + Config.getString("ssl.keystore.password"));
+        logger.debug("tiler.workers: " + Config.getInt("tiler.workers"));
+        logger.debug("tiler.concurrent.slides: " + Config.getInt("tiler.concurrent.slides"));
+        logger.debug("tiler.band.pixels: " + Config.getLong("tiler.band.pixels"));
+        logger.debug("tiler.stall.timeout: " + Config.getDuration("tiler.stall.timeout"));
+        logger.debug("tiler.tissue.mask.enabled: " + Config.getBoolean("tiler.tissue.mask.enabled"));
+        logger.debug("tiler.tissue.mask.background: " + Config.getString("tiler.tissue.mask.background"));
+        logger.debug("tiler.tile.size: " + Config.getInt("tiler.tile.size"));
+        logger.debug("tiler.tile.overlap: " + Config.getInt("tiler.tile.overlap"));
+        logger.debug("tiler.bounds.crop: " + Config.getBoolean("tiler.bounds.crop"));
+        logger.debug("tiler.layout: " + Config.getString("tiler.layout"));
+        logger.debug("tiler.levels.derive: " + Config.getBoolean("tiler.levels.derive"));
+        logger.debug("tiler.encoder.format: " + Config.getString("tiler.encoder.format"));
+        logger.debug("tiler.encoder.quality: " + Config.getDouble("tiler.encoder.quality"));
+        logger.debug("tiler.encoder.level.quality: " + Config.getDoubleList("tiler.encoder.level.quality"));
+        logger.debug("tiler.streaming.enabled: " + Config.getBoolean("tiler.streaming.enabled"));
+        logger.debug("openslide.cache.size: " + Config.getInt("openslide.cache.size"));
+        logger.debug("openslide.cache.pool.size: " + Config.getInt("openslide.cache.pool.size"));
+        logger.debug("openslide.cache.idle.timeout: " + Config.getDuration("openslide.cache.idle.timeout"));
+        logger.debug("cache.tiles.size: " + Config.getBytes("cache.tiles.size"));
+        logger.debug("cache.tiles.direct: " + Config.getBoolean("cache.tiles.direct"));
+        logger.debug("cache.tiles.rendered.threads: " + Config.getInt("cache.tiles.rendered.threads"));
         logger.debug("storage.provider: " + Config.getString("storage.provider"));
+        logger.debug("storage.mirror.enabled: " + Config.getBoolean("storage.mirror.enabled"));
+        logger.debug("storage.mirror.directory: " + Config.getString("storage.mirror.directory"));
+        logger.debug("storage.mirror.size: " + Config.getBytes("storage.mirror.size"));
+        logger.debug("storage.readers: " + Config.getInt("storage.readers"));
         logger.debug("allas.username: " + Config.getString("allas.username"));
         logger.debug("allas.password: " + Config.getString("allas.password"));
         logger.debug("allas.auth.url: " + Config.getString("allas.auth.url"));
         logger.debug("allas.domain: " + Config.getString("allas.domain"));
         logger.debug("allas.tenant.id: " + Config.getString("allas.tenant.id"));
         logger.debug("allas.tenant.name: " + Config.getString("allas.tenant.name"));
+        logger.debug("allas.archive.segment.size: " + Config.getBytes("allas.archive.segment.size"));
+        logger.debug("allas.upload.concurrency: " + Config.getInt("allas.upload.concurrency"));
+        logger.debug("allas.upload.retries: " + Config.getInt("allas.upload.retries"));
+        logger.debug("allas.upload.backoff: " + Config.getDuration("allas.upload.backoff"));
+        logger.debug("allas.uploads.container: " + Config.getString("allas.uploads.container"));
+        logger.debug("s3.region: " + Config.getString("s3.region"));
+        logger.debug("s3.bucket: " + Config.getString("s3.bucket"));
+        logger.debug("s3.upload.concurrency: " + Config.getInt("s3.upload.concurrency"));
+        logger.debug("s3.multipart.part.size: " + Config.getBytes("s3.multipart.part.size"));
+        logger.debug("s3.multipart.concurrency: " + Config.getInt("s3.multipart.concurrency"));
+        logger.debug("s3.uploads.bucket: " + Config.getString("s3.uploads.bucket"));
         logger.debug("flatfile.directory: " + Config.getString("flatfile.directory"));
         logger.debug("app.id: " + Config.getString("microsoft.app.id"));
         logger.debug("jwk.provider: " + Config.getString("microsoft.jwk.provider"));
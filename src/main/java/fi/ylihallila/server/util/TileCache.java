@@ -0,0 +1,350 @@
+package fi.ylihallila.server.util;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Concurrent in-memory cache of encoded tiles, bounded by the total size of the tiles.
+ *
+ * The cache is split into shards by key, each with its own lock. Every shard uses segmented LRU
+ * eviction: new tiles enter a probationary segment and are promoted to the protected segment when
+ * requested again. Tiles which are only requested once, e.g. when one user pans across a slide, are
+ * evicted before tiles which many users are viewing.
+ *
+ * Tiles can optionally be stored outside the Java heap, so that a large cache doesn't increase
+ * garbage collection pauses.
+ */
+public class TileCache {
+
+    private static final int SHARDS = 16;
+
+    /**
+     * Share of each shard reserved for tiles requested more than once.
+     */
+    private static final double PROTECTED_RATIO = 0.8;
+
+    private final Shard[] shards = new Shard[SHARDS];
+    private final boolean direct;
+
+    private final LongAdder hits      = new LongAdder();
+    private final LongAdder misses    = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxBytes maximum total size of cached tiles. 0 disables caching.
+     * @param direct true to store tiles outside the Java heap.
+     */
+    public TileCache(long maxBytes, boolean direct) {
+        this.direct = direct;
+
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new Shard(maxBytes / SHARDS);
+        }
+    }
+
+    public boolean isEnabled() {
+        return shards[0].capacity > 0;
+    }
+
+    /**
+     * @return cached tile or empty if the tile isn't cached.
+     */
+    public Optional<Tile> get(String key) {
+        Tile tile = shard(key).get(key);
+
+        if (tile == null) {
+            misses.increment();
+            return Optional.empty();
+        }
+
+        hits.increment();
+        return Optional.of(tile);
+    }
+
+    /**
+     * @param size size of a tile in bytes.
+     * @return true if a tile of the given size would be cached by {@link #put(String, Tile)}. A single
+     *         tile may not take up a large part of the cache.
+     */
+    public boolean accepts(String key, long size) {
+        return isEnabled() && size <= shard(key).capacity / 8;
+    }
+
+    /**
+     * Caches a copy of a tile, unless it is too large, see {@link #accepts(String, long)}. The position
+     * of the given tile data is not changed.
+     */
+    public void put(String key, Tile tile) {
+        Shard shard = shard(key);
+
+        if (!accepts(key, tile.size())) {
+            return;
+        }
+
+        ByteBuffer copy = direct ? ByteBuffer.allocateDirect(tile.size()) : ByteBuffer.allocate(tile.size());
+        copy.put(tile.getData()).flip();
+
+        shard.put(key, new Tile(copy, tile.etag, tile.lastModified, tile.cacheControl, tile.rendered));
+    }
+
+    /**
+     * Removes a single tile.
+     */
+    public void invalidate(String key) {
+        shard(key).remove(key);
+    }
+
+    /**
+     * Removes every tile whose key starts with the given prefix, e.g. when a slide is deleted.
+     */
+    public void invalidateAll(String prefix) {
+        for (Shard shard : shards) {
+            shard.removeIf(key -> key.startsWith(prefix));
+        }
+    }
+
+    public Statistics getStatistics() {
+        long bytes = 0;
+        long entries = 0;
+        long capacity = 0;
+
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                bytes += shard.probationBytes + shard.protectedBytes;
+                entries += shard.probation.size() + shard.protectedSegment.size();
+                capacity += shard.capacity;
+            }
+        }
+
+        return new Statistics(hits.sum(), misses.sum(), evictions.sum(), entries, bytes, capacity);
+    }
+
+    private Shard shard(String key) {
+        return shards[(key.hashCode() & Integer.MAX_VALUE) % SHARDS];
+    }
+
+    private class Shard {
+
+        private final long capacity;
+        private final long protectedCapacity;
+
+        /**
+         * Both segments are in access order, least recently used first.
+         */
+        private final LinkedHashMap<String, Tile> probation        = new LinkedHashMap<>(16, 0.75f, true);
+        private final LinkedHashMap<String, Tile> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+
+        private long probationBytes = 0;
+        private long protectedBytes = 0;
+
+        private Shard(long capacity) {
+            this.capacity = capacity;
+            this.protectedCapacity = (long) (capacity * PROTECTED_RATIO);
+        }
+
+        private synchronized Tile get(String key) {
+            Tile tile = protectedSegment.get(key);
+
+            if (tile != null) {
+                return tile;
+            }
+
+            tile = probation.remove(key);
+
+            if (tile == null) {
+                return null;
+            }
+
+            // Requested again, promote to the protected segment
+            probationBytes -= tile.size();
+            protectedSegment.put(key, tile);
+            protectedBytes += tile.size();
+
+            // Demote the least recently used protected tiles back to probation
+            Iterator<Map.Entry<String, Tile>> it = protectedSegment.entrySet().iterator();
+            while (protectedBytes > protectedCapacity && it.hasNext()) {
+                Map.Entry<String, Tile> demoted = it.next();
+                it.remove();
+
+                protectedBytes -= demoted.getValue().size();
+                probation.put(demoted.getKey(), demoted.getValue());
+                probationBytes += demoted.getValue().size();
+            }
+
+            return tile;
+        }
+
+        private synchronized void put(String key, Tile tile) {
+            if (protectedSegment.containsKey(key) || probation.containsKey(key)) {
+                return;
+            }
+
+            probation.put(key, tile);
+            probationBytes += tile.size();
+
+            evict(probation, true);
+            evict(protectedSegment, false);
+        }
+
+        /**
+         * Evicts the least recently used tiles of a segment until the shard fits in its capacity.
+         */
+        private void evict(LinkedHashMap<String, Tile> segment, boolean isProbation) {
+            Iterator<Tile> it = segment.values().iterator();
+
+            while (probationBytes + protectedBytes > capacity && it.hasNext()) {
+                long size = it.next().size();
+                it.remove();
+
+                if (isProbation) {
+                    probationBytes -= size;
+                } else {
+                    protectedBytes -= size;
+                }
+
+                evictions.increment();
+            }
+        }
+
+        private synchronized void remove(String key) {
+            Tile tile = probation.remove(key);
+
+            if (tile != null) {
+                probationBytes -= tile.size();
+            }
+
+            tile = protectedSegment.remove(key);
+
+            if (tile != null) {
+                protectedBytes -= tile.size();
+            }
+        }
+
+        private synchronized void removeIf(Predicate<String> predicate) {
+            probationBytes -= remove(probation, predicate);
+            protectedBytes -= remove(protectedSegment, predicate);
+        }
+
+        private long remove(LinkedHashMap<String, Tile> segment, Predicate<String> predicate) {
+            long removed = 0;
+            Iterator<Map.Entry<String, Tile>> it = segment.entrySet().iterator();
+
+            while (it.hasNext()) {
+                Map.Entry<String, Tile> entry = it.next();
+
+                if (predicate.test(entry.getKey())) {
+                    removed += entry.getValue().size();
+                    it.remove();
+                }
+            }
+
+            return removed;
+        }
+    }
+
+    /**
+     * An encoded tile and the values used for HTTP caching.
+     */
+    public static class Tile {
+
+        private final ByteBuffer data;
+        private final String etag;
+        private final long lastModified;
+        private final String cacheControl;
+        private final boolean rendered;
+
+        /**
+         * @param data encoded tile, from its position to its limit.
+         * @param etag strong entity tag, including the quotes.
+         * @param lastModified modification time in milliseconds or 0 if unknown.
+         * @param cacheControl value of the Cache-Control header.
+         * @param rendered true if the tile was rendered on demand and will be replaced by a generated tile.
+         */
+        public Tile(ByteBuffer data, String etag, long lastModified, String cacheControl, boolean rendered) {
+            this.data = data;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.cacheControl = cacheControl;
+            this.rendered = rendered;
+        }
+
+        /**
+         * @return read-only view of the tile data.
+         */
+        public ByteBuffer getData() {
+            return data.asReadOnlyBuffer();
+        }
+
+        public int size() {
+            return data.remaining();
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public String getCacheControl() {
+            return cacheControl;
+        }
+
+        public boolean isRendered() {
+            return rendered;
+        }
+    }
+
+    public static class Statistics {
+
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+        private final long entries;
+        private final long bytes;
+        private final long capacity;
+
+        public Statistics(long hits, long misses, long evictions, long entries, long bytes, long capacity) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.entries = entries;
+            this.bytes = bytes;
+            this.capacity = capacity;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public double getHitRate() {
+            return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+        }
+
+        public long getEvictions() {
+            return evictions;
+        }
+
+        public long getEntries() {
+            return entries;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getCapacity() {
+            return capacity;
+        }
+    }
+}
@@ -14,6 +14,8 @@ import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
@@ -171,4 +173,22 @@ public class Util {
             }
         }
     }
+
+    /**
+     * Writes a file to a temporary file next to it and moves it in place once written, so that a
+     * partially written file is never read, e.g. by a request serving the directory it's written to.
+     *
+     * @param path path of the file.
+     * @param data contents of the file.
+     */
+    public static void writeAtomically(Path path, byte[] data) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + "." + UUID.randomUUID() + ".tmp");
+
+        try {
+            Files.write(temp, data, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
 }
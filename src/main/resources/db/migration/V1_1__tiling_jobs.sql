@@ -0,0 +1,21 @@
+create table TILING_JOBS
+(
+    ID VARCHAR(255) not null
+        primary key,
+    SOURCE VARCHAR(255),
+    STATE VARCHAR(255),
+    PIXELS BIGINT not null,
+    QUEUEDAT BIGINT not null,
+    STARTEDAT BIGINT,
+    FINISHEDAT BIGINT,
+    ATTEMPTS INTEGER not null
+);
+
+create table TILING_CHECKPOINTS
+(
+    JOB_ID VARCHAR(255) not null,
+    CHECKPOINT VARCHAR(255),
+    constraint FK_TILING_CHECKPOINTS_JOB
+        foreign key (JOB_ID) references TILING_JOBS (ID)
+            on delete cascade
+);
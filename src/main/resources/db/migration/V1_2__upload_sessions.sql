@@ -0,0 +1,14 @@
+create table UPLOAD_SESSIONS
+(
+    ID VARCHAR(255) not null
+        primary key,
+    FILENAME VARCHAR(255),
+    OWNER VARCHAR(255),
+    SIZE BIGINT not null,
+    CHUNKSIZE INTEGER not null,
+    CHUNKCOUNT INTEGER not null,
+    CHUNKS VARBINARY,
+    FINALIZED BOOLEAN not null,
+    CREATEDAT BIGINT not null,
+    UPDATEDAT BIGINT not null
+);
@@ -0,0 +1 @@
+alter table UPLOAD_SESSIONS add REMOTEID VARCHAR(255);
@@ -0,0 +1 @@
+alter table TILING_JOBS add BATCHLAYOUT VARCHAR(255);
@@ -0,0 +1,96 @@
+package fi.ylihallila.server.tests;
+
+import fi.ylihallila.server.archivers.GuardedTileArchive;
+import fi.ylihallila.server.archivers.TileArchive;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestGuardedTileArchive {
+
+    @Test
+    public void SaveWaitsForTilesBeingAdded() throws Exception {
+        CountDownLatch adding = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingArchive recording = new RecordingArchive(adding, release);
+
+        GuardedTileArchive archive = new GuardedTileArchive(recording);
+
+        CompletableFuture<Boolean> add = CompletableFuture.supplyAsync(() -> archive.addTile("slow.jpg", new byte[1]));
+        assertThat(adding.await(10, TimeUnit.SECONDS)).isTrue();
+
+        CompletableFuture<File> save = CompletableFuture.supplyAsync(archive::save);
+
+        Thread.sleep(100);
+        assertThat(save).isNotDone();
+
+        release.countDown();
+
+        assertThat(add.get(10, TimeUnit.SECONDS)).isTrue();
+        save.get(10, TimeUnit.SECONDS);
+
+        assertThat(recording.events).containsExactly("add slow.jpg", "save");
+    }
+
+    @Test
+    public void TilesAddedAfterSaveAreRejected() {
+        RecordingArchive recording = new RecordingArchive(null, null);
+        GuardedTileArchive archive = new GuardedTileArchive(recording);
+
+        assertThat(archive.addTile("first.jpg", new byte[1])).isTrue();
+
+        archive.save();
+
+        assertThat(archive.addTile("late.jpg", new byte[1])).isFalse();
+        assertThat(recording.events).containsExactly("add first.jpg", "save");
+    }
+
+    private static class RecordingArchive implements TileArchive {
+
+        private final List<String> events = new CopyOnWriteArrayList<>();
+
+        private final CountDownLatch adding;
+        private final CountDownLatch release;
+
+        private RecordingArchive(CountDownLatch adding, CountDownLatch release) {
+            this.adding = adding;
+            this.release = release;
+        }
+
+        @Override
+        public boolean create() {
+            return true;
+        }
+
+        @Override
+        public boolean addTile(String tileName, byte[] data) {
+            if (adding != null) {
+                adding.countDown();
+
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+
+            events.add("add " + tileName);
+
+            return true;
+        }
+
+        @Override
+        public File save() {
+            events.add("save");
+
+            return null;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package fi.ylihallila.server.tests;
+
+import fi.ylihallila.server.generators.PyramidReducer;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestPyramidReducer {
+
+    @Test
+    public void ReduceAveragesEachChannel() {
+        int[] source = {
+            0x000000, 0xFF0000,
+            0x00FF00, 0x0000FF
+        };
+        int[] target = new int[1];
+
+        PyramidReducer.reduce(source, 2, 2, target, 1, 0, 0);
+
+        // (0 + 255 + 0 + 0 + 2) / 4 rounded down for every channel
+        assertThat(target[0]).isEqualTo(0x404040);
+    }
+
+    @Test
+    public void ReduceRoundsToNearest() {
+        int[] source = { 1, 1, 1, 2 };
+        int[] target = new int[1];
+
+        PyramidReducer.reduce(source, 2, 2, target, 1, 0, 0);
+
+        assertThat(target[0]).isEqualTo(1);
+
+        source = new int[] { 1, 2, 2, 2 };
+        PyramidReducer.reduce(source, 2, 2, target, 1, 0, 0);
+
+        assertThat(target[0]).isEqualTo(2);
+    }
+
+    @Test
+    public void ReduceIgnoresAlpha() {
+        int[] source = { 0xFF808080, 0xFF808080, 0x00808080, 0x80808080 };
+        int[] target = new int[1];
+
+        PyramidReducer.reduce(source, 2, 2, target, 1, 0, 0);
+
+        assertThat(target[0]).isEqualTo(0x808080);
+    }
+
+    @Test
+    public void ReduceCheckerboardToGray() {
+        int[] source = new int[8 * 6];
+
+        for (int i = 0; i < source.length; i++) {
+            source[i] = ((i % 8) + (i / 8)) % 2 == 0 ? 0x000000 : 0xFFFFFF;
+        }
+
+        int[] target = new int[4 * 3];
+
+        PyramidReducer.reduce(source, 8, 6, target, 4, 0, 0);
+
+        assertThat(target).containsOnly(0x808080);
+    }
+
+    @Test
+    public void ReduceEdgeTileWithOddSize() {
+        // 3x3 edge tile: the last row and column are averaged with themselves
+        int[] source = {
+            0x10, 0x20, 0x30,
+            0x10, 0x20, 0x30,
+            0x50, 0x60, 0x70
+        };
+        int[] target = new int[4];
+
+        PyramidReducer.reduce(source, 3, 3, target, 2, 0, 0);
+
+        assertThat(target).containsExactly(
+            (0x10 + 0x20 + 0x10 + 0x20 + 2) >> 2, 0x30,
+            (0x50 + 0x60 + 0x50 + 0x60 + 2) >> 2, 0x70
+        );
+    }
+
+    @Test
+    public void ReduceChildIntoQuadrantOfParent() {
+        int tileSize = 4;
+
+        // Bottom right child of a parent tile at the edge of a level, only 2x2 pixels
+        int[] child = { 0x08, 0x08, 0x08, 0x08 };
+        int[] parent = new int[3 * 3];
+        Arrays.fill(parent, 0xFFFFFF);
+
+        PyramidReducer.reduce(child, 2, 2, parent, 3, tileSize / 2, tileSize / 2);
+
+        assertThat(parent).containsExactly(
+            0xFFFFFF, 0xFFFFFF, 0xFFFFFF,
+            0xFFFFFF, 0xFFFFFF, 0xFFFFFF,
+            0xFFFFFF, 0xFFFFFF, 0x08
+        );
+    }
+
+    @Test
+    public void ReduceDoesNotWritePastReducedSize() {
+        int[] source = new int[4 * 4];
+        Arrays.fill(source, 0x123456);
+
+        int[] target = new int[4 * 4];
+
+        PyramidReducer.reduce(source, 4, 4, target, 4, 2, 2);
+
+        for (int y = 0; y < 4; y++) {
+            for (int x = 0; x < 4; x++) {
+                assertThat(target[y * 4 + x]).isEqualTo(x >= 2 && y >= 2 ? 0x123456 : 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package fi.ylihallila.server.tests;
+
+import fi.ylihallila.server.storage.StorageProvider;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestStorageProvider {
+
+    private static final byte[] TILE = { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 };
+
+    @Test
+    public void SliceRange() {
+        ByteBuffer slice = StorageProvider.slice(ByteBuffer.wrap(TILE), 2, 3);
+
+        assertThat(bytes(slice)).containsExactly(2, 3, 4);
+    }
+
+    @Test
+    public void SliceIsClampedToEnd() {
+        assertThat(bytes(StorageProvider.slice(ByteBuffer.wrap(TILE), 8, 100))).containsExactly(8, 9);
+        assertThat(bytes(StorageProvider.slice(ByteBuffer.wrap(TILE), 0, Integer.MAX_VALUE))).isEqualTo(TILE);
+    }
+
+    @Test
+    public void SlicePastEndIsEmpty() {
+        assertThat(StorageProvider.slice(ByteBuffer.wrap(TILE), 10, 5).remaining()).isEqualTo(0);
+        assertThat(StorageProvider.slice(ByteBuffer.wrap(TILE), Long.MAX_VALUE, 5).remaining()).isEqualTo(0);
+    }
+
+    @Test
+    public void SliceIsRelativeToPosition() {
+        ByteBuffer buffer = ByteBuffer.wrap(TILE);
+        buffer.position(4);
+
+        ByteBuffer slice = StorageProvider.slice(buffer, 1, 2);
+
+        assertThat(bytes(slice)).containsExactly(5, 6);
+        assertThat(slice.position()).isEqualTo(0);
+    }
+
+    @Test
+    public void SliceDoesNotModifyBuffer() {
+        ByteBuffer buffer = ByteBuffer.wrap(TILE);
+
+        StorageProvider.slice(buffer, 3, 4);
+
+        assertThat(buffer.position()).isEqualTo(0);
+        assertThat(buffer.limit()).isEqualTo(TILE.length);
+    }
+
+    private byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+
+        return bytes;
+    }
+}
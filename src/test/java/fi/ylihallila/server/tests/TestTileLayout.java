@@ -0,0 +1,105 @@
+package fi.ylihallila.server.tests;
+
+import fi.ylihallila.server.generators.TileEncoder;
+import fi.ylihallila.server.generators.TileFormat;
+import fi.ylihallila.server.generators.TileLayout;
+import fi.ylihallila.server.generators.TileWorker;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestTileLayout {
+
+    private static final TileEncoder ENCODER = new TileEncoder(TileFormat.JPEG, 0.85f);
+
+    @Test
+    public void TileCountCoversPartialTiles() {
+        assertThat(TileLayout.getTileCount(0, 1024)).isEqualTo(0);
+        assertThat(TileLayout.getTileCount(1, 1024)).isEqualTo(1);
+        assertThat(TileLayout.getTileCount(1024, 1024)).isEqualTo(1);
+        assertThat(TileLayout.getTileCount(1025, 1024)).isEqualTo(2);
+    }
+
+    @Test
+    public void TileBoundsWithoutOverlap() {
+        assertThat(TileLayout.getTileStart(0, 512, 0)).isEqualTo(0);
+        assertThat(TileLayout.getTileStart(3, 512, 0)).isEqualTo(1536);
+
+        assertThat(TileLayout.getTileEnd(0, 2000, 512, 0)).isEqualTo(512);
+        assertThat(TileLayout.getTileEnd(3, 2000, 512, 0)).isEqualTo(2000);
+    }
+
+    @Test
+    public void TileBoundsWithOverlap() {
+        // The first and last tiles only overlap their inner neighbours
+        assertThat(TileLayout.getTileStart(0, 254, 1)).isEqualTo(0);
+        assertThat(TileLayout.getTileEnd(0, 1000, 254, 1)).isEqualTo(255);
+
+        assertThat(TileLayout.getTileStart(1, 254, 1)).isEqualTo(253);
+        assertThat(TileLayout.getTileEnd(1, 1000, 254, 1)).isEqualTo(509);
+
+        assertThat(TileLayout.getTileStart(3, 254, 1)).isEqualTo(761);
+        assertThat(TileLayout.getTileEnd(3, 1000, 254, 1)).isEqualTo(1000);
+    }
+
+    @Test
+    public void PowerOfTwoLevelCount() {
+        assertThat(TileLayout.getPowerOfTwoLevelCount(1, 1)).isEqualTo(1);
+        assertThat(TileLayout.getPowerOfTwoLevelCount(2, 1)).isEqualTo(2);
+        assertThat(TileLayout.getPowerOfTwoLevelCount(1024, 768)).isEqualTo(11);
+        assertThat(TileLayout.getPowerOfTwoLevelCount(1025, 768)).isEqualTo(12);
+    }
+
+    @Test
+    public void AlignToTilesRoundsDownToTileOfLevel() {
+        assertThat(TileLayout.alignToTiles(0, 1024, 1)).isEqualTo(0);
+        assertThat(TileLayout.alignToTiles(1500, 1024, 1)).isEqualTo(1024);
+        assertThat(TileLayout.alignToTiles(1500, 1024, 4)).isEqualTo(0);
+        assertThat(TileLayout.alignToTiles(5000, 1024, 4)).isEqualTo(4096);
+    }
+
+    @Test
+    public void AlignedSizeCoversCroppedAreaWithWholeTiles() {
+        // Cropped area 1500 - 3500 on a level 0 of 10000 pixels starts at the tile at 1024
+        assertThat(TileLayout.getAlignedSize(1024, 3500, 10000, 1024, 1)).isEqualTo(3072);
+
+        // Level 2 of the same area, 2500 pixels wide, with 1024 pixel tiles
+        assertThat(TileLayout.getAlignedSize(0, 3500, 2500, 1024, 4)).isEqualTo(1024);
+    }
+
+    @Test
+    public void AlignedSizeStopsAtEndOfLevel() {
+        // The last tile of the uncropped level is only 10000 - 9216 = 784 pixels wide
+        assertThat(TileLayout.getAlignedSize(8192, 9900, 10000, 1024, 1)).isEqualTo(1808);
+    }
+
+    @Test
+    public void CroppedTilesHaveNamesOfUncroppedTiles() {
+        long downsample = 4;
+        long start = TileLayout.alignToTiles(5000, 1024, downsample);
+
+        TileLayout.Level uncropped = new TileLayout.Level(2, downsample, 0, 0, 2500, 2500, 2, 1);
+        TileLayout.Level cropped   = new TileLayout.Level(2, downsample, start, start,
+            TileLayout.getAlignedSize(start, 9000, 2500, 1024, downsample),
+            TileLayout.getAlignedSize(start, 9000, 2500, 1024, downsample),
+            2, 1
+        );
+
+        TileWorker.Tile first = new TileWorker.Tile(0, 0, 1024, 1024);
+        TileWorker.Tile second = new TileWorker.Tile(1024, 1024, 452, 452);
+
+        assertThat(getTileName(cropped, first)).isEqualTo(getTileName(uncropped, new TileWorker.Tile(1024, 1024, 1024, 1024)));
+        assertThat(getTileName(cropped, second)).isEqualTo(getTileName(uncropped, new TileWorker.Tile(2048, 2048, 452, 452)));
+        assertThat(getTileName(cropped, first)).isEqualTo("2_4096_4096_1024_1024.jpg");
+    }
+
+    private String getTileName(TileLayout.Level level, TileWorker.Tile tile) {
+        TileWorker worker = new TileWorker(
+            level, level.getOriginX(), level.getOriginY(), List.of(tile), "test", null, null, ENCODER, null
+        );
+
+        return worker.getTileName(tile);
+    }
+}
@@ -0,0 +1,140 @@
+package fi.ylihallila.server.tests;
+
+import fi.ylihallila.server.storage.TileMirror;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class TestTileMirror {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void PutAndGet() throws Exception {
+        TileMirror mirror = new TileMirror(directory, 100);
+
+        mirror.put("slide/tile.jpg", tile(10, 1));
+
+        assertThat(mirror.contains("slide/tile.jpg")).isTrue();
+        assertThat(mirror.getSize()).isEqualTo(10);
+        assertThat(mirror.get("slide/tile.jpg")).contains(tile(10, 1));
+        assertThat(mirror.get("slide/other.jpg")).isEmpty();
+
+        assertThat(mirror.getHits()).isEqualTo(1);
+        assertThat(mirror.getMisses()).isEqualTo(1);
+    }
+
+    @Test
+    public void ReplacingTileUpdatesSize() throws Exception {
+        TileMirror mirror = new TileMirror(directory, 100);
+
+        mirror.put("slide/tile.jpg", tile(10, 1));
+        mirror.put("slide/tile.jpg", tile(30, 2));
+
+        assertThat(mirror.getSize()).isEqualTo(30);
+        assertThat(mirror.get("slide/tile.jpg")).contains(tile(30, 2));
+    }
+
+    @Test
+    public void EvictsLeastRecentlyUsed() throws Exception {
+        TileMirror mirror = new TileMirror(directory, 30);
+
+        mirror.put("slide/a.jpg", tile(10, 1));
+        mirror.put("slide/b.jpg", tile(10, 2));
+        mirror.put("slide/c.jpg", tile(10, 3));
+
+        // Reading a makes b the least recently used
+        assertThat(mirror.get("slide/a.jpg")).isPresent();
+
+        mirror.put("slide/d.jpg", tile(10, 4));
+
+        assertThat(mirror.contains("slide/a.jpg")).isTrue();
+        assertThat(mirror.contains("slide/b.jpg")).isFalse();
+        assertThat(mirror.contains("slide/c.jpg")).isTrue();
+        assertThat(mirror.contains("slide/d.jpg")).isTrue();
+
+        assertThat(mirror.getSize()).isEqualTo(30);
+        assertThat(directory.resolve("slide/b.jpg")).doesNotExist();
+    }
+
+    @Test
+    public void TileLargerThanMirrorIsKept() throws Exception {
+        TileMirror mirror = new TileMirror(directory, 10);
+
+        mirror.put("slide/a.jpg", tile(5, 1));
+        mirror.put("slide/b.jpg", tile(20, 2));
+
+        assertThat(mirror.contains("slide/a.jpg")).isFalse();
+        assertThat(mirror.contains("slide/b.jpg")).isTrue();
+        assertThat(mirror.get("slide/b.jpg")).contains(tile(20, 2));
+    }
+
+    @Test
+    public void IndexesExistingFilesOldestFirst() throws Exception {
+        Files.createDirectories(directory.resolve("slide"));
+
+        Files.write(directory.resolve("slide/old.jpg"), new byte[10]);
+        Files.write(directory.resolve("slide/new.jpg"), new byte[10]);
+        Files.write(directory.resolve("slide/partial.jpg.1234.tmp"), new byte[10]);
+
+        Files.setLastModifiedTime(directory.resolve("slide/old.jpg"), FileTime.fromMillis(1000));
+        Files.setLastModifiedTime(directory.resolve("slide/new.jpg"), FileTime.fromMillis(2000));
+
+        TileMirror mirror = new TileMirror(directory, 20);
+
+        assertThat(mirror.contains("slide/old.jpg")).isTrue();
+        assertThat(mirror.contains("slide/new.jpg")).isTrue();
+        assertThat(mirror.getSize()).isEqualTo(20);
+
+        // Temporary files of interrupted writes are deleted, not indexed
+        assertThat(directory.resolve("slide/partial.jpg.1234.tmp")).doesNotExist();
+
+        mirror.put("slide/tile.jpg", tile(10, 1));
+
+        assertThat(mirror.contains("slide/old.jpg")).isFalse();
+        assertThat(mirror.contains("slide/new.jpg")).isTrue();
+    }
+
+    @Test
+    public void IndexingEvictsFilesOverMaxSize() throws Exception {
+        Files.createDirectories(directory.resolve("slide"));
+
+        Files.write(directory.resolve("slide/old.jpg"), new byte[10]);
+        Files.write(directory.resolve("slide/new.jpg"), new byte[10]);
+
+        Files.setLastModifiedTime(directory.resolve("slide/old.jpg"), FileTime.fromMillis(1000));
+        Files.setLastModifiedTime(directory.resolve("slide/new.jpg"), FileTime.fromMillis(2000));
+
+        TileMirror mirror = new TileMirror(directory, 15);
+
+        assertThat(mirror.contains("slide/old.jpg")).isFalse();
+        assertThat(mirror.contains("slide/new.jpg")).isTrue();
+        assertThat(directory.resolve("slide/old.jpg")).doesNotExist();
+    }
+
+    @Test
+    public void KeysOutsideMirrorAreRejected() throws Exception {
+        TileMirror mirror = new TileMirror(directory, 100);
+
+        assertThatThrownBy(() -> mirror.put("../tile.jpg", tile(10, 1)))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private ByteBuffer tile(int length, int value) {
+        byte[] data = new byte[length];
+
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (value + i);
+        }
+
+        return ByteBuffer.wrap(data);
+    }
+}
@@ -0,0 +1,134 @@
+package fi.ylihallila.server.tests;
+
+import fi.ylihallila.server.models.UploadSession;
+import org.junit.jupiter.api.Test;
+
+import java.nio.channels.ClosedChannelException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class TestUploadSession {
+
+    @Test
+    public void ChunkCountCoversPartialChunk() {
+        assertThat(new UploadSession("id", "slide.svs", "owner", 1, 1024).getChunkCount()).isEqualTo(1);
+        assertThat(new UploadSession("id", "slide.svs", "owner", 1024, 1024).getChunkCount()).isEqualTo(1);
+        assertThat(new UploadSession("id", "slide.svs", "owner", 1025, 1024).getChunkCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void InvalidSizesAreRejected() {
+        assertThatThrownBy(() -> new UploadSession("id", "slide.svs", "owner", 0, 1024))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThatThrownBy(() -> new UploadSession("id", "slide.svs", "owner", 1024, 0))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThatThrownBy(() -> new UploadSession("id", "slide.svs", "owner", (long) Integer.MAX_VALUE * 2 + 2, 1))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThatThrownBy(() -> new UploadSession("id", "slide.svs", "owner", Long.MAX_VALUE, 2))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void OnlyLastChunkIsShorter() {
+        UploadSession upload = new UploadSession("id", "slide.svs", "owner", 2500, 1000);
+
+        assertThat(upload.getChunkOffset(0)).isEqualTo(0);
+        assertThat(upload.getChunkOffset(2)).isEqualTo(2000);
+
+        assertThat(upload.getChunkLength(0)).isEqualTo(1000);
+        assertThat(upload.getChunkLength(1)).isEqualTo(1000);
+        assertThat(upload.getChunkLength(2)).isEqualTo(500);
+    }
+
+    @Test
+    public void ChunkOffsetDoesNotOverflow() {
+        UploadSession upload = new UploadSession("id", "slide.svs", "owner", 10L * Integer.MAX_VALUE, Integer.MAX_VALUE);
+
+        assertThat(upload.getChunkOffset(9)).isEqualTo(9L * Integer.MAX_VALUE);
+        assertThat(upload.getChunkLength(9)).isEqualTo(Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void IsChunk() {
+        UploadSession upload = new UploadSession("id", "slide.svs", "owner", 2500, 1000);
+
+        assertThat(upload.isChunk(-1)).isFalse();
+        assertThat(upload.isChunk(0)).isTrue();
+        assertThat(upload.isChunk(2)).isTrue();
+        assertThat(upload.isChunk(3)).isFalse();
+    }
+
+    @Test
+    public void NewUploadIsMissingEveryChunk() {
+        UploadSession upload = new UploadSession("id", "slide.svs", "owner", 2500, 1000);
+
+        assertThat(upload.getMissing()).containsExactly(0, 1, 2);
+        assertThat(upload.getReceivedCount()).isEqualTo(0);
+        assertThat(upload.getOffset()).isEqualTo(0);
+        assertThat(upload.isComplete()).isFalse();
+        assertThat(upload.finalizeUpload()).isFalse();
+    }
+
+    @Test
+    public void UploadExpiresOnlyWithoutWrites() {
+        UploadSession upload = new UploadSession("id", "slide.svs", "owner", 2500, 1000);
+
+        assertThat(upload.isExpired(60_000)).isFalse();
+        assertThat(upload.isExpired(-1)).isTrue();
+
+        assertThat(upload.beginWrite()).isTrue();
+        assertThat(upload.isExpired(-1)).isFalse();
+
+        // A failed chunk isn't received, but still counts as activity
+        upload.endWrite(0, false);
+
+        assertThat(upload.isExpired(-1)).isTrue();
+        assertThat(upload.getExpiresAt(60_000)).isEqualTo(upload.getUpdatedAt() + 60_000);
+        assertThat(upload.getMissing()).containsExactly(0, 1, 2);
+    }
+
+    @Test
+    public void ExpiredUploadRejectsWrites() {
+        UploadSession upload = new UploadSession("id", "slide.svs", "owner", 2500, 1000);
+
+        assertThat(upload.expire(60_000)).isFalse();
+        assertThat(upload.beginWrite()).isTrue();
+
+        // Chunks being written keep the upload alive
+        assertThat(upload.expire(-1)).isFalse();
+
+        upload.endWrite(0, false);
+
+        assertThat(upload.expire(-1)).isTrue();
+        assertThat(upload.isFinalized()).isTrue();
+        assertThat(upload.beginWrite()).isFalse();
+    }
+
+    @Test
+    public void FinalizedUploadStillExpires() throws Exception {
+        UploadSession upload = new UploadSession("id", "slide.svs", "owner", 2500, 1000);
+
+        // E.g. processing the slide failed after the upload was finalized
+        upload.close();
+
+        assertThat(upload.expire(60_000)).isFalse();
+        assertThat(upload.expire(-1)).isTrue();
+    }
+
+    @Test
+    public void ClosedUploadRejectsWrites() throws Exception {
+        UploadSession upload = new UploadSession("id", "slide.svs", "owner", 2500, 1000);
+
+        upload.close();
+
+        assertThat(upload.isFinalized()).isTrue();
+        assertThat(upload.beginWrite()).isFalse();
+
+        // A chunk which began before the upload was closed must not open the file again
+        assertThatThrownBy(upload::getChannel).isInstanceOf(ClosedChannelException.class);
+    }
+}